@@ -3,6 +3,7 @@ package com.ashfly.android.calculator.demo;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 
 import android.content.Context;
 
@@ -12,6 +13,9 @@ import androidx.test.platform.app.InstrumentationRegistry;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.math.BigDecimal;
+import java.math.MathContext;
+
 /**
  * Instrumented test, which will execute on an Android device.
  *
@@ -104,6 +108,8 @@ public class ExampleInstrumentedTest {
                 // 2. 嵌套函数
                 {"sin(cos-1(0.5))×√16", Math.sin(Math.toRadians(60)) * 4},
                 {"√(sin(90)^2+cos(0)^2)", 1.4142135623730951},
+                {"sqrt(16)+log(100)", 6.0}, // 函数的别名
+                {"asin(0) + atan (0)", 0.0},
 
                 // 3. 混合运算
                 {"((3+2)!÷(10-5)!+exp(0)", 2.0}, // 5!÷5! + 1 = 1 + 1 = 2? 修正为1+1=2
@@ -169,6 +175,142 @@ public class ExampleInstrumentedTest {
         testExpression("(1.5e-2) ÷ (3E-3)", (1.5 * Math.E - 2) / 0.003);
     }
 
+    @Test
+    public void testCompiledExpressions() {
+        String[] expressions = {
+                "3+5", "2^3^2", "-2^2", "2^-(3)", "√4!", "3!%", "sin(30)+cos(60)×tan(45)",
+                "ln(e^2)+lg(100)×π", "sin(cos-1(0.5))×√16", "((3+2)!÷(10-5)!+exp(0)", "2π(1+2", "-sin(30)"
+        };
+
+        for (String expr : expressions) {
+            EquationBuilder builder = EquationBuilder.Parser.parseEquation(expr);
+            assertNotNull("应成功解析: " + expr, builder);
+
+            CompiledExpression compiled = builder.compile();
+            for (boolean rad : new boolean[]{false, true}) {
+                double expected = builder.calculate(rad);
+                assertEquals("结果不匹配: " + expr, expected, compiled.evaluate(rad), 0);
+                assertEquals("重复计算结果不一致: " + expr, expected, compiled.evaluate(rad), 0);
+            }
+        }
+    }
+
+    @Test
+    public void testFactorial() {
+        // 整数查表
+        testExpression("0!", 1.0);
+        testExpression("10!", 3628800.0);
+        testExpression("3!!", 720.0);
+        assertEquals(7.257415615307999E306, EquationBuilder.Parser.parseEquation("170!").calculate(isRad), 0);
+
+        // 非整数使用Γ函数
+        testExpression("2.5!", 15 * Math.sqrt(Math.PI) / 8);
+        testExpression("0.5!", Math.sqrt(Math.PI) / 2);
+        testExpression("(-0.5)!", Math.sqrt(Math.PI));
+
+        // 超出范围
+        for (String expr : new String[]{"171!", "(-3)!"}) {
+            try {
+                EquationBuilder.Parser.parseEquation(expr).calculate(isRad);
+                fail("应无法计算: " + expr);
+            } catch (EquationBuilder.CalculateException ignored) {
+            }
+        }
+    }
+
+    @Test
+    public void testPreciseExpressions() {
+        String[][] cases = {
+                {"0.1+0.2", "0.3"},
+                {"9999999×0.0000001", "0.9999999"},
+                {"123456789×987654321", "121932631112635269"},
+                {"sin(30)", "0.5"},
+                {"√2", "1.414213562373095048801688724209698"},
+                {"π", "3.141592653589793238462643383279503"},
+                {"25!", "15511210043330985984000000"}
+        };
+
+        for (String[] testCase : cases) {
+            EquationBuilder builder = EquationBuilder.Parser.parseEquation(testCase[0]);
+            assertNotNull("应成功解析: " + testCase[0], builder);
+            BigDecimal result = builder.calculate(isRad, MathContext.DECIMAL128);
+            assertEquals("结果不匹配: " + testCase[0], 0, new BigDecimal(testCase[1]).compareTo(result));
+        }
+    }
+
+    @Test
+    public void testVariables() {
+        CompiledExpression compiled = CompiledExpression.compile("x^2+2x+1", 'x');
+        assertNotNull(compiled);
+        assertEquals(16.0, compiled.evaluate(isRad, 3.0), 0);
+
+        // 按列计算与逐点计算一致，出错的点为 NaN
+        CompiledExpression quotient = CompiledExpression.compile("ln(x)÷y", 'x', 'y');
+        assertNotNull(quotient);
+        double[][] variables = {{1, Math.E, -1, 10, 5}, {2, 1, 1, 0, -4}};
+        double[] results = new double[variables[0].length];
+        quotient.evaluate(isRad, variables, results);
+        for (int i = 0; i < results.length; i++) {
+            double expected;
+            try {
+                expected = quotient.evaluate(isRad, variables[0][i], variables[1][i]);
+            } catch (EquationBuilder.CalculateException e) {
+                expected = Double.NaN;
+            }
+            assertEquals("第" + i + "个点", expected, results[i], 0);
+        }
+        assertEquals(Double.NaN, results[2], 0);
+        assertEquals(Double.NaN, results[3], 0);
+
+        // 只有正负号的数字逐点计算报错，按列计算为 NaN
+        for (String signOnly : new String[]{"+.", "-."}) {
+            CompiledExpression sign = CompiledExpression.compile(signOnly, 'x');
+            assertNotNull(signOnly, sign);
+            try {
+                sign.evaluate(isRad, 1.0);
+                fail("应报错: " + signOnly);
+            } catch (EquationBuilder.CalculateException ignored) {
+            }
+            double[] signResults = new double[2];
+            sign.evaluate(isRad, new double[][]{{1, 2}}, signResults);
+            assertEquals(signOnly, Double.NaN, signResults[0], 0);
+            assertEquals(signOnly, Double.NaN, signResults[1], 0);
+        }
+
+        // 未声明为变量时 x 仍是乘号
+        testExpression("3x4", 12.0);
+        try {
+            EquationBuilder.Parser.parseEquation("2y", 'y').calculate(isRad);
+            fail("含有变量的算式不能直接计算");
+        } catch (EquationBuilder.CalculateException ignored) {
+        }
+    }
+
+    @Test
+    public void testOptimizer() {
+        // 常量子树折叠为一个数，重复的 (x+1) 只计算一次
+        String[] equations = {"sin(π÷6)×2+x", "(x+1)^2÷(x+1)", "50%×x", "-(x+1)×(x+1)", "1÷0+x"};
+        for (String equation : equations) {
+            CompiledExpression compiled = CompiledExpression.compile(equation, 'x');
+            assertNotNull(equation, compiled);
+            EquationBuilder builder = EquationBuilder.Parser.parseEquation(equation.replace("x", "3"));
+            assertNotNull(equation, builder);
+            try {
+                double expected = builder.calculate(isRad);
+                assertEquals(equation, expected, compiled.evaluate(isRad, 3.0), 0);
+            } catch (EquationBuilder.CalculateException e) {
+                try {
+                    compiled.evaluate(isRad, 3.0);
+                    fail("应与直接计算一样出错: " + equation);
+                } catch (EquationBuilder.CalculateException optimized) {
+                    assertEquals(equation, e.reason, optimized.reason);
+                }
+            }
+        }
+        assertEquals(5, CompiledExpression.compile("sin(π÷6)×2+x", 'x').getRemovedNodes());
+        assertEquals(3, CompiledExpression.compile("(x+1)^2÷(x+1)", 'x').getRemovedNodes());
+    }
+
     private void testExpression(String expr, double expected) {
         EquationBuilder builder = EquationBuilder.Parser.parseEquation(expr);
         assertNotNull("应成功解析: " + expr, builder);
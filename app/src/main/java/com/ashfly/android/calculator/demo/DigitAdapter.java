@@ -1,6 +1,5 @@
 package com.ashfly.android.calculator.demo;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.graphics.Typeface;
 import android.graphics.drawable.Drawable;
@@ -39,10 +38,18 @@ public class DigitAdapter extends RecyclerView.Adapter<DigitAdapter.VH> {
     private OnItemClickListener onItemClickListener;
     private Drawable[] backgrounds;
 
+    //所有按键共用一个监听器，点击时按位置找到对应的 Item
+    private final View.OnClickListener clickListener = v -> {
+        int position = ((VH) v.getTag()).getAdapterPosition();
+        if (position != RecyclerView.NO_POSITION && onItemClickListener != null)
+            onItemClickListener.onClick(list.get(position));
+    };
+
     public DigitAdapter(int itemWidth, int itemHeight, List<Item> list) {
         this.itemWidth = itemWidth;
         this.itemHeight = itemHeight;
         this.list.addAll(list);
+        setHasStableIds(true);
     }
 
     public void setBackgrounds(Drawable digitalBackground, Drawable operatorBackground, Drawable specialBackground) {
@@ -55,23 +62,34 @@ public class DigitAdapter extends RecyclerView.Adapter<DigitAdapter.VH> {
         }
     }
 
+    //按键的内容不变，绑定时只更新尺寸
     public void setItemSize(int width, int height) {
         if (this.itemWidth == width && this.itemHeight == height)
             return;
         this.itemWidth = width;
         this.itemHeight = height;
-        setItems(new ArrayList<>(list));
+        notifyItemRangeChanged(0, list.size());
     }
 
-    @SuppressLint("NotifyDataSetChanged")
+    /**
+     * 键盘的布局是固定的网格，所以按位置比较，只通知与当前不同的按键
+     */
     public void setItems(List<Item> list) {
-        this.list.clear();
-        notifyDataSetChanged();
-        this.list.addAll(list);
-        notifyDataSetChanged();
+        int size = list.size(), thisSize = this.list.size();
+        for (int i = 0; i < Math.min(size, thisSize); i++)
+            setItem(i, list.get(i));
+        if (size > thisSize) {
+            this.list.addAll(list.subList(thisSize, size));
+            notifyItemRangeInserted(thisSize, size - thisSize);
+        } else if (size < thisSize) {
+            this.list.subList(size, thisSize).clear();
+            notifyItemRangeRemoved(size, thisSize - size);
+        }
     }
 
     public void setItem(int index, Item item) {
+        if (this.list.get(index) == item)
+            return;
         this.list.set(index, item);
         notifyItemChanged(index);
     }
@@ -86,8 +104,7 @@ public class DigitAdapter extends RecyclerView.Adapter<DigitAdapter.VH> {
                 if (index < 0 || index >= thisSize)
                     continue;
 
-                this.list.set(index, list.get(i));
-                notifyItemChanged(index);
+                setItem(index, list.get(i));
                 i++;
             }
         } else if (thisSize == size) {
@@ -95,8 +112,7 @@ public class DigitAdapter extends RecyclerView.Adapter<DigitAdapter.VH> {
                 if (index < 0 || index >= thisSize)
                     continue;
 
-                this.list.set(index, list.get(index));
-                notifyItemChanged(index);
+                setItem(index, list.get(index));
             }
         } else {
             throw new IllegalStateException();
@@ -110,16 +126,30 @@ public class DigitAdapter extends RecyclerView.Adapter<DigitAdapter.VH> {
         return list.get(position).viewType;
     }
 
+    //空白的按键是同一个实例，按位置区分
+    @Override
+    public long getItemId(int position) {
+        Item item = list.get(position);
+        return item.viewType == VIEW_TYPE_EMPTY ? -1 - position : item.id;
+    }
+
     @NonNull
     @Override
     public VH onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
-        return VH.newVH(parent.getContext(), itemWidth, itemHeight, viewType, backgrounds);
+        VH holder = VH.newVH(parent.getContext(), itemWidth, itemHeight, viewType, backgrounds);
+        if (viewType != VIEW_TYPE_EMPTY) {
+            holder.view.setTag(holder);
+            holder.view.setOnClickListener(clickListener);
+        }
+        return holder;
     }
 
     @Override
     public void onBindViewHolder(@NonNull VH holder, int position) {
         Item item = list.get(position);
         View view = holder.view;
+        holder.setSize(itemWidth, itemHeight);
+        holder.setBackground(VH.backgroundOf(holder.viewType, backgrounds));
 
         switch (item.viewType) {
             case VIEW_TYPE_DIGIT:
@@ -139,13 +169,8 @@ public class DigitAdapter extends RecyclerView.Adapter<DigitAdapter.VH> {
                 break;
 
             default:
-                return;
+                break;
         }
-
-        view.setOnClickListener(v -> {
-            if (onItemClickListener != null)
-                onItemClickListener.onClick(item);
-        });
     }
 
     @Override
@@ -164,7 +189,10 @@ public class DigitAdapter extends RecyclerView.Adapter<DigitAdapter.VH> {
 
     public static class Item {
 
+        private static long nextId;
+
         public static final Item EMPTY_ITEM = new Item();
+        public final long id = nextId++; //作为 RecyclerView 的稳定 id
         public final int viewType;
         public char digit;
         public String operator;
@@ -208,10 +236,14 @@ public class DigitAdapter extends RecyclerView.Adapter<DigitAdapter.VH> {
     public static class VH extends RecyclerView.ViewHolder {
 
         final View view;
+        private final int viewType;
+        private int itemWidth, itemHeight;
+        private Drawable backgroundSource;
 
-        private VH(View view) {
+        private VH(View view, int viewType) {
             super(view);
             this.view = view;
+            this.viewType = viewType;
         }
 
         //Drawable[] digitalBackground, operatorBackground, specialBackground
@@ -220,6 +252,54 @@ public class DigitAdapter extends RecyclerView.Adapter<DigitAdapter.VH> {
             if (backgrounds == null || backgrounds.length != 3)
                 throw new IllegalArgumentException("invalid backgrounds[]");
 
+            View view;
+
+            if (viewType == VIEW_TYPE_SPECIAL) {
+                view = new ImageView(context);
+                ((ImageView) view).setScaleType(ImageView.ScaleType.FIT_CENTER);
+            } else if (viewType == VIEW_TYPE_DIGIT || viewType == VIEW_TYPE_OPERATOR || viewType == VIEW_TYPE_ADVANCED) {
+                view = new TextView(context);
+                TextView textView = (TextView) view;
+                textView.setGravity(Gravity.CENTER);
+
+                if (viewType == VIEW_TYPE_OPERATOR)
+                    textView.setTypeface(textView.getTypeface(), Typeface.BOLD);
+
+            } else {
+                view = new View(context);
+            }
+
+            VH holder = new VH(view, viewType);
+            holder.setSize(itemWidth, itemHeight);
+            holder.setBackground(backgroundOf(viewType, backgrounds));
+            return holder;
+        }
+
+        static Drawable backgroundOf(int viewType, Drawable[] backgrounds) {
+            if (viewType == VIEW_TYPE_SPECIAL)
+                return backgrounds[2];
+            if (viewType == VIEW_TYPE_OPERATOR)
+                return backgrounds[1];
+            if (viewType == VIEW_TYPE_DIGIT || viewType == VIEW_TYPE_ADVANCED)
+                return backgrounds[0];
+            return null;
+        }
+
+        //背景随按键的尺寸变化，每个按键使用自己的副本
+        void setBackground(Drawable background) {
+            if (background == backgroundSource)
+                return;
+            backgroundSource = background;
+            view.setBackground(background == null ? null : Objects.requireNonNull(background.getConstantState()).newDrawable().mutate());
+        }
+
+        //尺寸变化后复用的按键也要更新
+        void setSize(int itemWidth, int itemHeight) {
+            if (this.itemWidth == itemWidth && this.itemHeight == itemHeight)
+                return;
+            this.itemWidth = itemWidth;
+            this.itemHeight = itemHeight;
+
             int horizontalMargin = itemWidth / 10;
             int contentWidth = itemWidth - horizontalMargin * 2;
 
@@ -233,48 +313,18 @@ public class DigitAdapter extends RecyclerView.Adapter<DigitAdapter.VH> {
                 contentHeight = itemHeight - verticalMargin * 2;
             }
 
-
-            Drawable background = null;
-            View view;
-
             if (viewType == VIEW_TYPE_SPECIAL) {
-                view = new ImageView(context);
-                ((ImageView) view).setScaleType(ImageView.ScaleType.FIT_CENTER);
                 int horizontalPadding = contentWidth / 4;
                 int verticalPadding = contentHeight / 4;
                 view.setPadding(horizontalPadding, verticalPadding , horizontalPadding, verticalPadding);
-                background = backgrounds[2];
-            } else if (viewType == VIEW_TYPE_DIGIT || viewType == VIEW_TYPE_OPERATOR || viewType == VIEW_TYPE_ADVANCED) {
-                view = new TextView(context);
-                TextView textView = (TextView) view;
-                textView.setGravity(Gravity.CENTER);
-
+            } else if (view instanceof TextView) {
                 int min = Math.min(contentWidth, contentHeight);
-                textView.setTextSize(TypedValue.COMPLEX_UNIT_PX, min / 2.2f);
-
-
-                if (viewType == VIEW_TYPE_OPERATOR) {
-                    background = backgrounds[1];
-                    textView.setTypeface(textView.getTypeface(), Typeface.BOLD);
-                } else {
-                    background = backgrounds[0];
-                }
-
-            } else {
-                view = new View(context);
+                ((TextView) view).setTextSize(TypedValue.COMPLEX_UNIT_PX, min / 2.2f);
             }
 
-            if (background != null) {
-                background = Objects.requireNonNull(background.getConstantState()).newDrawable().mutate();
-                view.setBackground(background);
-            }
             GridLayoutManager.LayoutParams params = new GridLayoutManager.LayoutParams(contentWidth, contentHeight);
             params.setMargins(horizontalMargin, verticalMargin, horizontalMargin, verticalMargin);
             view.setLayoutParams(params);
-
-            return new VH(view);
         }
-
-
     }
 }
@@ -0,0 +1,269 @@
+package com.ashfly.android.calculator.demo;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.util.AttributeSet;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * 绘制 y = f(x) 的图像，可以拖动和缩放
+ * <p>
+ * x 轴按 2 的幂划分为等宽的分块，分块宽度随缩放级别在 TILE_PIXELS/2~TILE_PIXELS 像素之间变化。
+ * 每个分块在后台线程中用 {@link GraphSampler} 采样一次，结果缓存起来：拖动时只需采样新出现的分块，
+ * 缩放只有跨过 2 的幂时才需要重新采样，绘制时只做坐标变换。横纵坐标的比例始终相同。
+ * <p>
+ * 采样线程在连接到窗口时创建，断开时关闭。开始采样时分块已经不在屏幕上就跳过，
+ * 快速拖动和缩放时屏幕上的分块不必等待已经移出的分块。
+ */
+public class GraphView extends View {
+
+    private static final int TILE_PIXELS = 256;
+    private static final int TILE_INTERVALS = 32; //每个分块初始的均匀分段数
+    private static final int MAX_CACHED_TILES = 96;
+    private static final double DEFAULT_SCALE = 1.0 / 40, MIN_SCALE = 1e-9, MAX_SCALE = 1e9; //每像素对应的长度
+
+    private final Paint curvePaint = new Paint(Paint.ANTI_ALIAS_FLAG), axisPaint = new Paint();
+    private final ScaleGestureDetector scaleDetector;
+    private ExecutorService sampler; //只在连接到窗口期间存在
+
+    //(级别, 序号) -> 采样结果，只在主线程访问
+    private final Map<Long, double[]> tiles = new LinkedHashMap<Long, double[]>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, double[]> eldest) {
+            return size() > MAX_CACHED_TILES;
+        }
+    };
+    private final Set<Long> pendingTiles = new HashSet<>();
+
+    private GraphSampler graphSampler;
+    private volatile int generation; //算式改变后，之前提交的采样结果作废
+    private volatile int visibleLevel; //上一次绘制时屏幕上分块的级别和序号范围，供采样线程判断分块是否还需要
+    private volatile long visibleFirst, visibleLast;
+    private double centerX, centerY, scale = DEFAULT_SCALE;
+    private float lastTouchX, lastTouchY;
+    private float[] lines = new float[256];
+
+    public GraphView(Context context) {
+        this(context, null);
+    }
+
+    public GraphView(Context context, AttributeSet attrs) {
+        super(context, attrs);
+        curvePaint.setColor(Color.rgb(0x3F, 0x51, 0xB5));
+        curvePaint.setStrokeWidth(context.getResources().getDisplayMetrics().density * 2);
+        curvePaint.setStrokeCap(Paint.Cap.ROUND);
+        axisPaint.setColor(Color.GRAY);
+
+        scaleDetector = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                //以两指中点为中心缩放
+                double focusX = toWorldX(detector.getFocusX()), focusY = toWorldY(detector.getFocusY());
+                scale = Math.max(MIN_SCALE, Math.min(MAX_SCALE, scale / detector.getScaleFactor()));
+                centerX = focusX - (detector.getFocusX() - getWidth() / 2.0) * scale;
+                centerY = focusY + (detector.getFocusY() - getHeight() / 2.0) * scale;
+                invalidate();
+                return true;
+            }
+        });
+    }
+
+    /**
+     * 设置要绘制的算式，null 表示不绘制
+     *
+     * @param expression 只含变量 x 的算式
+     */
+    public void setExpression(CompiledExpression expression, boolean isRad) {
+        graphSampler = expression == null ? null : new GraphSampler(expression, isRad);
+        generation++;
+        tiles.clear();
+        pendingTiles.clear();
+        invalidate();
+    }
+
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        sampler = Executors.newSingleThreadExecutor();
+    }
+
+    //丢弃排队的采样，它们引用着这个 View 和它所在的 Activity
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        sampler.shutdownNow();
+        sampler = null;
+        generation++;
+        pendingTiles.clear();
+    }
+
+    @SuppressLint("ClickableViewAccessibility")
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        scaleDetector.onTouchEvent(event);
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                lastTouchX = event.getX();
+                lastTouchY = event.getY();
+                break;
+
+            case MotionEvent.ACTION_MOVE:
+                if (!scaleDetector.isInProgress() && event.getPointerCount() == 1) {
+                    centerX -= (event.getX() - lastTouchX) * scale;
+                    centerY += (event.getY() - lastTouchY) * scale;
+                    invalidate();
+                }
+                lastTouchX = event.getX();
+                lastTouchY = event.getY();
+                break;
+
+            case MotionEvent.ACTION_POINTER_UP:
+                //抬起一根手指后，以剩下的手指继续拖动
+                int remaining = event.getActionIndex() == 0 ? 1 : 0;
+                lastTouchX = event.getX(remaining);
+                lastTouchY = event.getY(remaining);
+                break;
+        }
+        return true;
+    }
+
+    private double toWorldX(float x) {
+        return centerX + (x - getWidth() / 2.0) * scale;
+    }
+
+    private double toWorldY(float y) {
+        return centerY - (y - getHeight() / 2.0) * scale;
+    }
+
+    private float toScreenX(double x) {
+        return (float) ((x - centerX) / scale + getWidth() / 2.0);
+    }
+
+    private float toScreenY(double y) {
+        return (float) (getHeight() / 2.0 - (y - centerY) / scale);
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        super.onDraw(canvas);
+        int width = getWidth(), height = getHeight();
+
+        float axisX = toScreenX(0), axisY = toScreenY(0);
+        canvas.drawLine(0, axisY, width, axisY, axisPaint);
+        canvas.drawLine(axisX, 0, axisX, height, axisPaint);
+
+        if (graphSampler == null)
+            return;
+
+        //分块宽度为 2^level，约为 TILE_PIXELS/2~TILE_PIXELS 像素
+        int level = (int) Math.floor(Math.log(scale * TILE_PIXELS) / Math.log(2));
+        double tileWidth = Math.pow(2, level);
+        long first = (long) Math.floor(toWorldX(0) / tileWidth), last = (long) Math.floor(toWorldX(width) / tileWidth);
+        visibleLevel = level;
+        visibleFirst = first;
+        visibleLast = last;
+        long lastFallback = Long.MIN_VALUE;
+        for (long index = first; index <= last; index++) {
+            double[] points = tiles.get(tileKey(level, index));
+            if (points != null) {
+                drawTile(canvas, points, height);
+                continue;
+            }
+
+            requestTile(level, index, tileWidth);
+
+            //采样完成之前，先画缩放前相邻级别的分块
+            long parent = tileKey(level + 1, index >> 1);
+            double[] parentPoints = tiles.get(parent);
+            if (parentPoints != null) {
+                if (parent != lastFallback)
+                    drawTile(canvas, parentPoints, height);
+                lastFallback = parent;
+                continue;
+            }
+            for (long child = index * 2; child <= index * 2 + 1; child++) {
+                double[] childPoints = tiles.get(tileKey(level - 1, child));
+                if (childPoints != null)
+                    drawTile(canvas, childPoints, height);
+            }
+        }
+    }
+
+    private static long tileKey(int level, long index) {
+        return (long) level << 48 ^ index;
+    }
+
+    private void requestTile(int level, long index, double tileWidth) {
+        long key = tileKey(level, index);
+        if (sampler == null || !pendingTiles.add(key))
+            return;
+
+        GraphSampler graphSampler = this.graphSampler;
+        int generation = this.generation;
+        double from = index * tileWidth;
+        double tolerance = tileWidth / TILE_PIXELS / 4; //不超过四分之一像素
+        double maxJump = tileWidth * 2;
+        sampler.execute(() -> {
+            if (generation != this.generation)
+                return;
+            //已经移出屏幕或者换了缩放级别，下次出现时重新请求
+            if (level != visibleLevel || index < visibleFirst || index > visibleLast) {
+                post(() -> {
+                    if (generation == this.generation)
+                        pendingTiles.remove(key);
+                });
+                return;
+            }
+            double[] points = graphSampler.sample(from, from + tileWidth, TILE_INTERVALS, tolerance, maxJump);
+            post(() -> {
+                if (generation != this.generation)
+                    return;
+                pendingTiles.remove(key);
+                tiles.put(key, points);
+                invalidate();
+            });
+        });
+    }
+
+    //相邻两点都有定义时连线，超出屏幕很远的点截断到屏幕附近，避免浮点溢出
+    private void drawTile(Canvas canvas, double[] points, int height) {
+        int length = 0;
+        float previousX = 0, previousY = 0;
+        boolean hasPrevious = false;
+        for (int i = 0; i < points.length; i += 2) {
+            double y = points[i + 1];
+            if (Double.isNaN(y)) {
+                hasPrevious = false;
+                continue;
+            }
+
+            float screenX = toScreenX(points[i]);
+            float screenY = Math.max(-height, Math.min(2 * height, toScreenY(y)));
+            if (hasPrevious) {
+                if (length + 4 > lines.length)
+                    lines = Arrays.copyOf(lines, lines.length * 2);
+                lines[length++] = previousX;
+                lines[length++] = previousY;
+                lines[length++] = screenX;
+                lines[length++] = screenY;
+            }
+            previousX = screenX;
+            previousY = screenY;
+            hasPrevious = true;
+        }
+        canvas.drawLines(lines, 0, length, curvePaint);
+    }
+}
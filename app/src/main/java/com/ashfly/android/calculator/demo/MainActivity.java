@@ -3,19 +3,17 @@ package com.ashfly.android.calculator.demo;
 import static com.ashfly.android.calculator.demo.DigitAdapter.Item;
 import static com.ashfly.android.calculator.demo.DigitAdapter.Item.EMPTY_ITEM;
 import static com.ashfly.android.calculator.demo.DigitAdapter.OnItemClickListener;
-import static com.ashfly.android.calculator.demo.DigitAdapter.SUPERSCRIPT_SPAN;
 import static com.ashfly.android.calculator.demo.DigitAdapter.VIEW_TYPE_ADVANCED;
 import static com.ashfly.android.calculator.demo.DigitAdapter.VIEW_TYPE_DIGIT;
 import static com.ashfly.android.calculator.demo.DigitAdapter.VIEW_TYPE_OPERATOR;
 import static com.ashfly.android.calculator.demo.DigitAdapter.VIEW_TYPE_SPECIAL;
-import static com.ashfly.android.calculator.demo.EquationBuilder.ADVANCED_OPERATORS;
 import static com.ashfly.android.calculator.demo.EquationBuilder.BASIC_OPERATORS;
 import static com.ashfly.android.calculator.demo.EquationBuilder.DIGIT_CHARS;
 import static com.ashfly.android.calculator.demo.EquationBuilder.EMPTY_CHAR;
-import static com.ashfly.android.calculator.demo.EquationBuilder.SEPARATE_CHARS;
+import static com.ashfly.android.calculator.demo.EquationBuilder.MATH_FUNCTIONS;
 
+import android.content.pm.ApplicationInfo;
 import android.content.res.ColorStateList;
-import android.content.res.Resources;
 import android.graphics.Color;
 import android.graphics.Point;
 import android.graphics.Rect;
@@ -26,14 +24,17 @@ import android.graphics.drawable.StateListDrawable;
 import android.os.Build;
 import android.os.Bundle;
 import android.text.Editable;
-import android.text.SpannableString;
+import android.text.SpannableStringBuilder;
 import android.text.Spanned;
+import android.text.style.ForegroundColorSpan;
 import android.text.style.RelativeSizeSpan;
 import android.text.style.SuperscriptSpan;
+import android.util.LongSparseArray;
 import android.util.TypedValue;
 import android.view.Display;
 import android.view.DisplayCutout;
 import android.view.KeyEvent;
+import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewTreeObserver;
 import android.view.WindowManager;
@@ -43,6 +44,7 @@ import android.widget.TextView;
 
 import androidx.activity.EdgeToEdge;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.content.ContextCompat;
 import androidx.core.graphics.Insets;
@@ -51,19 +53,43 @@ import androidx.core.view.WindowInsetsCompat;
 import androidx.recyclerview.widget.GridLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.math.BigDecimal;
+import java.math.MathContext;
 import java.math.RoundingMode;
-import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
 import java.text.NumberFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class MainActivity extends AppCompatActivity implements OnItemClickListener {
 
-    private final NumberFormat resultFormat = NumberFormat.getNumberInstance();
-    private final NumberFormat originNumFormat = new DecimalFormat("###0");
-    private final NumberFormat expressionFormat = NumberFormat.getNumberInstance();
+    private static final MathContext PRECISE_CONTEXT = MathContext.DECIMAL128; //高精度模式下保留34位有效数字
+    private static final char VARIABLE_X = 'x'; //函数图像的自变量
+    private static final long CALCULATE_TIMEOUT_MILLIS = 3000; //超过这个时间的计算显示为计算量过大
+
+    //计算历史，整个进程共用一个，Activity 重建时不重新打开
+    private static HistoryLog history;
+
+    private final StartupTimings startupTimings = new StartupTimings(); //最先初始化，从这里开始计时
+
+    //格式化用到的地区数据第一次使用时才加载。NumberFormat 和 ResultFormatter 不是线程安全的：
+    //resultFormatter、preciseFormat 只在计算线程中使用，groupingSeparator 只在主线程中使用
+    private ResultFormatter resultFormatter;
+    private NumberFormat preciseFormat;
+    private char groupingSeparator; //算式中整数部分的千位分隔符，0 表示还没有读取
+
+    //结果在后台计算，界面每帧最多显示一次最新的结果
+    private final AtomicReference<ResultText> latestResult = new AtomicReference<>();
+    private BackgroundEvaluator evaluator;
+    private long finalGeneration; //按下等号时提交的请求，0 表示没有等待中的等号
+
     private final List<Item> normalItems = Arrays.asList(
             new Item(R.drawable.ic_expand_more), new Item(R.drawable.ic_backspace), new Item("%"), new Item("÷"),
             new Item('7'), new Item('8'), new Item('9'), new Item("×"),
@@ -71,38 +97,77 @@ public class MainActivity extends AppCompatActivity implements OnItemClickListen
             new Item('3'), new Item('2'), new Item('1'), new Item("+"),
             new Item('0'), new Item('.'), new Item("( )"), new Item("="));
     private final Item RADItem = new Item("RAD"), DEGItem = new Item("DEG");
-    private final List<Item> advancedItems = Arrays.asList(
-            new Item(R.drawable.ic_expand_less), new Item(R.drawable.ic_backspace), new Item("AC"), EMPTY_ITEM,
-            DEGItem, new Item((CharSequence) "sin"), new Item((CharSequence) "cos"), new Item((CharSequence) "tan"),
-            new Item("INV"), new Item('e'), new Item((CharSequence) "ln"), new Item((CharSequence) "lg"),
-            new Item((CharSequence) "√"), new Item('π'), new Item((CharSequence) "^"), new Item((CharSequence) "!"));
-    private final List<Item> INVItems = Arrays.asList(
-            Item.newPowItem("sin", "-1"), Item.newPowItem("cos", "-1"), Item.newPowItem("tan", "-1"),
-            Item.newPowItem("e", "x"), Item.newPowItem("10", "x"), Item.newPowItem("x", "2"));
-    private final List<Item> combinedItems, functionItems;
+    private final Item STDItem = new Item("STD"), PREItem = new Item("PRE");
+    private final Item graphItem = new Item("f(x)");
+    //只在用到时创建：高级面板、INV 和8列的布局
+    private List<Item> advancedItems, INVItems, combinedItems, functionItems;
     private final int[] functionIndexes = new int[]{5, 6, 7, 10, 11, 12}; //因为布局是固定的，所以提前定义好索引，避免动态查询
     private final int[] functionIndexesCombined = new int[]{9, 10, 11, 18, 19, 24};
     private EquationBuilder expressionBuilder = new EquationBuilder();
+    private final ForegroundColorSpan afterCursorSpan = new ForegroundColorSpan(Color.GRAY); //光标之后的文本
+    private int cursorOffset; //光标在显示的算式中的位置
+    private int editStart, editSuffix; //编辑时重新生成文本的第一个记号，和之后不变的记号数量
+    private int editOffset; //editStart 在显示的算式中的位置
+    private CharSequence editWindow; //编辑前 editStart 开始的那一段文本
     private Drawable digitalBackground, operatorBackground, specialBackground;
+    private final LongSparseArray<Drawable[]> backgroundCache = new LongSparseArray<>(); //按键的尺寸 -> 三种背景
     private LinearLayout layout;
     private HorizontalScrollView scroll_expressions, scroll_result;
     private TextView tv_expressions, tv_result;
     private RecyclerView rv_digits;
-    private boolean isRad, isFinalResult, isINV;
+    private boolean isRad, isFinalResult, isINV, isPrecise, isGraphOpen;
     private DigitAdapter adapter;
     private int itemWidth, itemHeight;
     private boolean combinedLayoutStyle;
     private boolean initialized;
+    private int layoutWidth, keypadHeight, expressionHeight; //上次计算按键大小时的布局尺寸
+    private Bundle pendingState; //等第一次布局完成后恢复
     private boolean isAdvancedOpen;
     private View spacer_top;
+    private GraphView graph;
+
+    private List<Item> getAdvancedItems() {
+        if (advancedItems == null) {
+            advancedItems = Arrays.asList(
+                    new Item(R.drawable.ic_expand_less), new Item(R.drawable.ic_backspace), new Item("AC"), STDItem,
+                    DEGItem, new Item((CharSequence) "sin"), new Item((CharSequence) "cos"), new Item((CharSequence) "tan"),
+                    new Item("INV"), new Item('e'), new Item((CharSequence) "ln"), new Item((CharSequence) "lg"),
+                    new Item((CharSequence) "√"), new Item('π'), new Item((CharSequence) "^"), new Item((CharSequence) "!"),
+                    new Item((CharSequence) String.valueOf(VARIABLE_X)), graphItem, EMPTY_ITEM, EMPTY_ITEM);
+        }
+        return advancedItems;
+    }
+
+    private List<Item> getINVItems() {
+        if (INVItems == null) {
+            INVItems = Arrays.asList(
+                    Item.newPowItem("sin", "-1"), Item.newPowItem("cos", "-1"), Item.newPowItem("tan", "-1"),
+                    Item.newPowItem("e", "x"), Item.newPowItem("10", "x"), Item.newPowItem("x", "2"));
+        }
+        return INVItems;
+    }
 
-    public MainActivity() {
+    private List<Item> getFunctionItems() {
+        if (functionItems == null) {
+            functionItems = new ArrayList<>();
+            for (int index : functionIndexes) {
+                functionItems.add(getAdvancedItems().get(index));
+            }
+        }
+        return functionItems;
+    }
+
+    private List<Item> getCombinedItems() {
+        if (combinedItems != null)
+            return combinedItems;
+        List<Item> advancedItems = getAdvancedItems();
         combinedItems = new ArrayList<>();
 
         //row 0
-        for (int i = 0; i <= 3; i++) {
+        for (int i = 0; i < 3; i++) {
             combinedItems.add(EMPTY_ITEM);
         }
+        combinedItems.add(advancedItems.get(3));
         combinedItems.add(advancedItems.get(2));
         combinedItems.add(normalItems.get(1));
         combinedItems.add(normalItems.get(2));
@@ -120,56 +185,105 @@ public class MainActivity extends AppCompatActivity implements OnItemClickListen
         }
 
         //row 4
-        for (int i = 0; i <= 3; i++) {
-            combinedItems.add(EMPTY_ITEM);
+        for (int i = 16; i < 20; i++) {
+            combinedItems.add(advancedItems.get(i));
         }
         combinedItems.add(normalItems.get(16));
         combinedItems.add(normalItems.get(17));
         combinedItems.add(normalItems.get(18));
         combinedItems.add(normalItems.get(19));
-
-        functionItems = new ArrayList<>();
-        for (int index : functionIndexes) {
-            functionItems.add(advancedItems.get(index));
-        }
-    }
-
-    private static int getStringNumLength(String text) {
-        return (text.startsWith("+") || text.startsWith("-")) ? text.length() - 1 : text.length();
+        return combinedItems;
     }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        startupTimings.mark(StartupTimings.CREATE);
         super.onCreate(savedInstanceState);
         enableEdgeToEdge();
         setContentView(R.layout.activity_main);
-
+        startupTimings.mark(StartupTimings.CONTENT_VIEW);
+
+        if (history == null)
+            history = new HistoryLog(new File(getFilesDir(), "history")); //文件在后台线程中打开
+        //只在可调试的版本中统计，发布版本不产生任何开销
+        if (EquationBuilder.getMetrics() == null && (getApplicationInfo().flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0)
+            EquationBuilder.setMetrics(new CalculatorMetrics());
+        evaluator = new BackgroundEvaluator(this::onEvaluated, CalculateBudget.UNLIMITED, CALCULATE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
         initViews();
+        startupTimings.mark(StartupTimings.VIEWS);
 
+        //insets 在测量之前分发，直接调整边距，第一次布局就是最终的尺寸
         if (Build.VERSION.SDK_INT >= 21) {
-            ViewCompat.setOnApplyWindowInsetsListener(layout, ((v, insets) -> {
-                layout.post(() -> {
-                    initEdgeToEdge(insets);
-
-                    layout.post(()-> {
-                        initViewSizes();
-                        initDrawables(itemWidth, itemHeight);
-                        if (!initialized) {
-                            initDigits();
-                            postRestoreInstanceState(savedInstanceState);
-                        }
-                    });
-                });
+            ViewCompat.setOnApplyWindowInsetsListener(layout, (v, insets) -> {
+                initEdgeToEdge(insets);
                 return insets;
-            }));
-        } else {
-            layout.post(() -> {
-                initViewSizes();
-                initDrawables(itemWidth, itemHeight);
-                initDigits();
-                postRestoreInstanceState(savedInstanceState);
             });
         }
+        pendingState = savedInstanceState;
+        layout.getViewTreeObserver().addOnPreDrawListener(this::onLayoutPreDraw);
+    }
+
+    /*
+     * 每次绘制之前检查布局的尺寸：第一次布局完成时创建键盘，之后插入 insets、打开函数图像等改变尺寸时重新计算按键大小。
+     * 尺寸变化时取消这一帧，下一次遍历按新的按键布局，所以第一帧就能画出键盘
+     */
+    private boolean onLayoutPreDraw() {
+        int width = layout.getWidth() - layout.getPaddingLeft() - layout.getPaddingRight();
+        int rvHeight = rv_digits.getHeight() - rv_digits.getPaddingBottom();
+        int tvHeight = tv_expressions.getHeight();
+        if (initialized && width == layoutWidth && rvHeight == keypadHeight && tvHeight == expressionHeight) {
+            startupTimings.mark(StartupTimings.FIRST_FRAME);
+            return true;
+        }
+        if (width <= 0 || rvHeight <= 0)
+            return true;
+        layoutWidth = width;
+        keypadHeight = rvHeight;
+        expressionHeight = tvHeight;
+
+        startupTimings.mark(StartupTimings.FIRST_LAYOUT);
+        initViewSizes();
+        initDrawables(itemWidth, itemHeight);
+        if (!initialized) {
+            initDigits();
+            startupTimings.mark(StartupTimings.KEYPAD);
+            postRestoreInstanceState(pendingState);
+            pendingState = null;
+            startupTimings.mark(StartupTimings.RESTORE);
+        } else {
+            adapter.setBackgrounds(digitalBackground, operatorBackground, specialBackground);
+        }
+        return false;
+    }
+
+    public StartupTimings getStartupTimings() {
+        return startupTimings;
+    }
+
+    //adb shell dumpsys activity com.ashfly.android.calculator.demo 时附带输出统计
+    @Override
+    public void dump(@NonNull String prefix, @Nullable FileDescriptor fd, @NonNull PrintWriter writer, @Nullable String[] args) {
+        super.dump(prefix, fd, writer, args);
+        writer.print(prefix);
+        writer.println("StartupTimings:");
+        startupTimings.dump(prefix + "  ", writer);
+
+        CalculatorMetrics metrics = EquationBuilder.getMetrics();
+        if (metrics == null)
+            return;
+        writer.print(prefix);
+        writer.println("CalculatorMetrics:");
+        for (String line : metrics.dump().split("\n")) {
+            writer.print(prefix);
+            writer.print("  ");
+            writer.println(line);
+        }
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        evaluator.shutdown();
     }
 
     private void initEdgeToEdge(WindowInsetsCompat insets) {
@@ -184,7 +298,10 @@ public class MainActivity extends AppCompatActivity implements OnItemClickListen
                 DisplayCutout cutout = display.getCutout();
 
 
-                if (cutout != null) {
+                if (cutout != null && !ViewCompat.isLaidOut(layout)) {
+                    //需要布局的位置，布局完成后再分发一次
+                    layout.post(() -> ViewCompat.requestApplyInsets(layout));
+                } else if (cutout != null) {
 
                     int[] position = new int[2];
                     layout.getLocationOnScreen(position);
@@ -230,7 +347,21 @@ public class MainActivity extends AppCompatActivity implements OnItemClickListen
             getWindow().getAttributes().layoutInDisplayCutoutMode = WindowManager.LayoutParams.LAYOUT_IN_DISPLAY_CUTOUT_MODE_SHORT_EDGES;
     }
 
+    //同一个尺寸的背景只创建一次，打开和关闭函数图像时在两个尺寸之间切换
     private void initDrawables(int width, int height) {
+        long key = (long) width << 32 | height;
+        Drawable[] backgrounds = backgroundCache.get(key);
+        if (backgrounds == null) {
+            createDrawables(width, height);
+            backgroundCache.put(key, new Drawable[]{digitalBackground, operatorBackground, specialBackground});
+        } else {
+            digitalBackground = backgrounds[0];
+            operatorBackground = backgrounds[1];
+            specialBackground = backgrounds[2];
+        }
+    }
+
+    private void createDrawables(int width, int height) {
         GradientDrawable baseShape = new GradientDrawable();
         baseShape.setSize(width, height);
         baseShape.setCornerRadius(Math.min(width, height) / 2f);
@@ -275,7 +406,10 @@ public class MainActivity extends AppCompatActivity implements OnItemClickListen
         itemHeight = rvHeight / rows;
 
         int columns;
-        if (width >= itemHeight * 8) {
+        if (initialized) {
+            //打开函数图像后键盘变矮，布局样式保持不变
+            columns = combinedLayoutStyle ? 8 : 4;
+        } else if (width >= itemHeight * 8) {
             columns = 8;
             combinedLayoutStyle = true;
         } else {
@@ -300,10 +434,12 @@ public class MainActivity extends AppCompatActivity implements OnItemClickListen
         tv_expressions = findViewById(R.id.tv_expressions);
         scroll_expressions = findViewById(R.id.scroll_expressions);
         tv_expressions.setText("", TextView.BufferType.EDITABLE);
+        tv_expressions.setOnTouchListener(this::onExpressionTouch);
         tv_result = findViewById(R.id.tv_result);
         scroll_result = findViewById(R.id.scroll_result);
         rv_digits = findViewById(R.id.rv_digits);
         spacer_top = findViewById(R.id.spacer_top);
+        graph = findViewById(R.id.graph);
     }
 
     private void initDigits() {
@@ -316,22 +452,20 @@ public class MainActivity extends AppCompatActivity implements OnItemClickListen
 
         rv_digits.setLayoutManager(new GridLayoutManager(this, combinedLayoutStyle ? 8 : 4));
 
-        adapter = new DigitAdapter(itemWidth, itemHeight, combinedLayoutStyle ? combinedItems : normalItems);
+        adapter = new DigitAdapter(itemWidth, itemHeight, combinedLayoutStyle ? getCombinedItems() : normalItems);
 
         adapter.setOnItemClickListener(this);
         adapter.setBackgrounds(digitalBackground, operatorBackground, specialBackground);
         rv_digits.setAdapter(adapter);
-
-        //默认启用千分位分隔符
-        originNumFormat.setMaximumFractionDigits(14);
-        originNumFormat.setRoundingMode(RoundingMode.HALF_UP);
-        resultFormat.setMaximumFractionDigits(14);
-        resultFormat.setRoundingMode(RoundingMode.HALF_UP);
         initialized = true;
     }
 
     @Override
     public void onClick(Item item) {
+        CalculatorMetrics metrics = EquationBuilder.getMetrics();
+        if (metrics != null)
+            metrics.count(CalculatorMetrics.KEYSTROKES);
+
         int viewType = item.viewType;
         switch (viewType) {
             case VIEW_TYPE_DIGIT:
@@ -360,7 +494,10 @@ public class MainActivity extends AppCompatActivity implements OnItemClickListen
                 int length = advanced.length();
 
                 if (length == 1) {
-                    appendOperator(advanced.charAt(0));
+                    if (advanced.charAt(0) == VARIABLE_X)
+                        appendVariable();
+                    else
+                        appendOperator(advanced.charAt(0));
                     performCalculate();
                     break;
                 }
@@ -411,6 +548,15 @@ public class MainActivity extends AppCompatActivity implements OnItemClickListen
                     performSwitchINV(!isINV);
                     break;
                 }
+                if (operator.equals("STD") || operator.equals("PRE")) {
+                    performSwitchPrecise(!isPrecise);
+                    performCalculate();
+                    break;
+                }
+                if (item == graphItem) {
+                    performSwitchGraph(!isGraphOpen);
+                    break;
+                }
 
                 if (isFinalResult)
                     break;
@@ -440,11 +586,17 @@ public class MainActivity extends AppCompatActivity implements OnItemClickListen
             return;
         this.isAdvancedOpen = open;
         if (open) {
-            adapter.setItems(advancedItems);
+            //先换好 RAD、PRE 和 INV 对应的按键，每个按键只绑定一次
+            List<Item> items = new ArrayList<>(getAdvancedItems());
             if (isRad)
-                adapter.setItem(4, RADItem);
-            if (isINV)
-                performSwitchINV(true);
+                items.set(4, RADItem);
+            if (isPrecise)
+                items.set(3, PREItem);
+            if (isINV) {
+                for (int i = 0; i < functionIndexes.length; i++)
+                    items.set(functionIndexes[i], getINVItems().get(i));
+            }
+            adapter.setItems(items);
         } else {
             adapter.setItems(normalItems);
         }
@@ -454,9 +606,9 @@ public class MainActivity extends AppCompatActivity implements OnItemClickListen
         this.isINV = isINV;
         int[] indexes = combinedLayoutStyle ? functionIndexesCombined : functionIndexes;
         if (isINV) {
-            adapter.setItems(indexes, INVItems);
+            adapter.setItems(indexes, getINVItems());
         } else {
-            adapter.setItems(indexes, functionItems);
+            adapter.setItems(indexes, getFunctionItems());
         }
     }
 
@@ -471,71 +623,109 @@ public class MainActivity extends AppCompatActivity implements OnItemClickListen
         }
     }
 
-    private boolean appendFunction(CharSequence advanced) {
-        if (!expressionBuilder.appendLeadingFunction(advanced.toString()))
-            return false;
+    private void performSwitchPrecise(boolean precise) {
+        this.isPrecise = precise;
 
-        Editable text = tv_expressions.getEditableText();
-        text.append(advanced.toString());
+        Item item = precise ? PREItem : STDItem;
+        if (combinedLayoutStyle || isAdvancedOpen) {
+            adapter.setItem(3, item);
+        }
+    }
 
-        if (advanced instanceof SpannableString) {
-            SpannableString spannable = (SpannableString) advanced;
+    private void performSwitchGraph(boolean open) {
+        this.isGraphOpen = open;
+        graph.setVisibility(open ? View.VISIBLE : View.GONE);
+        updateGraph();
+        //键盘的高度变了，按键的大小在下一次绘制之前重新计算，见 onLayoutPreDraw
+    }
 
-            //拼接时需要在新的位置设置新的Span
-            int appendedLength = text.length();
-            int start = appendedLength - spannable.length() + spannable.getSpanStart(SUPERSCRIPT_SPAN);
-            text.setSpan(new SuperscriptSpan(), start, appendedLength, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
-            text.setSpan(new RelativeSizeSpan(0.5f), start, appendedLength, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    //把正在输入的算式作为 x 的函数绘制，只看算式本身，恢复状态时显示的文本可能还没有设置
+    private void updateGraph() {
+        if (!isGraphOpen)
+            return;
+
+        CompiledExpression expression = null;
+        if (!isFinalResult && expressionBuilder.getTokenCount() > 0) {
+            try {
+                expression = expressionBuilder.compile(VARIABLE_X);
+            } catch (EquationBuilder.CalculateException ignored) {
+            }
         }
-        tv_expressions.append("(");
-        scroll_expressions.post(() -> scroll_expressions.fullScroll(View.FOCUS_RIGHT));
-        return true;
+        graph.setExpression(expression, isRad);
+    }
+
+    private boolean appendVariable() {
+        beginEdit();
+        boolean appended = expressionBuilder.appendVariable(VARIABLE_X);
+        endEdit();
+        return appended;
     }
 
+    private boolean appendFunction(CharSequence advanced) {
+        beginEdit();
+        boolean appended = expressionBuilder.appendLeadingFunction(advanced.toString());
+        endEdit();
+        return appended;
+    }
+
+    //结果显示之前同样不再接受输入，结果由 showFinalResult 显示
     private void performEqualSign() {
         isFinalResult = true;
+        finalGeneration = evaluator.submit(expressionBuilder, isRad, isPrecise ? PRECISE_CONTEXT : null);
+    }
+
+    private void showFinalResult(ResultText result) {
+        finalGeneration = 0;
+        recordHistory(result.evaluation);
         expressionBuilder.clear();
-        tv_expressions.setText(tv_result.getText(), TextView.BufferType.EDITABLE);
+        tv_expressions.setText(result.text, TextView.BufferType.EDITABLE);
+        cursorOffset = 0;
         tv_result.setText("");
     }
 
+    //结果通常已经在输入时算过，从缓存取出；写入在后台线程中进行
+    private void recordHistory(BackgroundEvaluator.Evaluation evaluation) {
+        EquationBuilder equation = evaluation.getEquation();
+        if (equation.build().isEmpty())
+            return;
+        RuntimeException error = evaluation.getError();
+        if (error == null)
+            history.append(equation, evaluation.isRad(), evaluation.getValue());
+        else if (error instanceof EquationBuilder.CalculateException)
+            history.append(equation, evaluation.isRad(), (EquationBuilder.CalculateException) error);
+    }
+
     private void performAllClear() {
+        evaluator.discard();
+        finalGeneration = 0;
         expressionBuilder.clear();
         tv_expressions.setText("", TextView.BufferType.EDITABLE);
+        cursorOffset = 0;
         tv_result.setText("0");
         tv_result.setTextColor(Color.GRAY);
         isFinalResult = false;
+        updateGraph();
     }
 
     private boolean appendOperator(char operator) {
-        if (!expressionBuilder.appendChar(operator))
-            return false;
-        tv_expressions.append(String.valueOf(operator));
-        scroll_expressions.post(() -> scroll_expressions.fullScroll(View.FOCUS_RIGHT));
-        return true;
+        beginEdit();
+        boolean appended = expressionBuilder.appendChar(operator);
+        endEdit();
+        return appended;
     }
 
     private boolean appendBracket() {
+        beginEdit();
         char bracket = expressionBuilder.appendBracket();
-        if (bracket == EMPTY_CHAR)
-            return false;
-        tv_expressions.append(String.valueOf(bracket));
-        scroll_expressions.post(() -> scroll_expressions.fullScroll(View.FOCUS_RIGHT));
-        return true;
+        endEdit();
+        return bracket != EMPTY_CHAR;
     }
 
     private boolean appendDigit(char digit) {
-        if (!expressionBuilder.appendChar(digit))
-            return false;
-        Editable text = tv_expressions.getEditableText();
-        String numberString = expressionBuilder.getCurrentNumberString();
-        if (numberString.length() < 3 || numberString.contains("."))
-            text.append(digit);
-        else
-            performExpressionThousandSeparator(text, numberString);
-
-        scroll_expressions.post(() -> scroll_expressions.fullScroll(View.FOCUS_RIGHT));
-        return true;
+        beginEdit();
+        boolean appended = expressionBuilder.appendChar(digit);
+        endEdit();
+        return appended;
     }
 
     private void performBackspace() {
@@ -543,87 +733,140 @@ public class MainActivity extends AppCompatActivity implements OnItemClickListen
             performAllClear();
             return;
         }
-        Editable text = tv_expressions.getEditableText();
-        int displayedTotalLength = text.length();
-        if (displayedTotalLength == 0)
+        int cursor = expressionBuilder.getCursor();
+        if (cursor == 0)
             return;
 
-        char displayedLastChar = text.charAt(displayedTotalLength - 1);
-        char deletedChar = expressionBuilder.backspace(displayedLastChar);
+        //光标前面的字符，记号的开头可能是空的占位记号，所以多取一个
+        String before = expressionBuilder.build(Math.max(0, cursor - 2), cursor);
+        beginEdit();
+        expressionBuilder.backspace(before.isEmpty() ? EMPTY_CHAR : before.charAt(before.length() - 1));
+        endEdit();
+    }
 
-        if (deletedChar != displayedLastChar) {
-            text.delete(text.toString().lastIndexOf(deletedChar), displayedTotalLength);
-        } else if (ADVANCED_OPERATORS.contains(deletedChar) || SEPARATE_CHARS.contains(deletedChar) || BASIC_OPERATORS.contains(deletedChar)) {
-            text.delete(displayedTotalLength - 1, displayedTotalLength);
-        } else {
-            String numberString = expressionBuilder.getCurrentNumberString();
-            if (numberString.contains(".") || deletedChar == '.')
-                text.delete(displayedTotalLength - 1, displayedTotalLength);
-            else {
-                int length = getStringNumLength(numberString);
-                if (length < 3)
-                    text.delete(displayedTotalLength - 1, displayedTotalLength);
-                else
-                    performExpressionThousandSeparator(text, numberString);
+    //编辑只改动光标前后各三个记号之内的内容，之外的文本不用重新生成，每次按键的工作量与算式的长度无关
+    private void beginEdit() {
+        int cursor = expressionBuilder.getCursor(), count = expressionBuilder.getTokenCount();
+        int end = Math.min(count, cursor + 3);
+        editStart = Math.max(0, cursor - 3);
+        editSuffix = count - end;
+        editOffset = cursorOffset - buildDisplayedExpression(editStart, cursor).length();
+        editWindow = buildDisplayedExpression(editStart, end);
+    }
 
-            }
+    //重新生成编辑过的那一段，只替换与编辑前不同的字符，两边相同的部分和它们的 Span 保持不变
+    private void endEdit() {
+        int cursor = expressionBuilder.getCursor();
+        CharSequence window = buildDisplayedExpression(editStart, expressionBuilder.getTokenCount() - editSuffix);
+        Editable text = tv_expressions.getEditableText();
+
+        int head = 0, oldEnd = editWindow.length(), newEnd = window.length();
+        while (head < oldEnd && head < newEnd && editWindow.charAt(head) == window.charAt(head))
+            head++;
+        while (oldEnd > head && newEnd > head && editWindow.charAt(oldEnd - 1) == window.charAt(newEnd - 1)) {
+            oldEnd--;
+            newEnd--;
         }
+        if (head < oldEnd || head < newEnd)
+            text.replace(editOffset + head, editOffset + oldEnd, window, head, newEnd);
+        editWindow = null;
 
-        scroll_expressions.post(() -> scroll_expressions.fullScroll(View.FOCUS_RIGHT));
+        cursorOffset = editOffset + buildDisplayedExpression(editStart, cursor).length();
+        showCursor();
     }
 
-    private void performExpressionThousandSeparator(Editable text, String currentNumberString) {
-        if (currentNumberString.contains("."))
-            return;
+    //光标之后的文本显示为灰色；光标在末尾时才滚动到最右边
+    private void showCursor() {
+        Editable text = tv_expressions.getEditableText();
+        if (cursorOffset >= text.length()) {
+            text.removeSpan(afterCursorSpan);
+            scroll_expressions.post(() -> scroll_expressions.fullScroll(View.FOCUS_RIGHT));
+        } else {
+            text.setSpan(afterCursorSpan, cursorOffset, text.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+    }
 
-        //先将原有的整数部分全部删掉，再替换成千位分隔符格式
+    //点击算式时把光标移到最近的记号边界，函数和它的左括号之间不算
+    private boolean onExpressionTouch(View v, MotionEvent event) {
+        if (isFinalResult)
+            return false;
+        if (event.getAction() != MotionEvent.ACTION_UP)
+            return true;
+        v.performClick();
+
+        int offset = tv_expressions.getOffsetForPosition(event.getX(), event.getY());
+        int count = expressionBuilder.getTokenCount();
+        int position = 0, end = 0, next = 0;
+        for (int i = 0; i < count; i++) {
+            next += buildDisplayedExpression(i, i + 1).length();
+            if (!expressionBuilder.isCursorStop(i + 1))
+                continue;
+            if (next - offset > offset - end)
+                break;
+            position = i + 1;
+            end = next;
+        }
 
-        char check;
-        int length = text.length();
-        int deleteStart = length;
-        char firstChar = currentNumberString.charAt(0);
+        expressionBuilder.setCursor(position);
+        //移开光标可能删除空的记号，重新生成全部文本
+        tv_expressions.setText(buildDisplayedExpression(0, expressionBuilder.getTokenCount()), TextView.BufferType.EDITABLE);
+        cursorOffset = buildDisplayedExpression(0, expressionBuilder.getCursor()).length();
+        showCursor();
+        return true;
+    }
 
-        while (deleteStart > 0) {
+    private void performCalculate() {
+        updateGraph();
+        long generation = evaluator.submit(expressionBuilder, isRad, isPrecise ? PRECISE_CONTEXT : null);
+        //等号的结果还没有显示时切换了 RAD 或 PRE，新的请求会使它过期，改为等待按新模式计算的结果
+        if (finalGeneration != 0)
+            finalGeneration = generation;
+    }
 
-            //正负号说明我们来到了数字的开头
-            check = text.charAt(deleteStart - 1);
-            if (firstChar == '+' || firstChar == '-') {
-                if (check == firstChar) {
-                    deleteStart--;
-                    break;
-                }
-            }
+    //在计算线程中调用：格式化结果，并在下一帧显示
+    private void onEvaluated(BackgroundEvaluator.Evaluation evaluation) {
+        CalculatorMetrics metrics = EquationBuilder.getMetrics();
+        long start = metrics == null ? 0 : System.nanoTime();
+        ResultText result = new ResultText(evaluation, formatResult(evaluation));
+        if (metrics != null)
+            metrics.record(CalculatorMetrics.FORMAT, System.nanoTime() - start);
+        if (latestResult.getAndSet(result) == null)
+            tv_result.postOnAnimation(this::showLatestResult);
+    }
 
-            //删掉数字
-            if (DIGIT_CHARS.contains(check) || check == ',') {
-                deleteStart--;
-            } else {
-                break;
-            }
+    //这一帧之前送达的结果中只显示最后一个，之后又有新的输入时也不显示
+    private void showLatestResult() {
+        ResultText result = latestResult.getAndSet(null);
+        if (result == null || !evaluator.isLatest(result.evaluation.getGeneration()))
+            return;
+        if (result.evaluation.getGeneration() == finalGeneration) {
+            showFinalResult(result);
+            return;
         }
-        text.delete(deleteStart, length);
-
-        //把刚才的正号补回来,不然正号会被忽略
-        if (firstChar == '+')
-            text.append(firstChar);
 
-        double number = expressionBuilder.getCurrentNumber();
-        String format = expressionFormat.format(number);
-        text.append(format);
+        tv_result.setText(result.text);
+        if (result.evaluation.getError() != null) {
+            tv_result.setTextColor(Color.RED);
+        } else {
+            tv_result.setTextColor(Color.GRAY);
+            scroll_result.post(() -> scroll_result.fullScroll(View.FOCUS_LEFT));
+        }
     }
 
-    private void performCalculate() {
+    private String formatResult(BackgroundEvaluator.Evaluation evaluation) {
         String resultTextDisplay = null;
 
         Double result = null;
-        try {
-            result = expressionBuilder.calculate(isRad);
-        } catch (Exception e) {
+        RuntimeException e = evaluation.getError();
+        if (e == null) {
+            if (evaluation.getPreciseValue() != null)
+                resultTextDisplay = formatPrecise(evaluation.getPreciseValue());
+            result = evaluation.getValue();
+        } else {
             if (e instanceof EquationBuilder.CalculateException) {
-                try {
-                    resultTextDisplay = getString(((EquationBuilder.CalculateException) e).textResourceId);
-                } catch (Resources.NotFoundException ignored) {
-                }
+                int textResourceId = getReasonText(((EquationBuilder.CalculateException) e).reason);
+                if (textResourceId != 0)
+                    resultTextDisplay = getString(textResourceId);
             }
             if (resultTextDisplay == null) {
                 String message = e.getMessage();
@@ -634,40 +877,61 @@ public class MainActivity extends AppCompatActivity implements OnItemClickListen
             }
         }
 
-        if (result != null) {
-            String origin = originNumFormat.format(result); //去除double自动添加的科学记数法
-
-            if (origin.equals("0") || origin.equals("-0")) {
-                resultTextDisplay = "0";
-            } else {
-                String resultString = result.toString();
-                int dotIndex = resultString.indexOf("."), EIndex = resultString.indexOf("E");
-                if (dotIndex >= 0) {
-                    if (EIndex > dotIndex) {
-                        int fractionalLength = resultString.substring(dotIndex + 1, EIndex).length();
-                        int ELength = Integer.parseInt(resultString.substring(EIndex + 1));
-                        if (ELength <= -10 ||
-                                (ELength > fractionalLength && ELength >= 10)) {
-                            resultTextDisplay = resultString; //需要使用科学记数法
-                        }
-                    }
-                }
-            }
+        if (resultTextDisplay == null)
+            resultTextDisplay = getResultFormatter().format(result);
+        return resultTextDisplay;
+    }
+
+    //出错原因对应的文字，未知的原因返回0
+    private static int getReasonText(int reason) {
+        switch (reason) {
+            case EquationBuilder.CalculateException.FORMAT_ERROR:
+                return R.string.formate_wrong;
+            case EquationBuilder.CalculateException.TOO_GIGANTIC:
+                return R.string.value_too_gigantic;
+            case EquationBuilder.CalculateException.NOT_A_NUMBER:
+                return R.string.NaN;
+            case EquationBuilder.CalculateException.OUT_OF_DOMAIN:
+                return R.string.beyond_define_domain;
+            case EquationBuilder.CalculateException.DIVIDE_BY_ZERO:
+                return R.string.cannot_divide_by_zero;
+            case EquationBuilder.CalculateException.UNDEFINED_VARIABLE:
+                return R.string.undefined_variable;
+            case EquationBuilder.CalculateException.BUDGET_EXCEEDED:
+                return R.string.budget_exceeded;
+            default:
+                return 0;
         }
+    }
 
+    //高精度结果按有效数字显示，数量级过大或过小时使用科学记数法
+    private String formatPrecise(BigDecimal result) {
+        if (result.signum() == 0)
+            return "0";
 
-        if (resultTextDisplay == null)
-            resultTextDisplay = resultFormat.format(result);
+        BigDecimal stripped = result.stripTrailingZeros();
+        int exponent = stripped.precision() - stripped.scale() - 1;
+        if (exponent <= -10 || exponent >= 20)
+            return stripped.toString();
+        return getPreciseFormat().format(stripped);
+    }
 
-        tv_result.setText(resultTextDisplay);
-        if (result == null) {
-            tv_result.setTextColor(Color.RED);
-        } else {
-            tv_result.setTextColor(Color.GRAY);
-            scroll_result.post(() -> scroll_result.fullScroll(View.FOCUS_LEFT));
-        }
+    //在计算线程中调用
+    private ResultFormatter getResultFormatter() {
+        if (resultFormatter == null)
+            resultFormatter = new ResultFormatter(DecimalFormatSymbols.getInstance());
+        return resultFormatter;
     }
 
+    //在计算线程中调用，默认启用千分位分隔符
+    private NumberFormat getPreciseFormat() {
+        if (preciseFormat == null) {
+            preciseFormat = NumberFormat.getNumberInstance();
+            preciseFormat.setMaximumFractionDigits(PRECISE_CONTEXT.getPrecision());
+            preciseFormat.setRoundingMode(RoundingMode.HALF_UP);
+        }
+        return preciseFormat;
+    }
 
     @Override
     protected void onSaveInstanceState(@NonNull Bundle outState) {
@@ -675,16 +939,19 @@ public class MainActivity extends AppCompatActivity implements OnItemClickListen
 
         outState.putBoolean("isINV", isINV);
         outState.putBoolean("isRad", isRad);
+        outState.putBoolean("isPrecise", isPrecise);
+        outState.putBoolean("isGraphOpen", isGraphOpen);
         outState.putBoolean("isAdvancedOpen", isAdvancedOpen);
 
-        if (isFinalResult)
+        //算式只保存紧凑的二进制形式，显示的文本恢复时重新生成
+        //等号的结果还没有显示时，按正在输入的算式保存
+        if (isFinalResult && finalGeneration == 0) {
             outState.putBoolean("isFinalResult", true);
-        else {
-            outState.putParcelable("expressionBuilder", expressionBuilder);
+            outState.putString("displayedResult", tv_expressions.getText().toString());
+        } else {
+            outState.putByteArray("expressionBuilder", expressionBuilder.toByteArray());
             outState.putBoolean("isFinalResult", false);
         }
-
-        outState.putCharSequence("displayedExpression", tv_expressions.getText());
     }
 
     //不是重写onRestoreInstanceState(Bundle)
@@ -698,16 +965,88 @@ public class MainActivity extends AppCompatActivity implements OnItemClickListen
         if (savedInstanceState.getBoolean("isRad")) {
             performSwitchRad(true);
         }
+        if (savedInstanceState.getBoolean("isPrecise")) {
+            performSwitchPrecise(true);
+        }
         if (!combinedLayoutStyle && savedInstanceState.getBoolean("isAdvancedOpen")) {
             performSwitchAdvancedPanel(true);
         }
+        if (savedInstanceState.getBoolean("isGraphOpen")) {
+            performSwitchGraph(true);
+        }
         if (savedInstanceState.getBoolean("isFinalResult")) {
             isFinalResult = true;
+            tv_expressions.setText(savedInstanceState.getString("displayedResult"), TextView.BufferType.EDITABLE);
         } else {
-            expressionBuilder = (EquationBuilder) savedInstanceState.get("expressionBuilder");
+            expressionBuilder = EquationBuilder.fromByteArray(savedInstanceState.getByteArray("expressionBuilder"));
             performCalculate();
+            tv_expressions.setText(buildDisplayedExpression(0, expressionBuilder.getTokenCount()), TextView.BufferType.EDITABLE);
+            cursorOffset = buildDisplayedExpression(0, expressionBuilder.getCursor()).length();
+            showCursor();
         }
-        tv_expressions.setText(savedInstanceState.getCharSequence("displayedExpression"), TextView.BufferType.EDITABLE);
+    }
+
+    private char getGroupingSeparator() {
+        if (groupingSeparator == 0)
+            groupingSeparator = DecimalFormatSymbols.getInstance().getGroupingSeparator();
+        return groupingSeparator;
+    }
 
+    //由第 from 到 to 个记号生成显示的文本：整数部分带千位分隔符，反三角函数的 -1 是上标。
+    //数字不会跨越记号，所以几段文本拼起来和整体生成的相同
+    private CharSequence buildDisplayedExpression(int from, int to) {
+        String equation = expressionBuilder.build(from, to);
+        SpannableStringBuilder text = new SpannableStringBuilder();
+        int length = equation.length();
+        for (int i = 0; i < length; ) {
+            String function = null;
+            for (String name : MATH_FUNCTIONS) {
+                if (equation.startsWith(name, i)) {
+                    function = name;
+                    break;
+                }
+            }
+            if (function != null) {
+                text.append(function);
+                if (function.endsWith("-1")) {
+                    int start = text.length() - 2;
+                    text.setSpan(new SuperscriptSpan(), start, text.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                    text.setSpan(new RelativeSizeSpan(0.5f), start, text.length(), Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                }
+                i += function.length();
+                continue;
+            }
+
+            char c = equation.charAt(i);
+            if (!DIGIT_CHARS.contains(c)) {
+                text.append(c);
+                i++;
+                continue;
+            }
+
+            //只有小数点前的整数部分带分隔符，直接按位插入，不用把数字解析出来再格式化
+            int end = i;
+            while (end < length && DIGIT_CHARS.contains(equation.charAt(end)))
+                end++;
+            boolean fraction = i > 0 && equation.charAt(i - 1) == '.';
+            for (int k = i; k < end; k++) {
+                if (!fraction && k > i && (end - k) % 3 == 0)
+                    text.append(getGroupingSeparator());
+                text.append(equation.charAt(k));
+            }
+            i = end;
+        }
+        return text;
+    }
+
+    //在计算线程中格式化好的结果
+    private static final class ResultText {
+        final BackgroundEvaluator.Evaluation evaluation;
+        final String text;
+
+        ResultText(BackgroundEvaluator.Evaluation evaluation, String text) {
+            this.evaluation = evaluation;
+            this.text = text;
+        }
     }
 }
\ No newline at end of file
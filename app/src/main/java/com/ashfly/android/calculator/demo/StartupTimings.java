@@ -0,0 +1,61 @@
+package com.ashfly.android.calculator.demo;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+/**
+ * MainActivity 启动时各阶段结束的时间，从 Activity 创建时算起，每个阶段只记录第一次。
+ * 通过 dumpsys 输出，用来发现冷启动变慢；Android 7.0 以上还输出从进程启动到 Activity 创建的时间。
+ * 只在主线程中使用。
+ */
+public final class StartupTimings {
+
+    public static final int CREATE = 0; //onCreate 开始
+    public static final int CONTENT_VIEW = 1; //setContentView
+    public static final int VIEWS = 2; //找到各个 View，打开历史记录，启动计算线程
+    public static final int FIRST_LAYOUT = 3; //第一次布局完成
+    public static final int KEYPAD = 4; //按键的大小、背景和 Adapter
+    public static final int RESTORE = 5; //恢复保存的状态
+    public static final int FIRST_FRAME = 6; //第一次绘制，这时键盘已经布局好
+    private static final String[] PHASE_NAMES = {"create", "content view", "views", "first layout", "keypad", "restore", "first frame"};
+
+    private final long start = SystemClock.elapsedRealtimeNanos();
+    private final long[] ends = new long[PHASE_NAMES.length];
+
+    void mark(int phase) {
+        if (ends[phase] == 0)
+            ends[phase] = SystemClock.elapsedRealtimeNanos();
+    }
+
+    /**
+     * @return 从 Activity 创建到这一阶段结束的纳秒数，还没有到达时返回 -1
+     */
+    public long getElapsed(int phase) {
+        return ends[phase] == 0 ? -1 : ends[phase] - start;
+    }
+
+    /**
+     * 每个阶段一行：累计的时间和这一阶段自己的时间
+     */
+    public void dump(String prefix, PrintWriter writer) {
+        if (Build.VERSION.SDK_INT >= 24) {
+            writer.print(prefix);
+            writer.println(String.format(Locale.ROOT, "process start -> activity: %.1f ms",
+                    (start - Process.getStartElapsedRealtime() * 1000000L) / 1e6));
+        }
+        long previous = start;
+        for (int i = 0; i < PHASE_NAMES.length; i++) {
+            writer.print(prefix);
+            if (ends[i] == 0) {
+                writer.println(PHASE_NAMES[i] + ": -");
+                continue;
+            }
+            writer.println(String.format(Locale.ROOT, "%s: %.1f ms (+%.1f ms)", PHASE_NAMES[i], (ends[i] - start) / 1e6, (ends[i] - previous) / 1e6));
+            previous = ends[i];
+        }
+    }
+}
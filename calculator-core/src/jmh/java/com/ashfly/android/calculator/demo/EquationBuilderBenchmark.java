@@ -0,0 +1,182 @@
+package com.ashfly.android.calculator.demo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * EquationBuilder 的基准测试，运行方式见 build.gradle
+ * <p>
+ * 每个算式用按键序列表示，和界面上逐个按键的调用方式相同：
+ * '(' ')' 调用 {@link EquationBuilder#appendBracket()}，
+ * S C T L G X 分别是 sin cos tan ln lg exp，s c t 分别是 sin-1 cos-1 tan-1（函数自带左括号），
+ * 其余字符调用 {@link EquationBuilder#appendChar(char)}。
+ * 计算时关闭结果缓存，否则测到的只是查表。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EquationBuilderBenchmark {
+
+    private static final String FUNCTION_KEYS = "SCTLGXsct";
+    private static final String[] FUNCTIONS = {"sin", "cos", "tan", "ln", "lg", "exp", "sin-1", "cos-1", "tan-1"};
+
+    @State(Scope.Thread)
+    public static class Expression {
+
+        @Param({"short", "long", "nested", "functions"})
+        public String shape;
+
+        String keys;
+        String equation; //按键得到的算式文本，用于解析
+        EquationBuilder typed;
+        private ResultCache savedCache;
+
+        @Setup(Level.Trial)
+        public void setUp() {
+            keys = keysOf(shape);
+            typed = type(keys);
+            equation = typed.build();
+
+            //按键和解析必须得到同一个算式，否则测的不是同一件事
+            EquationBuilder parsed = EquationBuilder.Parser.parseEquation(equation);
+            if (!equation.equals(parsed.build()))
+                throw new IllegalStateException("Keys and equation differ: " + equation + " / " + parsed.build());
+
+            savedCache = EquationBuilder.getResultCache();
+            EquationBuilder.setResultCache(null);
+            double typedResult = typed.calculate(false), parsedResult = parsed.calculate(false);
+            if (Double.doubleToLongBits(typedResult) != Double.doubleToLongBits(parsedResult))
+                throw new IllegalStateException("Results differ: " + typedResult + " / " + parsedResult);
+
+            EquationBuilder erased = type(keys);
+            for (int i = 0; i < keys.length(); i++)
+                erased.backspace(EquationBuilder.EMPTY_CHAR);
+            if (!erased.build().isEmpty())
+                throw new IllegalStateException("Not erased: " + erased.build());
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            EquationBuilder.setResultCache(savedCache);
+        }
+    }
+
+    //每次调用前重新准备，退格和计算都会改变 EquationBuilder 的状态
+    @State(Scope.Thread)
+    public static class Fresh {
+        EquationBuilder typed, parsed;
+
+        @Setup(Level.Invocation)
+        public void setUp(Expression expression) {
+            typed = type(expression.keys);
+            parsed = EquationBuilder.Parser.parseEquation(expression.equation);
+        }
+    }
+
+    static String keysOf(String shape) {
+        StringBuilder keys = new StringBuilder();
+        switch (shape) {
+            case "short":
+                return "12.5+3×4";
+
+            case "long":
+                //约 100 个数
+                for (int i = 0; i < 25; i++)
+                    keys.append(i == 0 ? "" : "+").append("123.45×6-78÷9+").append(i % 9 + 1).append("^2");
+                return keys.toString();
+
+            case "nested":
+                for (int i = 1; i <= 50; i++)
+                    keys.append('(').append(i).append(i % 2 == 0 ? '×' : '+');
+                keys.append('1');
+                for (int i = 0; i < 50; i++)
+                    keys.append(')');
+                return keys.toString();
+
+            case "functions":
+                for (int i = 0; i < 10; i++)
+                    keys.append(i == 0 ? "" : "+").append("S30)×C60)-T45)+L2)+G100)+√2+X1)+s0.5)-c0.5)+t1)");
+                return keys.toString();
+
+            default:
+                throw new IllegalArgumentException(shape);
+        }
+    }
+
+    static EquationBuilder type(String keys) {
+        EquationBuilder builder = new EquationBuilder();
+        for (int i = 0; i < keys.length(); i++)
+            press(builder, keys.charAt(i));
+        return builder;
+    }
+
+    static void press(EquationBuilder builder, char key) {
+        int function = FUNCTION_KEYS.indexOf(key);
+        if (function >= 0)
+            builder.appendLeadingFunction(FUNCTIONS[function]);
+        else if (key == '(' || key == ')')
+            builder.appendBracket();
+        else
+            builder.appendChar(key);
+    }
+
+    @Benchmark
+    public EquationBuilder appendChar(Expression expression) {
+        return type(expression.keys);
+    }
+
+    @Benchmark
+    public EquationBuilder backspace(Expression expression, Fresh fresh) {
+        EquationBuilder builder = fresh.typed;
+        for (int i = 0; i < expression.keys.length(); i++)
+            builder.backspace(EquationBuilder.EMPTY_CHAR);
+        return builder;
+    }
+
+    @Benchmark
+    public String build(Expression expression) {
+        return expression.typed.build();
+    }
+
+    @Benchmark
+    public EquationBuilder parseEquation(Expression expression) {
+        return EquationBuilder.Parser.parseEquation(expression.equation);
+    }
+
+    @Benchmark
+    public double calculate(Fresh fresh) {
+        return fresh.parsed.calculate(false);
+    }
+
+    //界面上的用法：每按一次键计算一次
+    @Benchmark
+    public double calculateWhileTyping(Expression expression) {
+        String keys = expression.keys;
+        EquationBuilder builder = new EquationBuilder();
+        double sum = 0;
+        for (int i = 0; i < keys.length(); i++) {
+            press(builder, keys.charAt(i));
+            try {
+                sum += builder.calculate(false);
+            } catch (EquationBuilder.CalculateException ignored) {
+                //输入到一半时可能无法计算
+            }
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,192 @@
+package com.ashfly.android.calculator.demo;
+
+import static com.ashfly.android.calculator.demo.EquationBuilder.MATH_FUNCTIONS;
+
+import com.ashfly.android.calculator.demo.EquationBuilder.CalculateException;
+
+import java.math.BigInteger;
+
+/**
+ * 单步运算，包含定义域和溢出检查
+ */
+final class Arithmetic {
+
+    //函数编号，与 MATH_FUNCTIONS 中的下标一致
+    static final int SIN_1 = 0, COS_1 = 1, TAN_1 = 2, SIN = 3, COS = 4, TAN = 5, LN = 6, LG = 7, EXP = 8, SQRT = 9;
+
+    //171! 超出 double 的范围
+    static final int MAX_FACTORIAL = 170;
+
+    private static final double LANCZOS_G = 7;
+    private static final double[] LANCZOS = {
+            0.99999999999980993, 676.5203681218851, -1259.1392167224028, 771.32342877765313,
+            -176.61502916214059, 12.507343278686905, -0.13857109526572012, 9.9843695780195716e-6,
+            1.5056327351493116e-7};
+    private static final double SQRT_2PI = Math.sqrt(2 * Math.PI);
+
+    private Arithmetic() {
+    }
+
+    static void check(double value) {
+        if (Double.isInfinite(value))
+            throw new CalculateException("Too gigantic!", CalculateException.TOO_GIGANTIC);
+        if (Double.isNaN(value))
+            throw new CalculateException("Occur NaN!", CalculateException.NOT_A_NUMBER);
+    }
+
+    //单独的正负号被解析为无穷大，参与乘除和乘方时视为 ±1
+    static double unsign(double value) {
+        if (Double.isInfinite(value))
+            return value > 0 ? 1 : -1;
+        return value;
+    }
+
+    static double function(int function, double x, boolean isRad) {
+        double value = functionOrNaN(function, x, isRad);
+        if (Double.isNaN(value))
+            throw new CalculateException(String.format("Cannot calculate \"%s%f!\"", MATH_FUNCTIONS.get(function), x), CalculateException.OUT_OF_DOMAIN);
+        check(value);
+        return value;
+    }
+
+    /**
+     * 超出定义域时返回 NaN，不检查溢出，见 {@link CompiledExpression#evaluate(boolean, double[][], double[])}
+     */
+    static double functionOrNaN(int function, double x, boolean isRad) {
+        switch (function) {
+            case SIN_1:
+            case COS_1:
+            case TAN_1:
+                if (x > 1 || x < -1)
+                    return Double.NaN;
+                x = function == SIN_1 ? Math.asin(x) : function == COS_1 ? Math.acos(x) : Math.atan(x);
+                return isRad ? x : Math.toDegrees(x);
+
+            case SQRT:
+                return x < 0 ? Double.NaN : Math.sqrt(x);
+
+            case LN:
+            case LG:
+                if (x <= 0)
+                    return Double.NaN;
+                return function == LN ? Math.log(x) : Math.log10(x);
+
+            case EXP:
+                return Math.exp(x);
+
+            case SIN:
+                return Math.sin(isRad ? x : Math.toRadians(x));
+
+            case COS:
+                return Math.cos(isRad ? x : Math.toRadians(x));
+
+            case TAN:
+                if (!isRad)
+                    x = Math.toRadians(x);
+                if (Math.abs(Math.cos(x)) < 1e-10)
+                    return Double.NaN;
+                return Math.tan(x);
+
+            default:
+                throw new IllegalArgumentException("Unknown function " + function);
+        }
+    }
+
+    static double percent(double x) {
+        x = x / 100;
+        check(x);
+        return x;
+    }
+
+    /**
+     * 整数查表，非整数用 Γ(x+1) 计算，负整数无定义
+     */
+    static double factorial(double x) {
+        if (Math.floor(x) == x) {
+            if (x < 0)
+                throw new CalculateException(String.format("Cannot calculate \"%f!\"", x), CalculateException.OUT_OF_DOMAIN);
+            if (x > MAX_FACTORIAL)
+                throw new CalculateException("Too gigantic!", CalculateException.TOO_GIGANTIC);
+        }
+
+        double value = factorialOrNaN(x);
+        check(value);
+        return value;
+    }
+
+    //负整数返回 NaN，不检查溢出
+    static double factorialOrNaN(double x) {
+        if (Math.floor(x) == x)
+            return x < 0 ? Double.NaN : x > MAX_FACTORIAL ? Double.POSITIVE_INFINITY : Factorials.TABLE[(int) x];
+        return gamma(x + 1);
+    }
+
+    //Lanczos 近似，g=7，n=9，相对误差约 1e-15
+    static double gamma(double x) {
+        //反射公式 Γ(x)Γ(1-x) = π/sin(πx)
+        if (x < 0.5)
+            return Math.PI / (Math.sin(Math.PI * x) * gamma(1 - x));
+
+        x -= 1;
+        double a = LANCZOS[0];
+        for (int i = 1; i < LANCZOS.length; i++)
+            a += LANCZOS[i] / (x + i);
+
+        //分两次乘 t^(x+0.5)，避免在结果溢出之前中间值先溢出
+        double t = x + LANCZOS_G + 0.5;
+        double power = Math.pow(t, (x + 0.5) / 2);
+        return SQRT_2PI * power * (power * Math.exp(-t)) * a;
+    }
+
+    static double pow(double base, double exponent) {
+        base = unsign(base);
+        exponent = unsign(exponent);
+        double value = base == 0 && exponent == 0 ? Double.NaN : Math.pow(base, exponent);
+        check(value);
+        return value;
+    }
+
+    static double multiply(double left, double right) {
+        double value = unsign(left) * unsign(right);
+        check(value);
+        return value;
+    }
+
+    static double divide(double left, double right) {
+        left = unsign(left);
+        right = unsign(right);
+        if (right == 0)
+            throw new CalculateException(String.format("Cannot calculate \"%f%s%f!\"", left, '÷', right), CalculateException.DIVIDE_BY_ZERO);
+        double value = left / right;
+        check(value);
+        return value;
+    }
+
+    static double add(double left, double right) {
+        double value = left + right;
+        check(value);
+        return value;
+    }
+
+    static double subtract(double left, double right) {
+        double value = left - right;
+        check(value);
+        return value;
+    }
+
+    /**
+     * 0!~170! 的精确值舍入为 double，第一次计算阶乘时才初始化
+     */
+    private static final class Factorials {
+        static final double[] TABLE = new double[MAX_FACTORIAL + 1];
+
+        static {
+            BigInteger factorial = BigInteger.ONE;
+            TABLE[0] = 1;
+            for (int i = 1; i <= MAX_FACTORIAL; i++) {
+                factorial = factorial.multiply(BigInteger.valueOf(i));
+                TABLE[i] = factorial.doubleValue();
+            }
+        }
+    }
+}
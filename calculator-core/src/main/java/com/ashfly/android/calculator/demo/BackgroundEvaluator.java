@@ -0,0 +1,205 @@
+package com.ashfly.android.calculator.demo;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 在一个后台线程中计算输入中的算式，只计算最新的一次请求
+ * <p>
+ * 每次提交时在调用线程中复制算式，之后调用线程可以继续修改原来的 EquationBuilder。
+ * 后台线程把副本同步到一个一直使用的 EquationBuilder 上计算，与上一次相同的前缀直接使用缓存的中间结果，
+ * 所以长算式每次按键的计算量与在原来的 EquationBuilder 上计算相同。
+ * 等待中的请求只有一个，新的请求直接替换它；正在计算的请求通过 {@link CalculateBudget} 取消，已经算完的过时结果被丢弃。
+ * 结果在后台线程中交给 {@link Listener}，显示前还应该用 {@link #isLatest(long)} 再检查一次。
+ * <p>
+ * 每次计算还可以限制工作量和时间，超出时结果是 reason 为 {@link EquationBuilder.CalculateException#BUDGET_EXCEEDED} 的错误。
+ */
+public final class BackgroundEvaluator {
+
+    private static final String TAG = "BackgroundEvaluator";
+
+    private final Listener listener;
+    private final long maxOperations, timeoutNanos;
+    private final EquationBuilder workspace = new EquationBuilder(); //只在后台线程中使用
+
+    //由 this 保护
+    private Evaluation pending, running;
+    private boolean shutdown;
+
+    private volatile long generation;
+
+    public BackgroundEvaluator(Listener listener) {
+        this(listener, CalculateBudget.UNLIMITED, CalculateBudget.UNLIMITED, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param maxOperations 每次计算最多处理的记号数，{@link CalculateBudget#UNLIMITED} 表示不限制
+     * @param timeout       每次计算从开始起允许的时间，{@link CalculateBudget#UNLIMITED} 表示不限制
+     */
+    public BackgroundEvaluator(Listener listener, long maxOperations, long timeout, TimeUnit unit) {
+        this.listener = listener;
+        this.maxOperations = maxOperations;
+        this.timeoutNanos = timeout == CalculateBudget.UNLIMITED ? CalculateBudget.UNLIMITED : unit.toNanos(timeout);
+        Thread worker = new Thread(this::run, TAG);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    /**
+     * 提交一次计算，之前还没有开始的请求被替换，正在进行的计算被取消
+     *
+     * @param mathContext 为 null 时用 double 计算，否则用 BigDecimal 计算
+     * @return 这次请求的编号
+     */
+    public long submit(EquationBuilder builder, boolean isRad, MathContext mathContext) {
+        EquationBuilder equation = builder.copy();
+        synchronized (this) {
+            Evaluation evaluation = new Evaluation(++generation, equation, isRad, mathContext);
+            if (pending == null)
+                notify();
+            pending = evaluation;
+            cancelRunning();
+            return evaluation.generation;
+        }
+    }
+
+    /**
+     * 之前提交的请求全部作废，结果不再交给 Listener
+     */
+    public synchronized void discard() {
+        generation++;
+        pending = null;
+        cancelRunning();
+    }
+
+    /**
+     * @return 编号为 generation 的请求之后是否没有新的请求，也没有调用过 {@link #discard()}
+     */
+    public boolean isLatest(long generation) {
+        return this.generation == generation;
+    }
+
+    /**
+     * 停止后台线程，正在进行的计算被取消
+     */
+    public synchronized void shutdown() {
+        shutdown = true;
+        generation++;
+        pending = null;
+        cancelRunning();
+        notify();
+    }
+
+    //调用时持有 this
+    private void cancelRunning() {
+        if (running != null)
+            running.budget.cancel();
+    }
+
+    private void run() {
+        while (true) {
+            Evaluation evaluation;
+            synchronized (this) {
+                while (pending == null && !shutdown) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (shutdown)
+                    return;
+                evaluation = pending;
+                pending = null;
+                //时间从开始计算时算起，不包括排队的时间
+                evaluation.budget = new CalculateBudget(maxOperations, timeoutNanos, TimeUnit.NANOSECONDS);
+                running = evaluation;
+            }
+
+            evaluation.evaluate(workspace);
+            synchronized (this) {
+                running = null;
+            }
+            if (isLatest(evaluation.generation))
+                listener.onEvaluated(evaluation);
+        }
+    }
+
+    public interface Listener {
+        /**
+         * 在后台线程中调用
+         */
+        void onEvaluated(Evaluation evaluation);
+    }
+
+    /**
+     * 一次计算请求和它的结果
+     */
+    public static final class Evaluation {
+        private final long generation;
+        private final EquationBuilder equation;
+        private final boolean isRad;
+        private final MathContext mathContext;
+        private CalculateBudget budget;
+
+        private double value = Double.NaN;
+        private BigDecimal preciseValue;
+        private RuntimeException error;
+
+        private Evaluation(long generation, EquationBuilder equation, boolean isRad, MathContext mathContext) {
+            this.generation = generation;
+            this.equation = equation;
+            this.isRad = isRad;
+            this.mathContext = mathContext;
+        }
+
+        private void evaluate(EquationBuilder workspace) {
+            try {
+                workspace.syncFrom(equation);
+                if (mathContext == null) {
+                    value = workspace.calculate(isRad, budget);
+                } else {
+                    preciseValue = workspace.calculate(isRad, mathContext, budget);
+                    value = preciseValue.doubleValue();
+                }
+            } catch (RuntimeException e) {
+                //与界面上同步计算时一样，任何异常都作为计算错误
+                error = e;
+            }
+        }
+
+        public long getGeneration() {
+            return generation;
+        }
+
+        /**
+         * @return 提交时复制的算式，只应在 Listener 中使用
+         */
+        public EquationBuilder getEquation() {
+            return equation;
+        }
+
+        public boolean isRad() {
+            return isRad;
+        }
+
+        public double getValue() {
+            return value;
+        }
+
+        /**
+         * @return 用 BigDecimal 计算时的结果，否则为 null
+         */
+        public BigDecimal getPreciseValue() {
+            return preciseValue;
+        }
+
+        /**
+         * @return 计算时抛出的异常，成功时为 null
+         */
+        public RuntimeException getError() {
+            return error;
+        }
+    }
+}
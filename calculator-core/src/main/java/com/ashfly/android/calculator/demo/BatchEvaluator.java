@@ -0,0 +1,259 @@
+package com.ashfly.android.calculator.demo;
+
+import com.ashfly.android.calculator.demo.EquationBuilder.CalculateException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 命令行批量计算，不依赖 Android
+ * <p>
+ * 逐行读取算式，每一行与界面一样经过 {@link EquationBuilder.Parser#parseEquation(String)} 和
+ * {@link EquationBuilder#calculate(boolean)}。输入按块交给 ForkJoinPool 并行解析和计算，读取下一块时前面的块仍在计算；
+ * 已提交的块放在有界的队列中，按输入顺序取出写入，所以输出的第 n 行总是输入第 n 行的结果，队列满时暂停读取。
+ * <p>
+ * 用法：BatchEvaluator [--rad] [--chunk 行数] [--single] [--max-ops 记号数] [--timeout 毫秒] [--metrics] 输入文件|- [输出文件]
+ * <p>
+ * --single 表示整个输入是一个算式（可以很长），用 {@link EquationBuilder.Parser#calculate(ReadableByteChannel, boolean, CalculateBudget)} 边读取边计算。
+ * --max-ops 和 --timeout 限制每一行（或者整个 --single 算式）的计算，超出时这一行的结果为 BUDGET_EXCEEDED。
+ * --metrics 在结束时向 stderr 输出 {@link CalculatorMetrics} 的统计。
+ */
+public final class BatchEvaluator {
+
+    private static final int DEFAULT_CHUNK_SIZE = 1024;
+    private static final int SPLIT_THRESHOLD = 64; //每个子任务至少处理的行数
+    private static final int CHUNKS_PER_THREAD = 4; //每个线程最多积压的块数
+
+    //每一行的结果，CalculateException 按 reason 排在 ERROR 之后
+    private static final byte VALUE = 0, INVALID = 1, FAILED = 2, ERROR = 3;
+    private static final String[] REASON_NAMES = CalculateException.REASON_NAMES;
+
+    private final ForkJoinPool pool;
+    private final boolean isRad;
+    private final int chunkSize, window;
+    private long maxOperations = CalculateBudget.UNLIMITED, timeoutMillis = CalculateBudget.UNLIMITED;
+    private final long[] counts = new long[ERROR + REASON_NAMES.length];
+    private long lines;
+
+    public BatchEvaluator(ForkJoinPool pool, boolean isRad, int chunkSize) {
+        this.pool = pool;
+        this.isRad = isRad;
+        this.chunkSize = chunkSize;
+        this.window = pool.getParallelism() * CHUNKS_PER_THREAD;
+    }
+
+    public static void main(String[] args) throws IOException {
+        boolean isRad = false, single = false, withMetrics = false;
+        int chunkSize = DEFAULT_CHUNK_SIZE;
+        long maxOperations = CalculateBudget.UNLIMITED, timeoutMillis = CalculateBudget.UNLIMITED;
+        String input = null, output = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--rad"))
+                isRad = true;
+            else if (arg.equals("--single"))
+                single = true;
+            else if (arg.equals("--metrics"))
+                withMetrics = true;
+            else if (arg.equals("--chunk") && i + 1 < args.length)
+                chunkSize = Math.max(1, Integer.parseInt(args[++i]));
+            else if (arg.equals("--max-ops") && i + 1 < args.length)
+                maxOperations = Math.max(0, Long.parseLong(args[++i]));
+            else if (arg.equals("--timeout") && i + 1 < args.length)
+                timeoutMillis = Math.max(0, Long.parseLong(args[++i]));
+            else if (input == null)
+                input = arg;
+            else if (output == null)
+                output = arg;
+            else
+                input = null; //参数过多
+        }
+        if (input == null) {
+            System.err.println("Usage: BatchEvaluator [--rad] [--chunk lines] [--single] [--max-ops tokens] [--timeout ms] [--metrics] <input|-> [output]");
+            System.exit(2);
+            return;
+        }
+
+        CalculatorMetrics metrics = withMetrics ? new CalculatorMetrics() : null;
+        EquationBuilder.setMetrics(metrics);
+
+        if (single) {
+            ReadableByteChannel channel = input.equals("-") ? Channels.newChannel(System.in) : new FileInputStream(input).getChannel();
+            PrintStream out = output == null ? System.out : new PrintStream(new FileOutputStream(output), false, "UTF-8");
+            try {
+                out.println(EquationBuilder.Parser.calculate(channel, isRad, newBudget(maxOperations, timeoutMillis)));
+            } catch (CalculateException e) {
+                out.println("ERROR " + (e.reason >= 0 && e.reason < REASON_NAMES.length ? REASON_NAMES[e.reason] : String.valueOf(e.reason)) + ": " + e.getMessage());
+            } finally {
+                channel.close();
+                out.flush();
+            }
+            if (metrics != null)
+                System.err.print(metrics.dump());
+            return;
+        }
+
+        BatchEvaluator evaluator = new BatchEvaluator(new ForkJoinPool(Runtime.getRuntime().availableProcessors()), isRad, chunkSize);
+        evaluator.setBudget(maxOperations, timeoutMillis);
+        InputStream in = input.equals("-") ? System.in : new FileInputStream(input);
+        OutputStream out = output == null ? System.out : new FileOutputStream(output);
+        long start = System.nanoTime();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+             Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            evaluator.run(reader, writer);
+        }
+        evaluator.printSummary(System.err, System.nanoTime() - start);
+        if (metrics != null)
+            System.err.print(metrics.dump());
+    }
+
+    //没有限制时返回 null，不必检查预算
+    private static CalculateBudget newBudget(long maxOperations, long timeoutMillis) {
+        if (maxOperations == CalculateBudget.UNLIMITED && timeoutMillis == CalculateBudget.UNLIMITED)
+            return null;
+        return new CalculateBudget(maxOperations, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 限制每一行的计算，默认不限制
+     *
+     * @param maxOperations 最多处理的记号数，{@link CalculateBudget#UNLIMITED} 表示不限制
+     * @param timeoutMillis 每一行允许的毫秒数，{@link CalculateBudget#UNLIMITED} 表示不限制
+     */
+    public void setBudget(long maxOperations, long timeoutMillis) {
+        this.maxOperations = maxOperations;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * 计算 reader 中的每一行，并按顺序逐行写入 writer
+     */
+    public void run(BufferedReader reader, Writer writer) throws IOException {
+        ArrayDeque<Chunk> pending = new ArrayDeque<>(window);
+        String[] lines;
+        while ((lines = readChunk(reader)) != null) {
+            if (pending.size() == window)
+                write(pending.poll(), writer);
+            Chunk chunk = new Chunk(lines, 0, lines.length, new String[lines.length], new byte[lines.length]);
+            pool.execute(chunk);
+            pending.add(chunk);
+        }
+        while (!pending.isEmpty())
+            write(pending.poll(), writer);
+    }
+
+    private String[] readChunk(BufferedReader reader) throws IOException {
+        String[] lines = new String[chunkSize];
+        int count = 0;
+        String line;
+        while (count < chunkSize && (line = reader.readLine()) != null)
+            lines[count++] = line;
+        if (count == 0)
+            return null;
+        if (count < chunkSize) {
+            String[] trimmed = new String[count];
+            System.arraycopy(lines, 0, trimmed, 0, count);
+            return trimmed;
+        }
+        return lines;
+    }
+
+    private void write(Chunk chunk, Writer writer) throws IOException {
+        chunk.join();
+        for (int i = 0; i < chunk.results.length; i++) {
+            writer.write(chunk.results[i]);
+            writer.write('\n');
+            counts[chunk.outcomes[i]]++;
+        }
+        lines += chunk.results.length;
+    }
+
+    public void printSummary(PrintStream out, long elapsedNanos) {
+        long errors = 0;
+        for (int i = ERROR; i < counts.length; i++)
+            errors += counts[i];
+        double seconds = elapsedNanos / 1e9;
+
+        out.printf("lines: %d, values: %d, invalid: %d, errors: %d, failed: %d%n",
+                lines, counts[VALUE], counts[INVALID], errors, counts[FAILED]);
+        for (int i = 0; i < REASON_NAMES.length; i++) {
+            if (counts[ERROR + i] > 0)
+                out.printf("  %s: %d%n", REASON_NAMES[i], counts[ERROR + i]);
+        }
+        out.printf("elapsed: %.3f s, throughput: %.0f lines/s, threads: %d%n",
+                seconds, seconds > 0 ? lines / seconds : 0, pool.getParallelism());
+        ResultCache cache = EquationBuilder.getResultCache();
+        if (cache != null)
+            out.printf("cache: %d hits, %d misses, %d evictions%n", cache.getHits(), cache.getMisses(), cache.getEvictions());
+    }
+
+    private String evaluate(String line, byte[] outcomes, int index) {
+        EquationBuilder builder = EquationBuilder.Parser.parseEquation(line);
+        if (builder == null) {
+            outcomes[index] = INVALID;
+            return "INVALID";
+        }
+
+        try {
+            double result = builder.calculate(isRad, newBudget(maxOperations, timeoutMillis));
+            outcomes[index] = VALUE;
+            return Double.toString(result);
+        } catch (CalculateException e) {
+            boolean known = e.reason >= 0 && e.reason < REASON_NAMES.length;
+            outcomes[index] = known ? (byte) (ERROR + e.reason) : FAILED;
+            return "ERROR " + (known ? REASON_NAMES[e.reason] : String.valueOf(e.reason)) + ": " + e.getMessage();
+        } catch (RuntimeException e) {
+            //与界面一样，其他异常也只影响这一行
+            outcomes[index] = FAILED;
+            return "FAILED " + e;
+        }
+    }
+
+    /**
+     * 解析并计算 [from, to) 的行，行数较多时对半拆分
+     */
+    private final class Chunk extends RecursiveAction {
+        private static final long serialVersionUID = 1L; //RecursiveAction 实现了 Serializable，这里不会被序列化
+
+        final String[] lines, results;
+        final byte[] outcomes;
+        final int from, to;
+
+        Chunk(String[] lines, int from, int to, String[] results, byte[] outcomes) {
+            this.lines = lines;
+            this.from = from;
+            this.to = to;
+            this.results = results;
+            this.outcomes = outcomes;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > SPLIT_THRESHOLD) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Chunk(lines, from, middle, results, outcomes), new Chunk(lines, middle, to, results, outcomes));
+                return;
+            }
+            for (int i = from; i < to; i++) {
+                results[i] = evaluate(lines[i], outcomes, i);
+                lines[i] = null; //尽早释放输入
+            }
+        }
+    }
+}
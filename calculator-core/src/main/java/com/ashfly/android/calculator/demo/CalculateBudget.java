@@ -0,0 +1,70 @@
+package com.ashfly.android.calculator.demo;
+
+import com.ashfly.android.calculator.demo.EquationBuilder.CalculateException;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一次计算允许的工作量和时间，也可以从其他线程取消
+ * <p>
+ * 计算时每处理一个记号记一次操作；取消标记每次都检查，时间每隔 {@link #CHECK_INTERVAL} 次操作检查一次。
+ * 超出限制或者被取消时抛出 reason 为 {@link CalculateException#BUDGET_EXCEEDED} 的异常，这个结果与算式无关，不会被缓存。
+ * 时间从创建时开始计算，一个实例可以由同一个线程中先后的几次计算共用。
+ */
+public final class CalculateBudget {
+
+    public static final long UNLIMITED = Long.MAX_VALUE;
+
+    private static final int CHECK_INTERVAL = 64; //必须是2的幂
+
+    private final long maxOperations;
+    private final long deadline; //System.nanoTime() 的值
+    private final boolean hasDeadline;
+    private long operations;
+    private volatile boolean cancelled;
+
+    /**
+     * @param maxOperations 最多处理的记号数，{@link #UNLIMITED} 表示不限制
+     * @param timeout       从现在开始允许的时间，{@link #UNLIMITED} 表示不限制
+     */
+    public CalculateBudget(long maxOperations, long timeout, TimeUnit unit) {
+        if (maxOperations < 0 || timeout < 0)
+            throw new IllegalArgumentException("Negative budget: " + maxOperations + ", " + timeout);
+        this.maxOperations = maxOperations;
+        this.hasDeadline = timeout != UNLIMITED;
+        this.deadline = hasDeadline ? System.nanoTime() + unit.toNanos(timeout) : 0;
+    }
+
+    /**
+     * 让使用这个预算的计算尽快停止，可以在任何线程中调用
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public long getOperations() {
+        return operations;
+    }
+
+    /**
+     * 记一次操作
+     *
+     * @throws CalculateException 已被取消或者超出预算
+     */
+    void charge() {
+        if (cancelled)
+            throw exceeded("Cancelled");
+        if (++operations > maxOperations)
+            throw exceeded("Too many operations");
+        if (hasDeadline && (operations & (CHECK_INTERVAL - 1)) == 0 && System.nanoTime() - deadline > 0)
+            throw exceeded("Time limit exceeded");
+    }
+
+    private static CalculateException exceeded(String message) {
+        return new CalculateException(message, CalculateException.BUDGET_EXCEEDED);
+    }
+}
@@ -0,0 +1,148 @@
+package com.ashfly.android.calculator.demo;
+
+import com.ashfly.android.calculator.demo.EquationBuilder.CalculateException;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 计数和耗时统计，用于了解计算引擎的运行情况
+ * <p>
+ * 通过 {@link EquationBuilder#setMetrics(CalculatorMetrics)} 启用，默认关闭；关闭时各处只多一次静态字段的读取和 null 判断，
+ * 不读取时钟，也不生成任何字符串。耗时按2的幂分桶，只记录每个桶的次数，所以百分位数是所在桶的上界。
+ * 所有方法都是线程安全的。
+ */
+public final class CalculatorMetrics {
+
+    //计数
+    public static final int KEYSTROKES = 0;
+    public static final int CACHE_HITS = 1;
+    public static final int CACHE_MISSES = 2;
+    public static final int INVALID_EQUATIONS = 3; //解析失败的算式
+    private static final String[] COUNTER_NAMES = {"keystrokes", "cache hits", "cache misses", "invalid equations"};
+
+    //耗时
+    public static final int PARSE = 0;
+    public static final int EVALUATE = 1;
+    public static final int FORMAT = 2;
+    private static final String[] PHASE_NAMES = {"parse", "evaluate", "format"};
+
+    private static final int BUCKETS = 64; //第 i 个桶是 [2^(i-1), 2^i) 纳秒，第0个桶是0
+    private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 1};
+
+    private final AtomicLongArray counters = new AtomicLongArray(COUNTER_NAMES.length);
+    private final AtomicLongArray errors = new AtomicLongArray(CalculateException.REASON_NAMES.length + 1); //最后一个是未知的原因
+    private final AtomicLongArray latencies = new AtomicLongArray(PHASE_NAMES.length * BUCKETS);
+
+    public void count(int counter) {
+        counters.incrementAndGet(counter);
+    }
+
+    public void countError(int reason) {
+        errors.incrementAndGet(errorSlot(reason));
+    }
+
+    /**
+     * @param phase {@link #PARSE}、{@link #EVALUATE} 或 {@link #FORMAT}
+     */
+    public void record(int phase, long nanos) {
+        latencies.incrementAndGet(phase * BUCKETS + (nanos <= 0 ? 0 : 64 - Long.numberOfLeadingZeros(nanos)));
+    }
+
+    public long getCount(int counter) {
+        return counters.get(counter);
+    }
+
+    public long getErrorCount(int reason) {
+        return errors.get(errorSlot(reason));
+    }
+
+    /**
+     * @return 这一阶段记录的次数
+     */
+    public long getSamples(int phase) {
+        long samples = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            samples += latencies.get(phase * BUCKETS + i);
+        return samples;
+    }
+
+    /**
+     * @param fraction 0 到 1 之间，1 表示最大值
+     * @return 至少 fraction 的记录不超过的纳秒数，没有记录时返回0
+     */
+    public long getPercentile(int phase, double fraction) {
+        long[] buckets = new long[BUCKETS];
+        long samples = 0;
+        for (int i = 0; i < BUCKETS; i++)
+            samples += buckets[i] = latencies.get(phase * BUCKETS + i);
+        return percentile(buckets, samples, fraction);
+    }
+
+    public void reset() {
+        for (int i = 0; i < counters.length(); i++)
+            counters.set(i, 0);
+        for (int i = 0; i < errors.length(); i++)
+            errors.set(i, 0);
+        for (int i = 0; i < latencies.length(); i++)
+            latencies.set(i, 0);
+    }
+
+    /**
+     * @return 当前所有统计的文本，每项一行
+     */
+    public String dump() {
+        StringBuilder out = new StringBuilder();
+        for (int i = 0; i < COUNTER_NAMES.length; i++)
+            out.append(COUNTER_NAMES[i]).append(": ").append(counters.get(i)).append('\n');
+
+        out.append("errors:");
+        for (int i = 0; i < errors.length(); i++) {
+            long count = errors.get(i);
+            if (count > 0)
+                out.append(' ').append(i < CalculateException.REASON_NAMES.length ? CalculateException.REASON_NAMES[i] : "OTHER").append('=').append(count);
+        }
+        out.append('\n');
+
+        long[] buckets = new long[BUCKETS];
+        for (int phase = 0; phase < PHASE_NAMES.length; phase++) {
+            long samples = 0;
+            for (int i = 0; i < BUCKETS; i++)
+                samples += buckets[i] = latencies.get(phase * BUCKETS + i);
+            out.append(PHASE_NAMES[phase]).append(": ").append(samples);
+            if (samples > 0) {
+                for (double fraction : PERCENTILES) {
+                    out.append(fraction == 1 ? ", max" : String.format(Locale.ROOT, ", p%.0f", fraction * 100))
+                            .append(" <= ").append(formatNanos(percentile(buckets, samples, fraction)));
+                }
+            }
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    private int errorSlot(int reason) {
+        return reason >= 0 && reason < CalculateException.REASON_NAMES.length ? reason : errors.length() - 1;
+    }
+
+    //桶的上界
+    private static long percentile(long[] buckets, long samples, double fraction) {
+        if (samples == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(samples * fraction)), seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += buckets[i];
+            if (seen >= rank)
+                return i == 0 ? 0 : i == BUCKETS - 1 ? Long.MAX_VALUE : (1L << i) - 1;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private static String formatNanos(long nanos) {
+        if (nanos < 1000)
+            return nanos + " ns";
+        if (nanos < 1000000)
+            return String.format(Locale.ROOT, "%.1f us", nanos / 1e3);
+        return String.format(Locale.ROOT, "%.1f ms", nanos / 1e6);
+    }
+}
@@ -0,0 +1,345 @@
+package com.ashfly.android.calculator.demo;
+
+import com.ashfly.android.calculator.demo.EquationBuilder.CalculateException;
+
+import java.util.Arrays;
+
+/**
+ * 编译后的算式，一次编译，可以反复计算
+ * <p>
+ * 表达式树按后缀顺序保存：数字已经解析为 double，函数和运算符已经解析为操作码，
+ * 计算时只需顺序执行，不再处理字符串。计算结果与 {@link EquationBuilder#calculate(boolean)} 一致。
+ * <p>
+ * 算式可以包含编译时声明的变量，按声明的顺序编号，计算时依次传入它们的值。
+ * <p>
+ * 编译后经过 {@link ExpressionOptimizer} 折叠常量、合并相同的子表达式，结果不变。
+ */
+public final class CompiledExpression {
+
+    //操作码，0~9 为函数，与 MATH_FUNCTIONS 中的下标一致
+    static final byte NUMBER = 10;
+    static final byte PERCENT = 11;
+    static final byte FACTORIAL = 12;
+    static final byte ADD = 13;
+    static final byte SUBTRACT = 14;
+    static final byte MULTIPLY = 15;
+    static final byte DIVIDE = 16;
+    static final byte POW = 17;
+    static final byte VARIABLE = 18; //number 为变量名，编译后为变量的编号
+    //优化后才会出现，number 为寄存器的编号
+    static final byte STORE = 20; //把栈顶复制到寄存器
+    static final byte LOAD = 21; //把寄存器压入栈
+
+    //按列计算时每次处理的点数，栈中每一层都是一列，整个栈能放进缓存
+    private static final int BLOCK_SIZE = 256;
+
+    private final byte[] code;
+    private final double[] numbers, radNumbers; //弧度制下的常量与角度制不同时才有 radNumbers
+    private final int maxDepth, variableCount, registerCount, removedNodes;
+
+    CompiledExpression(byte[] code, double[] numbers, double[] radNumbers, int maxDepth, int variableCount,
+                       int registerCount, int removedNodes) {
+        this.code = code;
+        this.numbers = numbers;
+        this.radNumbers = radNumbers == null ? numbers : radNumbers;
+        this.maxDepth = maxDepth;
+        this.variableCount = variableCount;
+        this.registerCount = registerCount;
+        this.removedNodes = removedNodes;
+    }
+
+    static boolean isBinary(byte op) {
+        return op >= ADD && op <= POW;
+    }
+
+    /**
+     * 解析并编译算式，算式无效时返回 null
+     *
+     * @see EquationBuilder.Parser#parseEquation(String)
+     */
+    public static CompiledExpression compile(String equation) {
+        EquationBuilder builder = EquationBuilder.Parser.parseEquation(equation);
+        return builder == null ? null : builder.compile();
+    }
+
+    /**
+     * 解析并编译含有变量的算式，算式无效时返回 null
+     *
+     * @see EquationBuilder.Parser#parseEquation(String, char...)
+     */
+    public static CompiledExpression compile(String equation, char... variables) {
+        EquationBuilder builder = EquationBuilder.Parser.parseEquation(equation, variables);
+        return builder == null ? null : builder.compile(variables);
+    }
+
+    /**
+     * @param variables 变量名，下标即变量的编号
+     * @throws CalculateException 算式格式错误或使用了未声明的变量
+     */
+    static CompiledExpression compile(TokenBuffer tokens, char[] variables) {
+        return compile(tokens, variables, true);
+    }
+
+    static CompiledExpression compile(TokenBuffer tokens, char[] variables, boolean optimize) {
+        //与 calculate 一致，末尾未闭合的符号不参与计算
+        int size = tokens.size();
+        while (size > 0 && tokens.isUnfinished(size - 1))
+            size--;
+
+        Compiler compiler = new Compiler(size, variables);
+        for (int i = 0; i < size; i++) {
+            compiler.accept(tokens, i);
+        }
+        CompiledExpression expression = compiler.build();
+        return optimize ? ExpressionOptimizer.optimize(expression, expression.code, expression.numbers, variables.length) : expression;
+    }
+
+    public int getVariableCount() {
+        return variableCount;
+    }
+
+    /**
+     * 优化去掉的计算步骤数：折叠的常量子树和重复的子表达式，存取寄存器不算作计算
+     */
+    public int getRemovedNodes() {
+        return removedNodes;
+    }
+
+    /**
+     * @param variables 按编号排列的变量值
+     * @throws CalculateException 计算出错
+     */
+    public double evaluate(boolean isRad, double... variables) {
+        checkVariables(variables.length);
+        double[] numbers = isRad ? radNumbers : this.numbers;
+        double[] stack = new double[maxDepth], registers = registerCount == 0 ? null : new double[registerCount];
+        int top = -1;
+
+        for (int i = 0, length = code.length; i < length; i++) {
+            byte op = code[i];
+            if (op == VARIABLE)
+                stack[++top] = variables[(int) numbers[i]];
+            else if (op == LOAD)
+                stack[++top] = registers[(int) numbers[i]];
+            else if (op == STORE)
+                registers[(int) numbers[i]] = stack[top];
+            else
+                top = execute(op, numbers[i], stack, top, isRad);
+        }
+
+        double result = stack[0];
+        Arithmetic.check(result);
+        return result;
+    }
+
+    /**
+     * 对一组点逐一计算，与对每个点调用 {@link #evaluate(boolean, double...)} 的结果相同，但出错的点结果为 NaN 而不抛出异常
+     * <p>
+     * 按列执行：每条指令一次处理一批点，循环体内没有分派，适合即时编译器展开和向量化。
+     *
+     * @param variables variables[k][i] 为第 i 个点上变量 k 的值
+     * @param results   结果写入这里，长度即点数
+     */
+    public void evaluate(boolean isRad, double[][] variables, double[] results) {
+        checkVariables(variables.length);
+        int count = results.length;
+        for (int k = 0; k < variableCount; k++) {
+            if (variables[k].length < count)
+                throw new IllegalArgumentException("Variable " + k + " has only " + variables[k].length + " values");
+        }
+
+        double[] numbers = isRad ? radNumbers : this.numbers;
+        double[][] stack = new double[maxDepth][BLOCK_SIZE], registers = new double[registerCount][BLOCK_SIZE];
+        for (int start = 0; start < count; start += BLOCK_SIZE) {
+            int length = Math.min(BLOCK_SIZE, count - start);
+            int top = -1;
+            for (int i = 0; i < code.length; i++) {
+                byte op = code[i];
+                if (op == NUMBER)
+                    Arrays.fill(stack[++top], 0, length, numbers[i]);
+                else if (op == VARIABLE)
+                    System.arraycopy(variables[(int) numbers[i]], start, stack[++top], 0, length);
+                else if (op == LOAD)
+                    System.arraycopy(registers[(int) numbers[i]], 0, stack[++top], 0, length);
+                else if (op == STORE)
+                    System.arraycopy(stack[top], 0, registers[(int) numbers[i]], 0, length);
+                else if (isBinary(op)) {
+                    top--;
+                    executeColumns(op, stack[top], stack[top + 1], length);
+                } else
+                    executeColumn(op, stack[top], length, isRad);
+            }
+            //只有正负号的数字（如单独的 +.）以无穷大表示，逐点计算时会报错，这里同样改为 NaN
+            double[] column = stack[0];
+            for (int i = 0; i < length; i++)
+                results[start + i] = finite(column[i]);
+        }
+    }
+
+    private void checkVariables(int count) {
+        if (count < variableCount)
+            throw new IllegalArgumentException("Expected " + variableCount + " variables, got " + count);
+    }
+
+    //每一步的结果若超出范围就改为 NaN，之后一直保持 NaN，以免被当成只有正负号的数字
+    private static double finite(double value) {
+        return value - value == 0 ? value : Double.NaN;
+    }
+
+    //left[i] = left[i] op right[i]
+    private static void executeColumns(byte op, double[] left, double[] right, int length) {
+        switch (op) {
+            case ADD:
+                for (int i = 0; i < length; i++)
+                    left[i] = finite(left[i] + right[i]);
+                break;
+
+            case SUBTRACT:
+                for (int i = 0; i < length; i++)
+                    left[i] = finite(left[i] - right[i]);
+                break;
+
+            case MULTIPLY:
+                for (int i = 0; i < length; i++)
+                    left[i] = finite(Arithmetic.unsign(left[i]) * Arithmetic.unsign(right[i]));
+                break;
+
+            case DIVIDE:
+                for (int i = 0; i < length; i++) {
+                    double divisor = Arithmetic.unsign(right[i]);
+                    left[i] = divisor == 0 ? Double.NaN : finite(Arithmetic.unsign(left[i]) / divisor);
+                }
+                break;
+
+            case POW:
+                for (int i = 0; i < length; i++) {
+                    double base = Arithmetic.unsign(left[i]), exponent = Arithmetic.unsign(right[i]);
+                    //Math.pow(NaN, 0) 为 1
+                    left[i] = Double.isNaN(base) || (base == 0 && exponent == 0) ? Double.NaN : finite(Math.pow(base, exponent));
+                }
+                break;
+        }
+    }
+
+    private static void executeColumn(byte op, double[] column, int length, boolean isRad) {
+        switch (op) {
+            case PERCENT:
+                for (int i = 0; i < length; i++)
+                    column[i] = finite(column[i] / 100);
+                break;
+
+            case FACTORIAL:
+                for (int i = 0; i < length; i++)
+                    column[i] = finite(Arithmetic.factorialOrNaN(column[i]));
+                break;
+
+            default:
+                for (int i = 0; i < length; i++)
+                    column[i] = finite(Arithmetic.functionOrNaN(op, column[i], isRad));
+                break;
+        }
+    }
+
+    /**
+     * 在栈上执行一条指令
+     *
+     * @return 执行后的栈顶位置
+     */
+    static int execute(byte op, double number, double[] stack, int top, boolean isRad) {
+        switch (op) {
+            case NUMBER:
+                stack[++top] = number;
+                break;
+
+            case PERCENT:
+                stack[top] = Arithmetic.percent(stack[top]);
+                break;
+
+            case FACTORIAL:
+                stack[top] = Arithmetic.factorial(stack[top]);
+                break;
+
+            case ADD:
+                top--;
+                stack[top] = Arithmetic.add(stack[top], stack[top + 1]);
+                break;
+
+            case SUBTRACT:
+                top--;
+                stack[top] = Arithmetic.subtract(stack[top], stack[top + 1]);
+                break;
+
+            case MULTIPLY:
+                top--;
+                stack[top] = Arithmetic.multiply(stack[top], stack[top + 1]);
+                break;
+
+            case DIVIDE:
+                top--;
+                stack[top] = Arithmetic.divide(stack[top], stack[top + 1]);
+                break;
+
+            case POW:
+                top--;
+                stack[top] = Arithmetic.pow(stack[top], stack[top + 1]);
+                break;
+
+            case VARIABLE:
+                throw undefinedVariable((char) number);
+
+            default:
+                stack[top] = Arithmetic.function(op, stack[top], isRad);
+                break;
+        }
+        return top;
+    }
+
+    static CalculateException undefinedVariable(char name) {
+        return new CalculateException("Undefined variable " + name, CalculateException.UNDEFINED_VARIABLE);
+    }
+
+    /**
+     * 把后缀顺序的指令写入代码
+     */
+    private static final class Compiler extends ShuntingYard {
+
+        private final byte[] code;
+        private final double[] numbers;
+        private final char[] variables;
+        private int length, depth, maxDepth;
+
+        Compiler(int size, char[] variables) {
+            code = new byte[Math.max(size * 2, 1)];
+            numbers = new double[code.length];
+            this.variables = variables;
+        }
+
+        @Override
+        void emit(byte op, double number) {
+            if (op == VARIABLE)
+                number = indexOfVariable((char) number);
+
+            code[length] = op;
+            numbers[length] = number;
+            length++;
+
+            if (op == NUMBER || op == VARIABLE)
+                maxDepth = Math.max(maxDepth, ++depth);
+            else if (isBinary(op))
+                depth--;
+        }
+
+        private int indexOfVariable(char name) {
+            for (int i = 0; i < variables.length; i++) {
+                if (variables[i] == name)
+                    return i;
+            }
+            throw undefinedVariable(name);
+        }
+
+        CompiledExpression build() {
+            finish();
+            return new CompiledExpression(Arrays.copyOf(code, length), Arrays.copyOf(numbers, length), null, maxDepth, variables.length, 0, 0);
+        }
+    }
+}
@@ -0,0 +1,1575 @@
+package com.ashfly.android.calculator.demo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 构造和计算算式
+ */
+public class EquationBuilder {
+
+    public static final List<Character> DIGIT_CHARS = Arrays.asList('1', '2', '3', '4', '5', '6', '7', '8', '9', '0');
+
+    public static final List<Character> BASIC_OPERATORS = Arrays.asList('+', '-', '×', '÷', '^');
+    public static final List<Character> ADVANCED_OPERATORS = Arrays.asList('!', '%');
+
+    public static final List<Character> SEPARATE_CHARS = Arrays.asList('(', ')', 'e', 'π'); //这些字符总会独占一个位置
+    public static final List<String> MATH_FUNCTIONS = Arrays.asList("sin-1", "cos-1", "tan-1", "sin", "cos", "tan", "ln", "lg", "exp", "√");
+
+    public static final char EMPTY_CHAR = '\u0000';
+    private static final int GUARD_DIGITS = 10; //高精度计算时额外保留的有效数字
+    public static final String TAG = "ExpressionBuilder";
+    private static final int DEFAULT_CACHE_CAPACITY = 256;
+    private static final int STATE_VERSION = 2; //toByteArray 的格式版本，之前的格式第一个字节总是 0，会被当作不支持的版本
+    private static final int STATE_VERSION_WITHOUT_CURSOR = 1; //光标总在末尾，仍然可以读取
+    private static final char[] NO_VARIABLES = new char[0];
+    private static final Partial[] NO_PARTIALS = new Partial[0];
+
+    //所有 EquationBuilder 共用，null 表示不缓存
+    private static volatile ResultCache resultCache = new ResultCache(DEFAULT_CACHE_CAPACITY);
+    //所有 EquationBuilder 共用，null 表示不统计
+    private static volatile CalculatorMetrics metrics;
+
+    /**
+     * tokens:     0      1       2       3       4      5       ...
+     * operators:      1       2       3       4       5       ...
+     * <p>
+     * 每个记号保存它前面的运算符，第一个记号没有运算符
+     * <p>
+     * 光标在两个记号之间，也就是 tokens 的间隙处，输入和删除都作用于光标之前的记号，就像光标之前的部分是整个算式一样。
+     * index 是光标之前的最后一个记号；unmatchedLeftBracket 是整个算式中未闭合的左括号数量，可能为负数，
+     * 减去光标之后的部分 bracketsAfterCursor 就是光标处的括号层数。
+     */
+    private final TokenBuffer tokens = new TokenBuffer();
+    private int index = 0, unmatchedLeftBracket = 0, bracketsAfterCursor = 0;
+
+    //增量计算的缓存，见 calculate
+    private Scope rootScope; //第一次计算时创建
+    private final List<Scope> scopes = new ArrayList<>(); //每个记号处理后所在的作用域
+    private final List<Partial> partials = new ArrayList<>(); //按创建顺序排列
+    private Partial[] closedGroups = NO_PARTIALS; //左括号的下标 -> 括号的结果
+    private final int[] computedPartials = new int[2]; //角度制和弧度制下已经计算过的部分结果数量
+    private Evaluator evaluator; //第一次计算时创建，只解析的算式不需要
+    private boolean lastResultExact; //上一次 calculate 的结果是否精确，见 calculate(boolean, MathContext)
+
+    public EquationBuilder() {
+    }
+
+    /**
+     * 从 {@link #toByteArray()} 的结果恢复
+     *
+     * @throws IllegalArgumentException 数据不完整、不合法或者版本不支持
+     */
+    public static EquationBuilder fromByteArray(byte[] state) {
+        EquationBuilder builder = new EquationBuilder();
+        try {
+            ByteBuffer in = ByteBuffer.wrap(state);
+            int version = in.get();
+            if (version != STATE_VERSION && version != STATE_VERSION_WITHOUT_CURSOR)
+                throw new IllegalArgumentException("Unsupported state version: " + version);
+
+            int index = TokenBuffer.readVarint(in);
+            if (version == STATE_VERSION_WITHOUT_CURSOR) {
+                int unmatchedLeftBracket = TokenBuffer.readVarint(in);
+                builder.tokens.readFrom(in);
+                if (index < 0 || index >= Math.max(builder.tokens.size(), 1) || unmatchedLeftBracket < 0)
+                    throw new IllegalArgumentException("Invalid index: " + index + ", " + unmatchedLeftBracket);
+                builder.index = index;
+                builder.unmatchedLeftBracket = unmatchedLeftBracket;
+                return builder;
+            }
+
+            int cursor = TokenBuffer.readVarint(in);
+            builder.tokens.readFrom(in);
+            int size = builder.tokens.size();
+            if (cursor < 0 || cursor > size || index < 0 || index >= Math.max(cursor, 1))
+                throw new IllegalArgumentException("Invalid cursor: " + index + ", " + cursor);
+            builder.tokens.moveGap(cursor);
+            builder.index = index;
+            builder.bracketsAfterCursor = builder.bracketBalance(cursor, size);
+            builder.unmatchedLeftBracket = builder.bracketBalance(0, cursor) + builder.bracketsAfterCursor;
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Broken state", e);
+        }
+        return builder;
+    }
+
+    /**
+     * 复制正在编辑的算式，不包括计算的中间结果，用于交给其他线程计算。
+     * 需要中间结果时用 {@link #syncFrom(EquationBuilder)} 更新一个长期使用的 EquationBuilder
+     */
+    public EquationBuilder copy() {
+        EquationBuilder copy = new EquationBuilder();
+        copy.tokens.copyFrom(tokens);
+        copy.index = index;
+        copy.unmatchedLeftBracket = unmatchedLeftBracket;
+        copy.bracketsAfterCursor = bracketsAfterCursor;
+        return copy;
+    }
+
+    /**
+     * 变成与 source 相同的算式，与 source 开头相同的记号保留计算的缓存，只有之后的部分需要重新计算。
+     * 供 {@link BackgroundEvaluator} 在后台线程中复用上一次计算的结果，source 是提交时的副本
+     */
+    void syncFrom(EquationBuilder source) {
+        int common = tokens.commonPrefix(source.tokens);
+        //第 common 个记号前面的运算符也可能不同
+        if (common < tokens.size() || common < source.tokens.size())
+            invalidateFrom(common - 1);
+        tokens.copyFrom(source.tokens);
+        index = source.index;
+        unmatchedLeftBracket = source.unmatchedLeftBracket;
+        bracketsAfterCursor = source.bracketsAfterCursor;
+    }
+
+    /**
+     * @return 光标之前的记号数量，光标在末尾时等于 {@link #getTokenCount()}
+     */
+    public int getCursor() {
+        return tokens.gap();
+    }
+
+    public int getTokenCount() {
+        return tokens.size();
+    }
+
+    /**
+     * 把光标移到第 position 个记号之前，之后的输入和删除都在这里进行。
+     * 移动的代价与移动的距离成正比，不影响计算的缓存
+     * <p>
+     * 函数和它的左括号是一个整体，position 在两者之间时光标移到左括号之后，见 {@link #isCursorStop(int)}
+     *
+     * @param position 0 到 {@link #getTokenCount()}
+     */
+    public void setCursor(int position) {
+        if (position < 0 || position > tokens.size())
+            throw new IndexOutOfBoundsException("Cursor: " + position + ", size: " + tokens.size());
+        if (!isCursorStop(position))
+            position++;
+
+        int gap = tokens.gap();
+        if (position == gap)
+            return;
+
+        //光标离开时，还没有输入内容的当前记号没有意义
+        if (gap > 0 && isPlaceholder(gap - 1)) {
+            removePlaceholder();
+            if (position >= gap)
+                position--;
+        }
+
+        gap = tokens.gap();
+        if (position < gap)
+            bracketsAfterCursor += bracketBalance(position, gap);
+        else
+            bracketsAfterCursor -= bracketBalance(gap, position);
+        tokens.moveGap(position);
+        index = Math.max(position - 1, 0);
+    }
+
+    /**
+     * @return 光标能否停在第 position 个记号之前。函数和紧跟的左括号之间不能，否则输入的内容会把两者分开：sin2(30)
+     */
+    public boolean isCursorStop(int position) {
+        if (position <= 0 || position >= tokens.size())
+            return true;
+        return tokens.kind(position - 1) != TokenBuffer.FUNCTION || tokens.kind(position) != TokenBuffer.LEFT_BRACKET
+                || tokens.operator(position) != EMPTY_CHAR;
+    }
+
+    public boolean appendChar(char c) {
+        boolean appended = insertChar(c);
+        //没有输入时也要调整，插入位置可能留下了占位记号
+        if (tokens.gap() < tokens.size())
+            appended = fixCursorSeam(appended) && appended;
+        return appended;
+    }
+
+    private boolean insertChar(char c) {
+        int token = tryGetCurrentToken();
+
+        int charClass = TokenBuffer.charClass(c);
+        if (charClass == TokenBuffer.CHAR_OPERATOR)
+            return appendBasicOperator(c, token);
+        if (charClass == TokenBuffer.CHAR_ENDING)
+            return appendEndingFunction(c, token);
+        if (charClass == TokenBuffer.CHAR_CONSTANT)
+            return appendPIorE(c, token);
+        if (charClass == TokenBuffer.CHAR_SQRT)
+            return appendLeadingFunction(Arithmetic.SQRT);
+
+
+        //函数、括号、常量和 % ! 总会独占一个记号
+        boolean needNewToken = tokens.kind(token) != TokenBuffer.NUMBER;
+
+        if (!needNewToken) {
+            int length = tokens.length(token);
+            if (length > 1 && tokens.sign(token) != EMPTY_CHAR)
+                length--;
+            if (length >= TokenBuffer.MAX_DIGITS)
+                return false;
+        }
+
+        if (charClass == TokenBuffer.CHAR_DIGIT)
+            return appendDigitChar(c, needNewToken ? createNewToken(EMPTY_CHAR) : token);
+        if (charClass == TokenBuffer.CHAR_DOT)
+            return appendDot(needNewToken ? createNewToken(EMPTY_CHAR) : token);
+
+        return false;
+    }
+
+    //适时添加左括号或右括号，并将添加的括号返回
+    public char appendBracket() {
+        int token = tryGetCurrentToken();
+        char bracket;
+
+        if (tokens.isEmpty(token))
+            bracket = '(';
+        else {
+            //. +. -.
+            if (tokens.hasDot(token) && !tokens.hasDigits(token))
+                return EMPTY_CHAR;
+
+            if (tokens.isSignOnly(token) || tokens.kind(token) == TokenBuffer.LEFT_BRACKET)
+                bracket = '(';
+            else
+                bracket = unmatchedLeftBracket > 0 && unmatchedLeftBracket - bracketsAfterCursor > 0 ? ')' : '(';
+
+            token = createNewToken(EMPTY_CHAR);
+        }
+
+        appendBracket(token, bracket);
+        if (tokens.gap() < tokens.size() && !fixCursorSeam(true))
+            return EMPTY_CHAR;
+
+        return bracket;
+    }
+
+    private void appendBracket(int token, char bracket) {
+        if (bracket == '(') {
+            unmatchedLeftBracket++;
+        } else if (bracket == ')')
+            unmatchedLeftBracket--;
+        else
+            return;
+
+        invalidateFrom(index);
+        tokens.setKind(token, bracket == '(' ? TokenBuffer.LEFT_BRACKET : TokenBuffer.RIGHT_BRACKET);
+    }
+
+    public boolean appendLeadingFunction(String function) {
+        int id = MATH_FUNCTIONS.indexOf(function);
+        if (id < 0)
+            return false;
+        return appendLeadingFunction(id);
+    }
+
+    private boolean appendLeadingFunction(int function) {
+        int token = tryGetCurrentToken();
+        if (!tokens.isEmpty(token))
+            token = createNewToken(EMPTY_CHAR);
+
+        invalidateFrom(index);
+        tokens.setFunction(token, function);
+
+        if (function != Arithmetic.SQRT)
+            appendBracket(createNewToken(EMPTY_CHAR), '(');
+        return tokens.gap() == tokens.size() || fixCursorSeam(true);
+    }
+
+    private boolean appendEndingFunction(char c, int token) {
+        switch (tokens.kind(token)) {
+            case TokenBuffer.NUMBER:
+                if (!tokens.hasDigits(token))
+                    return false;
+                if (c == '!' && tokens.sign(token) == '-')
+                    splitNegative(token);
+                break;
+
+            case TokenBuffer.E:
+            case TokenBuffer.PI:
+            case TokenBuffer.VARIABLE:
+            case TokenBuffer.PERCENT:
+            case TokenBuffer.FACTORIAL:
+            case TokenBuffer.RIGHT_BRACKET:
+                break;
+
+            default:
+                return false;
+        }
+
+        token = createNewToken(EMPTY_CHAR);
+        tokens.setKind(token, c == '%' ? TokenBuffer.PERCENT : TokenBuffer.FACTORIAL);
+        return true;
+    }
+
+    private boolean appendDot(int token) {
+        invalidateFrom(index);
+
+        //无意义的0可以省略， 例如 .9=0.9 -.9=-0.9
+        //一个数最多有一个小数点
+        if (tokens.hasDot(token))
+            return false;
+
+        tokens.appendDot(token);
+        return true;
+    }
+
+    private boolean appendPIorE(char c, int token) {
+        if (!tokens.isEmpty(token))
+            token = createNewToken(EMPTY_CHAR);
+        invalidateFrom(index);
+        tokens.setKind(token, c == 'e' ? TokenBuffer.E : TokenBuffer.PI);
+        return true;
+    }
+
+    /**
+     * 添加变量，变量名只能是除 e 以外的小写字母
+     * <p>
+     * 含有变量的算式不能直接计算，需要用 {@link #compile(char...)} 编译后代入变量的值
+     */
+    public boolean appendVariable(char name) {
+        if (!TokenBuffer.isVariableName(name))
+            return false;
+
+        int token = tryGetCurrentToken();
+        if (!tokens.isEmpty(token))
+            token = createNewToken(EMPTY_CHAR);
+        invalidateFrom(index);
+        tokens.setVariable(token, name);
+        return tokens.gap() == tokens.size() || fixCursorSeam(true);
+    }
+
+    private boolean appendDigitChar(char c, int token) {
+        invalidateFrom(index);
+
+        //不得在数字开头加多余的0
+        if (tokens.length(token) == 1 && tokens.firstChar(token) == '0')
+            return false;
+
+        tokens.appendDigit(token, c);
+        return true;
+    }
+
+    private boolean appendBasicOperator(char c, int token) {
+        boolean isSign = c == '+' || c == '-';
+        if (tokens.isEmpty(token)) {
+            if (!isSign) {
+                return false;
+            }
+            invalidateFrom(index);
+            tokens.setSign(token, c);
+            return true;
+        }
+
+        switch (tokens.kind(token)) {
+            case TokenBuffer.LEFT_BRACKET:
+            case TokenBuffer.FUNCTION:
+                //左括号和根号后面只能跟正负号
+                if (!isSign || (tokens.kind(token) == TokenBuffer.FUNCTION && tokens.function(token) != Arithmetic.SQRT))
+                    return false;
+                tokens.setSign(createNewToken(EMPTY_CHAR), c);
+                return true;
+
+            case TokenBuffer.NUMBER:
+                if (!tokens.hasDigits(token))
+                    return false;
+                if (c == '^' && tokens.sign(token) == '-')
+                    splitNegative(token);
+                break;
+        }
+
+        createNewToken(c);
+        return true;
+    }
+
+    //-2^2=-4
+    private void splitNegative(int token) {
+        invalidateFrom(index);
+        tokens.splitSign(token, createNewToken(EMPTY_CHAR));
+    }
+
+    /**
+     * 删除光标之前的一个字符
+     *
+     * @param displayedLastChar 显示的光标之前的字符
+     * @return 被删除的字符，没有可删除的字符时返回 EMPTY_CHAR
+     */
+    public char backspace(char displayedLastChar) {
+        char back = deleteChar(displayedLastChar);
+        if (tokens.gap() < tokens.size())
+            fixCursorSeam(false);
+        return back;
+    }
+
+    private char deleteChar(char displayedLastChar) {
+        if (tokens.gap() == 0)
+            return EMPTY_CHAR;
+
+        int token = tryGetCurrentToken();
+        if (!tokens.isEmpty(token)) {
+            char back = tokens.deleteLastChar(token);
+            invalidateFrom(index);
+
+            if (tokens.isEmpty(token) && index > 0 && tokens.operator(index) == EMPTY_CHAR) {
+                tokens.removeBeforeGap();
+                index--;
+                invalidateFrom(index);
+            }
+
+            if (back == ')')
+                unmatchedLeftBracket++;
+            else if (back == '(') {
+                unmatchedLeftBracket--;
+
+                //函数和它的左括号一起删除
+                if (index < tokens.gap() && tokens.kind(index) == TokenBuffer.FUNCTION) {
+                    back = tokens.firstChar(index);
+                    tokens.setEmpty(index);
+                    //与删除其他字符一样，不留下没有运算符的空记号，否则之后输入的数字会与前一个数字连在一起
+                    if (index > 0 && tokens.operator(index) == EMPTY_CHAR) {
+                        tokens.removeBeforeGap();
+                        index--;
+                        invalidateFrom(index);
+                    }
+                }
+            }
+
+            return back;
+        }
+
+        //length = 0...
+        char back = tokens.operator(index);
+        tokens.removeBeforeGap();
+        invalidateFrom(index - 1);
+        if (index > 0) {
+            index--;
+            return back == displayedLastChar ? back : deleteChar(displayedLastChar);
+        }
+
+        return EMPTY_CHAR;
+    }
+
+    public void clear() {
+        tokens.clear();
+        index = unmatchedLeftBracket = bracketsAfterCursor = 0;
+        invalidateFrom(0);
+    }
+
+    /**
+     * 光标处的输入或删除之后，调整光标前后相邻的两个记号，使算式的文本与记号的含义一致。
+     * 不一致又无法调整时撤销刚才的输入
+     *
+     * @param undoable 刚才是否输入了一个字符，删除时不能撤销
+     * @return 是否保留了刚才的输入
+     */
+    private boolean fixCursorSeam(boolean undoable) {
+        int gap = tokens.gap();
+        if (gap > 0 && isPlaceholder(gap - 1)) {
+            removePlaceholder();
+            gap--;
+        }
+
+        //光标之前的负数后面是 ^ 或 ! 时，与输入时一样拆开负号
+        int last = gap - 1;
+        if (gap > 0 && tokens.sign(last) == '-' && tokens.hasDigits(last) && isRaised(last)) {
+            invalidateFrom(last);
+            tokens.add(EMPTY_CHAR);
+            tokens.splitSign(last, gap);
+            index = gap;
+            return true;
+        }
+
+        //光标之后的记号成为第一个记号，或者跟在左括号、函数和单独的运算符之后时，它前面的加减号在文本中是正负号
+        char operator = tokens.operator(gap);
+        boolean signExpected = gap == 0 || tokens.isEmpty(last)
+                || tokens.kind(last) == TokenBuffer.LEFT_BRACKET || tokens.kind(last) == TokenBuffer.FUNCTION;
+        if (signExpected && operator != EMPTY_CHAR) {
+            boolean isSign = operator == '+' || operator == '-';
+            //其他运算符在第一个记号前面没有意义，与 Parser 一样去掉；在中间时与末尾的输入一样不接受：5×|^2
+            if (!isSign && gap > 0)
+                return rejectAfterCursor(undoable);
+            invalidateFrom(last);
+            tokens.setOperator(gap, EMPTY_CHAR);
+            if (!isSign) {
+                //只有运算符的记号随运算符一起去掉
+                if (tokens.isEmpty(gap)) {
+                    tokens.removeAfterGap();
+                    return tokens.gap() == tokens.size() || fixCursorSeam(undoable);
+                }
+                return true;
+            }
+
+            //只有运算符的记号后面还有没有运算符的记号时，把符号交给后者：÷|+6
+            if (tokens.isEmpty(gap) && gap + 1 < tokens.size() && tokens.operator(gap + 1) == EMPTY_CHAR) {
+                tokens.removeAfterGap();
+                tokens.setOperator(gap, operator);
+                return fixCursorSeam(undoable);
+            }
+            if (tokens.kind(gap) == TokenBuffer.NUMBER) {
+                char sign = tokens.sign(gap);
+                operator = sign == EMPTY_CHAR ? operator : sign == operator ? '+' : '-';
+                //与输入时一样，后面是 ^ 或 ! 的数字不带负号：-2^2=-4
+                if (operator == '+' || !isRaised(gap)) {
+                    tokens.setSign(gap, operator);
+                    return true;
+                }
+                tokens.setSign(gap, EMPTY_CHAR);
+                if (tokens.isEmpty(gap))
+                    tokens.removeAfterGap();
+            }
+            if (gap > 0 && tokens.isEmpty(last)) {
+                tokens.setSign(last, operator);
+            } else {
+                tokens.add(EMPTY_CHAR);
+                tokens.setSign(gap, operator);
+                index = gap;
+            }
+            return true;
+        }
+        //运算符、右括号、! 和 % 前面需要完整的操作数，只有正负号或小数点的数字也不行：(-|×3 (|) 5×|!
+        if (needsOperand(gap) && (gap == 0 || !isOperand(last)))
+            return rejectAfterCursor(undoable);
+        if (gap == 0 || operator != EMPTY_CHAR || tokens.kind(gap) != TokenBuffer.NUMBER)
+            return true;
+
+        //反过来，跟在完整的操作数之后时，正负号在文本中是加减号
+        char sign = tokens.sign(gap);
+        if (sign != EMPTY_CHAR && !tokens.isUnfinished(last)) {
+            invalidateFrom(last);
+            tokens.setSign(gap, EMPTY_CHAR);
+            tokens.setOperator(gap, sign);
+            return true;
+        }
+
+        //两个数字相邻时文本会连在一起
+        if (tokens.kind(last) != TokenBuffer.NUMBER || tokens.isEmpty(last))
+            return true;
+        if (tokens.hasDigits(last)) {
+            invalidateFrom(last);
+            tokens.setOperator(gap, '×');
+            return true;
+        }
+
+        //只有正负号或小数点的数字与后面的数字合并，光标在合并后的数字之前：(|3 输入 - 得到 (|-3
+        if (tokens.sign(gap) == EMPTY_CHAR && !(tokens.hasDot(last) && tokens.hasDot(gap))) {
+            invalidateFrom(last);
+            String merged = tokens.text(last) + tokens.text(gap);
+            //后面紧跟着 ^ 或 ! 时负号仍然单独作为一个记号，与输入时拆开负号的结果相同
+            if (tokens.sign(last) == '-' && isRaised(gap)) {
+                tokens.setText(gap, merged.substring(1));
+                tokens.setText(last, "-");
+                return true;
+            }
+            tokens.setText(gap, merged);
+            tokens.setOperator(gap, tokens.operator(last));
+            tokens.removeBeforeGap();
+            index = Math.max(last - 1, 0);
+            return fixCursorSeam(undoable);
+        }
+
+        //无法合并时撤销刚才输入的正负号或小数点
+        if (!undoable)
+            return true;
+        undoInput();
+        return false;
+    }
+
+    /**
+     * 光标之后的记号前面缺少操作数时，撤销刚才的输入。
+     * 删除造成的无法撤销，两个运算符相邻时去掉后一个；右括号、! 和 % 保持原样，
+     * 否则要连续去掉的记号数量没有上限：((|))!!
+     *
+     * @return 是否保留了刚才的输入
+     */
+    private boolean rejectAfterCursor(boolean undoable) {
+        int gap = tokens.gap();
+        if (undoable && gap > 0) {
+            undoInput();
+            return false;
+        }
+        if (tokens.operator(gap) == EMPTY_CHAR)
+            return true;
+
+        invalidateFrom(gap - 1);
+        tokens.setOperator(gap, EMPTY_CHAR);
+        if (!tokens.isEmpty(gap))
+            return fixCursorSeam(false);
+        tokens.removeAfterGap();
+        return tokens.gap() == tokens.size() || fixCursorSeam(false);
+    }
+
+    //前面需要一个完整的操作数：除正负号以外的运算符，或者右括号、! 和 %
+    private boolean needsOperand(int token) {
+        char operator = tokens.operator(token);
+        if (operator != EMPTY_CHAR)
+            return true;
+        byte kind = tokens.kind(token);
+        return kind == TokenBuffer.RIGHT_BRACKET || kind == TokenBuffer.FACTORIAL || kind == TokenBuffer.PERCENT;
+    }
+
+    //可以作为运算符左边的操作数，与 appendEndingFunction 接受的记号相同
+    private boolean isOperand(int token) {
+        switch (tokens.kind(token)) {
+            case TokenBuffer.NUMBER:
+                return tokens.hasDigits(token);
+            case TokenBuffer.E:
+            case TokenBuffer.PI:
+            case TokenBuffer.VARIABLE:
+            case TokenBuffer.PERCENT:
+            case TokenBuffer.FACTORIAL:
+            case TokenBuffer.RIGHT_BRACKET:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    //删除光标之前刚输入的一个字符，只有运算符的记号连同运算符一起删除
+    private void undoInput() {
+        int last = tokens.gap() - 1;
+        deleteChar(tokens.isEmpty(last) ? tokens.operator(last) : EMPTY_CHAR);
+        if (tokens.gap() > 0 && isPlaceholder(tokens.gap() - 1))
+            removePlaceholder();
+    }
+
+    //后面紧跟着 ^ 或 !
+    private boolean isRaised(int token) {
+        int next = token + 1;
+        if (next >= tokens.size())
+            return false;
+        char operator = tokens.operator(next);
+        return operator == '^' || (operator == EMPTY_CHAR && tokens.kind(next) == TokenBuffer.FACTORIAL);
+    }
+
+    //没有内容也没有运算符的记号，只是为了输入而添加的
+    private boolean isPlaceholder(int token) {
+        return tokens.isEmpty(token) && tokens.operator(token) == EMPTY_CHAR;
+    }
+
+    //删除光标之前的占位记号
+    private void removePlaceholder() {
+        int gap = tokens.gap();
+        invalidateFrom(gap - 1);
+        tokens.removeBeforeGap();
+        index = Math.max(gap - 2, 0);
+    }
+
+    //[from, to) 之间左括号与右括号的数量之差
+    private int bracketBalance(int from, int to) {
+        int balance = 0;
+        for (int i = from; i < to; i++) {
+            byte kind = tokens.kind(i);
+            if (kind == TokenBuffer.LEFT_BRACKET)
+                balance++;
+            else if (kind == TokenBuffer.RIGHT_BRACKET)
+                balance--;
+        }
+        return balance;
+    }
+
+    public static ResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * 设置所有 EquationBuilder 共用的结果缓存
+     *
+     * @param cache null 表示不缓存
+     */
+    public static void setResultCache(ResultCache cache) {
+        resultCache = cache;
+    }
+
+    public static CalculatorMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * 设置所有 EquationBuilder 共用的统计
+     *
+     * @param metrics null 表示不统计
+     */
+    public static void setMetrics(CalculatorMetrics metrics) {
+        EquationBuilder.metrics = metrics;
+    }
+
+    public double calculate(boolean isRad) {
+        return calculate(isRad, (CalculateBudget) null);
+    }
+
+    /**
+     * 在预算以内计算，超出时抛出 reason 为 {@link CalculateException#BUDGET_EXCEEDED} 的异常
+     *
+     * @param budget null 表示不限制
+     */
+    public double calculate(boolean isRad, CalculateBudget budget) {
+        CalculatorMetrics metrics = EquationBuilder.metrics;
+        if (metrics == null)
+            return calculateCached(isRad, budget);
+
+        long start = System.nanoTime();
+        try {
+            return calculateCached(isRad, budget);
+        } catch (CalculateException e) {
+            metrics.countError(e.reason);
+            throw e;
+        } finally {
+            metrics.record(CalculatorMetrics.EVALUATE, System.nanoTime() - start);
+        }
+    }
+
+    private double calculateCached(boolean isRad, CalculateBudget budget) {
+        lastResultExact = true;
+        int size = tokens.size();
+        if (size == 0)
+            return 0;
+
+        //光标不在末尾时不需要当前记号
+        if (tokens.gap() == size)
+            tryGetCurrentToken();
+
+        //末尾未闭合的符号不参与计算
+        size = finishedSize();
+        if (size == 0)
+            return 0;
+
+        //同样的记号序列之前计算过，直接使用缓存的结果
+        ResultCache cache = resultCache;
+        if (cache == null)
+            return evaluate(isRad, size, budget);
+
+        long[] key = tokens.snapshot(size);
+        ResultCache.Result cached = cache.get(key, isRad);
+        CalculatorMetrics metrics = EquationBuilder.metrics;
+        if (metrics != null)
+            metrics.count(cached == null ? CalculatorMetrics.CACHE_MISSES : CalculatorMetrics.CACHE_HITS);
+        if (cached == null) {
+            double result;
+            try {
+                result = evaluate(isRad, size, budget);
+            } catch (CalculateException e) {
+                //超出预算与算式本身无关，下次可能算得完
+                if (e.reason != CalculateException.BUDGET_EXCEEDED)
+                    cache.put(key, isRad, new ResultCache.Result(e));
+                throw e;
+            }
+            cache.put(key, isRad, new ResultCache.Result(result, lastResultExact));
+            return result;
+        }
+        lastResultExact = cached.exact;
+        return cached.getValue();
+    }
+
+    private double evaluate(boolean isRad, int size, CalculateBudget budget) {
+        if (evaluator == null)
+            evaluator = new Evaluator();
+        evaluator.budget = budget;
+        updateScopes();
+
+        //已经闭合的括号和已经确定的前缀直接使用缓存的结果，只有末尾尚未确定的部分需要重新计算
+        int mode = isRad ? 1 : 0;
+        computePartials(mode, isRad);
+
+        List<Scope> chain = new ArrayList<>();
+        for (Scope scope = scopes.get(size - 1); scope != null; scope = scope.parent)
+            chain.add(scope);
+
+        evaluator.reset(isRad);
+        for (int i = chain.size() - 1; i >= 0; i--) {
+            int end = i > 0 ? chain.get(i - 1).start - 1 : size;
+            reduce(chain.get(i), end, mode);
+            if (end < size)
+                evaluator.accept(tokens, end);
+        }
+        double result = evaluator.evaluate();
+        lastResultExact = evaluator.exact;
+        return result;
+    }
+
+    /**
+     * 按 mathContext 的精度计算
+     * <p>
+     * 先按 double 计算，只有结果不能保证精确时，才用 BigDecimal 重新计算整个算式，所以常见的整数运算不会变慢
+     *
+     * @param mathContext 精度必须大于0
+     */
+    public BigDecimal calculate(boolean isRad, MathContext mathContext) {
+        return calculate(isRad, mathContext, null);
+    }
+
+    /**
+     * 在预算以内按 mathContext 的精度计算，double 和 BigDecimal 两次计算共用同一份预算
+     *
+     * @param budget null 表示不限制
+     */
+    public BigDecimal calculate(boolean isRad, MathContext mathContext, CalculateBudget budget) {
+        if (mathContext.getPrecision() == 0)
+            throw new IllegalArgumentException("Unlimited precision is not supported");
+
+        CalculatorMetrics metrics = EquationBuilder.metrics;
+        if (metrics == null)
+            return calculatePrecise(isRad, mathContext, budget);
+
+        long start = System.nanoTime();
+        try {
+            return calculatePrecise(isRad, mathContext, budget);
+        } catch (CalculateException e) {
+            metrics.countError(e.reason);
+            throw e;
+        } finally {
+            metrics.record(CalculatorMetrics.EVALUATE, System.nanoTime() - start);
+        }
+    }
+
+    private BigDecimal calculatePrecise(boolean isRad, MathContext mathContext, CalculateBudget budget) {
+        double value = calculateCached(isRad, budget);
+        if (lastResultExact)
+            return new BigDecimal(value).round(mathContext);
+
+        MathContext working = new MathContext(mathContext.getPrecision() + GUARD_DIGITS, mathContext.getRoundingMode());
+        PreciseEvaluator precise = new PreciseEvaluator(isRad, working);
+        precise.budget = budget;
+        for (int i = 0, size = finishedSize(); i < size; i++)
+            precise.accept(tokens, i);
+        return precise.evaluate().round(mathContext);
+    }
+
+    //去掉末尾未闭合的符号之后的记号数量
+    private int finishedSize() {
+        int size = tokens.size();
+        while (size > 0 && tokens.isUnfinished(size - 1))
+            size--;
+        return size;
+    }
+
+    /**
+     * 按顺序处理新增记号的括号结构，记录每个记号所在的作用域，以及作用域中已经确定的部分
+     */
+    private void updateScopes() {
+        int size = tokens.size();
+        if (closedGroups.length < size)
+            closedGroups = Arrays.copyOf(closedGroups, Math.max(size, closedGroups.length * 2));
+
+        for (int i = scopes.size(); i < size; i++) {
+            if (rootScope == null)
+                rootScope = new Scope(null, 0);
+            Scope scope = i == 0 ? rootScope : scopes.get(i - 1);
+
+            //顶层的加减号之前的部分不会再受后面的记号影响
+            if (i > 0) {
+                char operator = tokens.operator(i);
+                int prefixes = scope.prefixes.size();
+                if ((operator == '+' || operator == '-') &&
+                        (prefixes == 0 || scope.prefixes.get(prefixes - 1).index != i - 1)) {
+                    Partial prefix = new Partial(scope, i - 1, false);
+                    scope.prefixes.add(prefix);
+                    partials.add(prefix);
+                }
+            }
+
+            byte kind = tokens.kind(i);
+            if (kind == TokenBuffer.LEFT_BRACKET) {
+                scope = new Scope(scope, i + 1);
+            } else if (kind == TokenBuffer.RIGHT_BRACKET && scope.parent != null) {
+                Partial group = new Partial(scope, i, true);
+                closedGroups[scope.start - 1] = group;
+                partials.add(group);
+                scope = scope.parent;
+            }
+            scopes.add(scope);
+        }
+    }
+
+    /**
+     * 第 index 个及之后的记号、第 index+1 个及之后的记号前面的运算符发生了变化，丢弃依赖它们的缓存
+     */
+    private void invalidateFrom(int index) {
+        if (index < 0)
+            index = 0;
+        for (int i = scopes.size() - 1; i >= index; i--)
+            scopes.remove(i);
+
+        for (int i = partials.size() - 1; i >= 0; i--) {
+            Partial partial = partials.get(i);
+            if (partial.index < index)
+                break;
+
+            partials.remove(i);
+            if (partial.isGroup)
+                closedGroups[partial.scope.start - 1] = null;
+            else
+                partial.scope.prefixes.remove(partial.scope.prefixes.size() - 1);
+        }
+
+        int size = partials.size();
+        for (int mode = 0; mode < 2; mode++)
+            computedPartials[mode] = Math.min(computedPartials[mode], size);
+    }
+
+    //每个部分结果只依赖比它更早创建的部分结果，所以按顺序计算即可
+    private void computePartials(int mode, boolean isRad) {
+        for (int i = computedPartials[mode], size = partials.size(); i < size; i++) {
+            Partial partial = partials.get(i);
+            try {
+                //括号单独计算时末尾的运算符和左括号不能像整个算式那样忽略：() (2+)，Parser 接受的 (√) 不受影响
+                int last = partial.index - 1;
+                if (partial.isGroup && tokens.isUnfinished(last) && tokens.kind(last) != TokenBuffer.FUNCTION)
+                    throw ShuntingYard.formatError();
+                evaluator.reset(isRad);
+                reduce(partial.scope, partial.index + (partial.isGroup ? 0 : 1), mode);
+                partial.values[mode] = evaluator.evaluate();
+                partial.exact[mode] = evaluator.exact;
+                partial.errors[mode] = null;
+            } catch (CalculateException e) {
+                //这一个及之后的部分结果留到下次计算
+                if (e.reason == CalculateException.BUDGET_EXCEEDED) {
+                    computedPartials[mode] = i;
+                    throw e;
+                }
+                partial.errors[mode] = e;
+            }
+        }
+        computedPartials[mode] = partials.size();
+    }
+
+    /**
+     * 把作用域中 end 之前的记号交给 evaluator，已经确定的前缀和已经闭合的括号用它们的结果代替
+     */
+    private void reduce(Scope scope, int end, int mode) {
+        int start = scope.start;
+        for (int i = scope.prefixes.size() - 1; i >= 0; i--) {
+            Partial prefix = scope.prefixes.get(i);
+            if (prefix.index + 1 < end) {
+                evaluator.accept(tokens.operator(start), TokenBuffer.NUMBER, prefix.getValue(mode), 0);
+                evaluator.exact &= prefix.exact[mode];
+                start = prefix.index + 1;
+                break;
+            }
+        }
+
+        for (int i = start; i < end; i++) {
+            Partial group = i < closedGroups.length ? closedGroups[i] : null;
+            if (group != null && group.index < end) {
+                //括号与前一项之间的运算符就是左括号前面的运算符
+                evaluator.accept(tokens.operator(i), TokenBuffer.NUMBER, group.getValue(mode), 0);
+                evaluator.exact &= group.exact[mode];
+                i = group.index;
+            } else {
+                evaluator.accept(tokens, i);
+            }
+        }
+    }
+
+    /**
+     * 把当前算式编译为 {@link CompiledExpression}，之后可以反复计算而不必重新解析
+     *
+     * @throws CalculateException 算式格式错误
+     */
+    public CompiledExpression compile() {
+        return compile(NO_VARIABLES);
+    }
+
+    /**
+     * 编译含有变量的算式，计算时按 variables 的顺序传入变量的值
+     *
+     * @throws CalculateException 算式格式错误或使用了 variables 以外的变量
+     */
+    public CompiledExpression compile(char... variables) {
+        if (tokens.gap() == tokens.size())
+            tryGetCurrentToken();
+        return CompiledExpression.compile(tokens, variables);
+    }
+
+    //供同一个包中的 HistoryIndex 等直接读取记号
+    TokenBuffer getTokens() {
+        return tokens;
+    }
+
+    public double getCurrentNumber() {
+        checkIndex();
+        return tokens.value(index);
+    }
+
+    public String getCurrentNumberString() {
+        checkIndex();
+        return tokens.text(index);
+    }
+
+    private void checkIndex() {
+        if (index >= tokens.size())
+            throw new IndexOutOfBoundsException();
+    }
+
+    private int tryGetCurrentToken() {
+        int size = tokens.gap();
+        if (index > size)
+            throw new IndexOutOfBoundsException();
+
+        //在光标处插入时，后面的记号都向后移动
+        if (index == size) {
+            tokens.add(EMPTY_CHAR);
+            invalidateFrom(index - 1);
+        }
+
+        return index;
+    }
+
+    private int createNewToken(char operator) {
+        tokens.add(operator);
+        invalidateFrom(index);
+        index++;
+        return tryGetCurrentToken();
+    }
+
+    @Override
+    public String toString() {
+        return build();
+    }
+
+    public String build() {
+        return build(0, tokens.size());
+    }
+
+    /**
+     * @return 第 from 到 to 个记号（不包括 to）的文本，包括它们前面的运算符
+     */
+    public String build(int from, int to) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = from; i < to; i++) {
+            char operator = tokens.operator(i);
+            if (operator != EMPTY_CHAR)
+                builder.append(operator);
+            tokens.appendTo(i, builder);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * 保存正在编辑的算式，用于 Activity 重建等场合，见 {@link #fromByteArray(byte[])}
+     * <p>
+     * 第一个字节是版本号，之后是 varint 编码的 index 和光标的位置，最后是记号序列，
+     * 格式见 {@link TokenBuffer#writeTo(ByteArrayOutputStream)}。括号的数量恢复时重新统计。
+     * 版本 1 的第二个 varint 是未闭合的左括号数量，光标总在末尾
+     */
+    public byte[] toByteArray() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16 + tokens.size() * 4);
+        out.write(STATE_VERSION);
+        TokenBuffer.writeVarint(out, index);
+        TokenBuffer.writeVarint(out, tokens.gap());
+        tokens.writeTo(out);
+        return out.toByteArray();
+    }
+
+    /**
+     * 一对括号（或最外层）之内的作用域
+     */
+    private static final class Scope {
+        final Scope parent;
+        final int start; //作用域中第一个记号的下标
+        final List<Partial> prefixes = new ArrayList<>(); //顶层加减号之前已经确定的前缀
+
+        Scope(Scope parent, int start) {
+            this.parent = parent;
+            this.start = start;
+        }
+    }
+
+    /**
+     * 已经确定、不会再受后续输入影响的部分结果：作用域中某个顶层加减号之前的前缀，或者一对已经闭合的括号
+     */
+    private static final class Partial {
+        final Scope scope;
+        final int index; //前缀：加减号的下标；括号：右括号的下标
+        final boolean isGroup;
+        final double[] values = new double[2];
+        final boolean[] exact = new boolean[2];
+        final CalculateException[] errors = new CalculateException[2];
+
+        Partial(Scope scope, int index, boolean isGroup) {
+            this.scope = scope;
+            this.index = index;
+            this.isGroup = isGroup;
+        }
+
+        double getValue(int mode) {
+            if (errors[mode] != null)
+                throw errors[mode];
+            return values[mode];
+        }
+    }
+
+    /**
+     * 直接执行调度场算法输出的指令，不生成中间代码
+     */
+    private static final class Evaluator extends ShuntingYard {
+        //2^53，绝对值小于它的整数都能用 double 精确表示
+        private static final double MAX_EXACT_INTEGER = 9007199254740992.0;
+
+        private double[] stack = new double[16];
+        private int top;
+        private boolean isRad;
+        boolean exact; //到目前为止的每一步结果是否都是精确的整数
+
+        private static boolean isExactInteger(double value) {
+            return Math.abs(value) < MAX_EXACT_INTEGER && Math.rint(value) == value;
+        }
+
+        //整数的加减乘、乘方和阶乘只要结果没有超出范围就没有舍入误差，除法和开方需要验算
+        private static boolean isExact(byte op, double number, double left, double right, double result) {
+            switch (op) {
+                case CompiledExpression.NUMBER:
+                    //只有正负号的数字视为 ±1
+                    return Double.isInfinite(number) || isExactInteger(number);
+                case CompiledExpression.ADD:
+                case CompiledExpression.SUBTRACT:
+                case CompiledExpression.MULTIPLY:
+                case CompiledExpression.POW:
+                case CompiledExpression.FACTORIAL:
+                    return isExactInteger(result);
+                case CompiledExpression.DIVIDE:
+                    return isExactInteger(result) && result * Arithmetic.unsign(right) == Arithmetic.unsign(left);
+                case CompiledExpression.PERCENT:
+                    return isExactInteger(result) && result * 100 == right;
+                case Arithmetic.SQRT:
+                    return isExactInteger(result) && result * result == right;
+                default:
+                    return false;
+            }
+        }
+
+        void reset(boolean isRad) {
+            reset();
+            top = -1;
+            this.isRad = isRad;
+            exact = true;
+        }
+
+        @Override
+        void emit(byte op, double number) {
+            if (top + 1 == stack.length)
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            double left = top > 0 ? stack[top - 1] : 0, right = top >= 0 ? stack[top] : 0;
+            top = CompiledExpression.execute(op, number, stack, top, isRad);
+            if (exact)
+                exact = isExact(op, number, left, right, stack[top]);
+        }
+
+        double evaluate() {
+            finish();
+            double result = stack[0];
+            Arithmetic.check(result);
+            return result;
+        }
+    }
+
+    /**
+     * 用 BigDecimal 执行调度场算法输出的指令，数字使用记号的精确值
+     */
+    private static final class PreciseEvaluator extends ShuntingYard {
+        private final boolean isRad;
+        private final MathContext mathContext;
+        private BigDecimal[] stack = new BigDecimal[16];
+        private int top = -1;
+        private BigDecimal literal; //正在接收的记号的精确值
+
+        PreciseEvaluator(boolean isRad, MathContext mathContext) {
+            this.isRad = isRad;
+            this.mathContext = mathContext;
+        }
+
+        @Override
+        void accept(TokenBuffer tokens, int index) {
+            literal = tokens.decimal(index, mathContext);
+            super.accept(tokens, index);
+            literal = null;
+        }
+
+        @Override
+        void emit(byte op, double number) {
+            if (op == CompiledExpression.VARIABLE)
+                throw CompiledExpression.undefinedVariable((char) number);
+            if (op != CompiledExpression.NUMBER) {
+                top = PreciseArithmetic.execute(op, stack, top, isRad, mathContext);
+                return;
+            }
+
+            if (top + 1 == stack.length)
+                stack = Arrays.copyOf(stack, stack.length * 2);
+            stack[++top] = literal != null ? literal : new BigDecimal(number);
+        }
+
+        BigDecimal evaluate() {
+            finish();
+            return stack[0];
+        }
+    }
+
+    /**
+     * 把文本解析为算式
+     * <p>
+     * 一遍扫描：数字、运算符和常量直接交给对应的 append 方法，函数名和别名用字典树匹配，不生成中间字符串。
+     * 空格被忽略，/ − ＋ 视为 ÷ - +，E 和紧跟数字的 e 表示 ×10^。
+     * 输入可以是字符串，也可以是 Reader，后者只需固定大小的缓冲区，见 {@link #calculate(Reader, boolean)}。
+     */
+    public static final class Parser {
+
+        //都以左括号结尾，所以任何一个都不是另一个的前缀，同一位置最多只有一个能匹配
+        private static final String[] FUNCTION_NAMES = {
+                "sin-1(", "arcsin(", "asin(", "cos-1(", "arccos(", "acos(", "tan-1(", "arctan(", "atan(",
+                "sin(", "cos(", "tan(", "exp(", "lg(", "log(", "ln(", "sqrt("};
+        private static final int[] FUNCTION_IDS = {
+                Arithmetic.SIN_1, Arithmetic.SIN_1, Arithmetic.SIN_1, Arithmetic.COS_1, Arithmetic.COS_1, Arithmetic.COS_1,
+                Arithmetic.TAN_1, Arithmetic.TAN_1, Arithmetic.TAN_1,
+                Arithmetic.SIN, Arithmetic.COS, Arithmetic.TAN, Arithmetic.EXP, Arithmetic.LG, Arithmetic.LG, Arithmetic.LN, Arithmetic.SQRT};
+        private static final Trie FUNCTIONS = new Trie();
+
+        static {
+            for (int i = 0; i < FUNCTION_NAMES.length; i++)
+                FUNCTIONS.insert(FUNCTION_NAMES[i], FUNCTION_IDS[i]);
+        }
+
+        private static final int BUFFER_SIZE = 4096; //从 Reader 读取时的缓冲区
+        private static final int LOOKAHEAD = 8; //最长的函数名有7个字符，必须是2的幂
+        private static final int FLUSH_SIZE = 64; //流式计算时，积累这么多记号后交给 evaluator
+
+        //输入来自字符串或 Reader，二者只有一个不为 null
+        private final String equation;
+        private final Reader reader;
+        private final char[] buffer;
+        private int position, limit;
+
+        //去掉空格并统一写法之后，尚未处理的字符
+        private final char[] window = new char[LOOKAHEAD];
+        private int head, available;
+
+        private final char[] variables;
+        private final boolean isXVariable; //声明为变量的 x 不再表示乘号
+        private final EquationBuilder builder = new EquationBuilder();
+        private int function; //matchFunction 匹配到的函数
+
+        //流式计算时使用，见 calculate(Reader, boolean)
+        private final Evaluator evaluator;
+        private CalculateException error; //计算中第一个错误，读完整个算式再抛出
+        private int flushAt = FLUSH_SIZE;
+
+        private Parser(String equation, Reader reader, char[] variables, Evaluator evaluator) {
+            this.equation = equation;
+            this.reader = reader;
+            this.buffer = reader == null ? null : new char[BUFFER_SIZE];
+            this.limit = reader == null ? equation.length() : 0;
+            this.variables = variables;
+            this.isXVariable = contains(variables, 'x');
+            this.evaluator = evaluator;
+        }
+
+        public static EquationBuilder parseEquation(String equation) {
+            return parseEquation(equation, NO_VARIABLES);
+        }
+
+        /**
+         * 解析含有变量的算式，变量名见 {@link #appendVariable(char)}
+         * <p>
+         * 声明为变量的 x 不再表示乘号
+         *
+         * @param variables 可以出现在算式中的变量名
+         * @return 算式无效时返回 null
+         */
+        public static EquationBuilder parseEquation(String equation, char... variables) {
+            CalculatorMetrics metrics = EquationBuilder.metrics;
+            long start = metrics == null ? 0 : System.nanoTime();
+            EquationBuilder builder;
+            try {
+                builder = new Parser(equation, null, variables, null).parse();
+            } catch (IOException e) {
+                throw new AssertionError(e); //读取字符串不会出错
+            }
+
+            if (metrics != null) {
+                metrics.record(CalculatorMetrics.PARSE, System.nanoTime() - start);
+                if (builder == null)
+                    metrics.count(CalculatorMetrics.INVALID_EQUATIONS);
+            }
+            return builder;
+        }
+
+        /**
+         * 边读取边计算，结果与 parseEquation 之后 calculate 相同
+         * <p>
+         * 不会再改变的记号随时交给调度场算法计算并丢弃，所以除了固定大小的缓冲区，
+         * 只需保存尚未闭合的括号和函数、以及等待运算的操作数，内存取决于嵌套深度而不是算式的长度。
+         *
+         * @throws CalculateException 算式无效（{@link CalculateException#FORMAT_ERROR}）或计算出错
+         */
+        public static double calculate(Reader reader, boolean isRad) throws IOException {
+            return calculate(reader, isRad, null);
+        }
+
+        /**
+         * 在预算以内边读取边计算，超出预算时立即停止读取
+         *
+         * @param budget null 表示不限制
+         */
+        public static double calculate(Reader reader, boolean isRad, CalculateBudget budget) throws IOException {
+            CalculatorMetrics metrics = EquationBuilder.metrics;
+            long start = metrics == null ? 0 : System.nanoTime();
+            try {
+                Evaluator evaluator = new Evaluator();
+                evaluator.reset(isRad);
+                evaluator.budget = budget;
+                Parser parser = new Parser(null, reader, NO_VARIABLES, evaluator);
+                if (parser.parse() == null)
+                    throw ShuntingYard.formatError();
+                return parser.finish();
+            } catch (CalculateException e) {
+                if (metrics != null)
+                    metrics.countError(e.reason);
+                throw e;
+            } finally {
+                //解析和计算交替进行，整体记为一次计算
+                if (metrics != null)
+                    metrics.record(CalculatorMetrics.EVALUATE, System.nanoTime() - start);
+            }
+        }
+
+        /**
+         * 从 UTF-8 编码的 channel 边读取边计算，见 {@link #calculate(Reader, boolean)}
+         */
+        public static double calculate(ReadableByteChannel channel, boolean isRad) throws IOException {
+            return calculate(channel, isRad, null);
+        }
+
+        /**
+         * 从 UTF-8 编码的 channel 边读取边计算，见 {@link #calculate(Reader, boolean, CalculateBudget)}
+         */
+        public static double calculate(ReadableByteChannel channel, boolean isRad, CalculateBudget budget) throws IOException {
+            return calculate(Channels.newReader(channel, StandardCharsets.UTF_8.newDecoder(), BUFFER_SIZE), isRad, budget);
+        }
+
+        private EquationBuilder parse() throws IOException {
+            int c;
+            while ((c = peek(0)) >= 0) {
+                int consumed = 1, matched;
+
+                if (c == '*' || c == '×' || (c == 'x' && !isXVariable)) {
+                    if (!builder.appendChar('×'))
+                        return null;
+                } else if (c == '(' || c == ')') {
+                    if (builder.appendBracket() != c)
+                        return null;
+                } else if (c != 'e' && builder.appendChar((char) c)) {
+                    //数字、运算符、π、√、! 和 %
+                } else if (c == 'E' || (c == 'e' && isDigit(peek(1)))) {
+                    //科学计数法，前面没有数字时就是 e
+                    if (builder.appendChar('×')) {
+                        builder.appendChar('1');
+                        builder.appendChar('0');
+                        builder.appendChar('^');
+                    } else {
+                        builder.appendChar('e');
+                    }
+                } else if ((matched = matchFunction()) > 0) {
+                    consumed = matched;
+                    builder.appendLeadingFunction(function);
+                    //sqrt( 的左括号属于算式，而 √ 本身不带括号
+                    if (function == Arithmetic.SQRT)
+                        builder.appendBracket(builder.createNewToken(EMPTY_CHAR), '(');
+                } else if (c == 'e') {
+                    builder.appendChar('e');
+                } else if (!contains(variables, (char) c) || !builder.appendVariable((char) c)) {
+                    return null;
+                }
+                consume(consumed);
+
+                if (evaluator != null && builder.tokens.size() >= flushAt)
+                    flush();
+            }
+            return builder;
+        }
+
+        /**
+         * 把当前记号之前、最后一个完整的记号及其之前的记号交给 evaluator 并删除。
+         * 末尾未闭合的符号不参与计算，所以其后没有完整记号的函数、左括号和正负号要留到后面再决定
+         */
+        private void flush() {
+            TokenBuffer tokens = builder.tokens;
+            int end = builder.index;
+            while (end > 0 && tokens.isUnfinished(end - 1))
+                end--;
+
+            accept(tokens, end);
+            tokens.removeFirst(end);
+            builder.index -= end;
+            flushAt = Math.max(FLUSH_SIZE, tokens.size() * 2);
+        }
+
+        private void accept(TokenBuffer tokens, int end) {
+            if (error != null)
+                return;
+            try {
+                for (int i = 0; i < end; i++)
+                    evaluator.accept(tokens, i);
+            } catch (CalculateException e) {
+                if (e.reason == CalculateException.BUDGET_EXCEEDED)
+                    throw e;
+                error = e;
+            }
+        }
+
+        private double finish() {
+            builder.tryGetCurrentToken();
+            accept(builder.tokens, builder.finishedSize());
+            if (error != null)
+                throw error;
+            return evaluator.evaluate();
+        }
+
+        private static boolean isDigit(int c) {
+            return c >= 0 && TokenBuffer.charClass((char) c) == TokenBuffer.CHAR_DIGIT;
+        }
+
+        private static char normalize(char c) {
+            switch (c) {
+                case '/':
+                    return '÷';
+                case '−':
+                    return '-';
+                case '＋':
+                    return '+';
+                default:
+                    return c;
+            }
+        }
+
+        /**
+         * 向后查看第 ahead 个字符（不含空格），ahead 必须小于 LOOKAHEAD
+         *
+         * @return 已经到达末尾时返回 -1
+         */
+        private int peek(int ahead) throws IOException {
+            while (available <= ahead) {
+                int c = read();
+                if (c < 0)
+                    return -1;
+                if (c == ' ')
+                    continue;
+                window[(head + available) & (LOOKAHEAD - 1)] = normalize((char) c);
+                available++;
+            }
+            return window[(head + ahead) & (LOOKAHEAD - 1)];
+        }
+
+        private void consume(int count) {
+            head = (head + count) & (LOOKAHEAD - 1);
+            available -= count;
+        }
+
+        private int read() throws IOException {
+            if (position == limit) {
+                if (reader == null)
+                    return -1;
+                limit = reader.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return reader == null ? equation.charAt(position++) : buffer[position++];
+        }
+
+        /**
+         * 从当前位置开始匹配函数名，函数存入 function
+         *
+         * @return 函数名的字符数，没有匹配时返回 0
+         */
+        private int matchFunction() throws IOException {
+            Trie node = FUNCTIONS;
+            for (int i = 0; i < LOOKAHEAD; i++) {
+                int c = peek(i);
+                node = c < 0 ? null : node.child((char) c);
+                if (node == null)
+                    return 0;
+                if (node.function >= 0) {
+                    function = node.function;
+                    return i + 1;
+                }
+            }
+            return 0;
+        }
+
+        private static boolean contains(char[] chars, char c) {
+            for (char item : chars) {
+                if (item == c)
+                    return true;
+            }
+            return false;
+        }
+
+        /**
+         * 函数名的字典树，子节点很少，按顺序查找
+         */
+        private static final class Trie {
+            private char[] labels = new char[0];
+            private Trie[] children = new Trie[0];
+            private int function = -1; //到这里是一个完整的函数名
+
+            void insert(String name, int function) {
+                Trie node = this;
+                for (int i = 0; i < name.length(); i++) {
+                    char c = name.charAt(i);
+                    Trie child = node.child(c);
+                    if (child == null) {
+                        child = new Trie();
+                        int size = node.labels.length;
+                        node.labels = Arrays.copyOf(node.labels, size + 1);
+                        node.children = Arrays.copyOf(node.children, size + 1);
+                        node.labels[size] = c;
+                        node.children[size] = child;
+                    }
+                    node = child;
+                }
+                node.function = function;
+            }
+
+            Trie child(char c) {
+                for (int i = 0; i < labels.length; i++) {
+                    if (labels[i] == c)
+                        return children[i];
+                }
+                return null;
+            }
+        }
+    }
+
+    public static final class CalculateException extends ArithmeticException {
+        //出错的原因，界面据此显示对应的文字
+        public static final int FORMAT_ERROR = 0;
+        public static final int TOO_GIGANTIC = 1;
+        public static final int NOT_A_NUMBER = 2;
+        public static final int OUT_OF_DOMAIN = 3;
+        public static final int DIVIDE_BY_ZERO = 4;
+        public static final int UNDEFINED_VARIABLE = 5;
+        public static final int BUDGET_EXCEEDED = 6; //见 CalculateBudget
+        //按 reason 排列的名称，用于输出统计
+        static final String[] REASON_NAMES = {"FORMAT_ERROR", "TOO_GIGANTIC", "NOT_A_NUMBER", "OUT_OF_DOMAIN", "DIVIDE_BY_ZERO", "UNDEFINED_VARIABLE", "BUDGET_EXCEEDED"};
+
+        public final int reason;
+
+        public CalculateException(String message, int reason) {
+            super(message);
+            this.reason = reason;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package com.ashfly.android.calculator.demo;
+
+import static com.ashfly.android.calculator.demo.CompiledExpression.LOAD;
+import static com.ashfly.android.calculator.demo.CompiledExpression.NUMBER;
+import static com.ashfly.android.calculator.demo.CompiledExpression.STORE;
+import static com.ashfly.android.calculator.demo.CompiledExpression.VARIABLE;
+
+import com.ashfly.android.calculator.demo.EquationBuilder.CalculateException;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 编译后、计算前的优化
+ * <p>
+ * 把后缀顺序的代码还原为表达式树，同时：
+ * <ul>
+ * <li>常量折叠：操作数都是常量的运算（包括 % 和单独的正负号参与的乘法）在角度制和弧度制下各算一次，
+ * 替换为常量；两种制式下结果不同时分别保存。折叠时出错的运算保留原样，计算时仍在同一位置报错</li>
+ * <li>公共子表达式：相同的子树只保留一份，第一次计算后存入寄存器，之后直接读取</li>
+ * </ul>
+ * 折叠和寄存器中的值都由计算时使用的同一组运算得到，所以结果与优化前逐位相同，出错时的异常也相同。
+ */
+final class ExpressionOptimizer {
+
+    private final byte[] code;
+    private final double[] numbers;
+    private final Map<Node, Node> nodes = new HashMap<>();
+
+    private ExpressionOptimizer(byte[] code, double[] numbers) {
+        this.code = code;
+        this.numbers = numbers;
+    }
+
+    /**
+     * @return 优化后的算式，没有可以优化的地方时返回 expression 本身
+     */
+    static CompiledExpression optimize(CompiledExpression expression, byte[] code, double[] numbers, int variableCount) {
+        ExpressionOptimizer optimizer = new ExpressionOptimizer(code, numbers);
+        Node root = optimizer.buildTree();
+        return root == null ? expression : optimizer.emit(root, variableCount, expression);
+    }
+
+    private Node buildTree() {
+        if (code.length == 0)
+            return null;
+
+        Node[] stack = new Node[code.length];
+        int top = -1;
+        for (int i = 0; i < code.length; i++) {
+            byte op = code[i];
+            if (op == NUMBER || op == VARIABLE) {
+                stack[++top] = intern(new Node(op, numbers[i], numbers[i], null, null));
+            } else if (CompiledExpression.isBinary(op)) {
+                top--;
+                stack[top] = combine(op, numbers[i], stack[top], stack[top + 1]);
+            } else {
+                stack[top] = combine(op, numbers[i], stack[top], null);
+            }
+        }
+        Node root = stack[0];
+        root.uses++;
+        return root;
+    }
+
+    //操作数都是常量时尝试折叠，否则查找相同的子树
+    private Node combine(byte op, double number, Node left, Node right) {
+        if (left.isConstant() && (right == null || right.isConstant())) {
+            try {
+                double degrees = fold(op, number, left, right, false);
+                double radians = fold(op, number, left, right, true);
+                return intern(new Node(NUMBER, degrees, radians, null, null));
+            } catch (CalculateException ignored) {
+                //计算时在这里报错
+            }
+        }
+
+        Node created = new Node(op, number, number, left, right);
+        Node node = intern(created);
+        if (node == created) {
+            left.uses++;
+            if (right != null)
+                right.uses++;
+        }
+        return node;
+    }
+
+    private static double fold(byte op, double number, Node left, Node right, boolean isRad) {
+        double[] stack = new double[2];
+        int top = 0;
+        stack[0] = left.valueOf(isRad);
+        if (right != null)
+            stack[++top] = right.valueOf(isRad);
+        top = CompiledExpression.execute(op, number, stack, top, isRad);
+        return stack[top];
+    }
+
+    private Node intern(Node node) {
+        Node existing = nodes.get(node);
+        if (existing != null)
+            return existing;
+        nodes.put(node, node);
+        return node;
+    }
+
+    /**
+     * 按原来的顺序输出代码，多次使用的子树第一次出现时计算并存入寄存器，之后读取寄存器
+     */
+    private CompiledExpression emit(Node root, int variableCount, CompiledExpression original) {
+        //每条原指令至多输出一条指令，另外每个寄存器需要一条 STORE
+        byte[] newCode = new byte[code.length * 2];
+        double[] newNumbers = new double[newCode.length], radNumbers = new double[newCode.length];
+        int length = 0, depth = 0, maxDepth = 0, registers = 0, loads = 0;
+        boolean modal = false;
+
+        //非递归的后序遍历，expanded 表示子树已经展开
+        Node[] frames = new Node[code.length * 2 + 1];
+        boolean[] expanded = new boolean[frames.length];
+        int top = 0;
+        frames[0] = root;
+        while (top >= 0) {
+            Node node = frames[top];
+            if (node.register >= 0) {
+                top--;
+                newCode[length] = LOAD;
+                newNumbers[length] = radNumbers[length] = node.register;
+                length++;
+                loads++;
+                maxDepth = Math.max(maxDepth, ++depth);
+                continue;
+            }
+            if (!expanded[top] && node.left != null) {
+                expanded[top] = true;
+                if (node.right != null) {
+                    frames[++top] = node.right;
+                    expanded[top] = false;
+                }
+                frames[++top] = node.left;
+                expanded[top] = false;
+                continue;
+            }
+
+            top--;
+            newCode[length] = node.op;
+            newNumbers[length] = node.number;
+            radNumbers[length] = node.radNumber;
+            modal |= Double.doubleToRawLongBits(node.number) != Double.doubleToRawLongBits(node.radNumber);
+            length++;
+            if (node.left == null)
+                maxDepth = Math.max(maxDepth, ++depth);
+            else if (node.right != null)
+                depth--;
+
+            if (node.left != null && node.uses > 1) {
+                node.register = registers++;
+                newCode[length] = STORE;
+                newNumbers[length] = radNumbers[length] = node.register;
+                length++;
+            }
+        }
+
+        //存入和读取寄存器不算作计算
+        int removed = code.length - (length - registers - loads);
+        if (removed == 0)
+            return original;
+        return new CompiledExpression(Arrays.copyOf(newCode, length), Arrays.copyOf(newNumbers, length),
+                modal ? Arrays.copyOf(radNumbers, length) : null, maxDepth, variableCount, registers, removed);
+    }
+
+    /**
+     * 表达式树的节点，相同的子树只有一个节点，所以子节点直接按引用比较
+     */
+    private static final class Node {
+        final byte op;
+        final double number, radNumber; //常量在角度制和弧度制下的值，其他节点两者相同
+        final Node left, right; //单目运算只有 left
+        final int hash;
+        int uses; //被多少个父节点引用，根节点额外算一次
+        int register = -1; //已经存入的寄存器
+
+        Node(byte op, double number, double radNumber, Node left, Node right) {
+            this.op = op;
+            this.number = number;
+            this.radNumber = radNumber;
+            this.left = left;
+            this.right = right;
+
+            long bits = Double.doubleToRawLongBits(number) * 31 + Double.doubleToRawLongBits(radNumber);
+            int hash = op * 31 + (int) (bits ^ bits >>> 32);
+            hash = hash * 31 + System.identityHashCode(left);
+            this.hash = hash * 31 + System.identityHashCode(right);
+        }
+
+        boolean isConstant() {
+            return op == NUMBER;
+        }
+
+        double valueOf(boolean isRad) {
+            return isRad ? radNumber : number;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Node))
+                return false;
+            Node other = (Node) obj;
+            return op == other.op && left == other.left && right == other.right &&
+                    Double.doubleToRawLongBits(number) == Double.doubleToRawLongBits(other.number) &&
+                    Double.doubleToRawLongBits(radNumber) == Double.doubleToRawLongBits(other.radNumber);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.ashfly.android.calculator.demo;
+
+import java.util.Arrays;
+
+/**
+ * 对 y = f(x) 自适应采样，用于绘制函数图像
+ * <p>
+ * 先均匀取点，再逐轮检查相邻两点之间的中点：中点偏离两端连线超过容差、或者一端无定义时，把这一段对半细分。
+ * 平坦的部分很快停止细分，弯曲处和间断点（如 tan 的渐近线）附近会一直细分到最大深度；
+ * 细分到底仍然跳跃过大的两点之间插入 NaN，绘制时在这里断开。每一轮的中点用按列计算一次算完。
+ */
+public final class GraphSampler {
+
+    private static final int MAX_DEPTH = 12;
+    private static final int MAX_POINTS = 1 << 12;
+
+    private final CompiledExpression expression;
+    private final boolean isRad;
+
+    /**
+     * @param expression 只含一个变量的算式
+     */
+    public GraphSampler(CompiledExpression expression, boolean isRad) {
+        if (expression.getVariableCount() != 1)
+            throw new IllegalArgumentException("Expected 1 variable, got " + expression.getVariableCount());
+        this.expression = expression;
+        this.isRad = isRad;
+    }
+
+    /**
+     * 在 [from, to] 上采样
+     *
+     * @param intervals 初始的均匀分段数
+     * @param tolerance 中点与两端连线的最大允许偏差
+     * @param maxJump   细分到底后相邻两点的差超过它时视为间断
+     * @return x 和 y 交替排列，y 为 NaN 的点表示断开
+     */
+    public double[] sample(double from, double to, int intervals, double tolerance, double maxJump) {
+        int size = intervals + 1;
+        double[] xs = new double[size], ys = new double[size];
+        boolean[] open = new boolean[size]; //open[i] 表示 [i, i+1] 还需要细分
+        for (int i = 0; i < size; i++)
+            xs[i] = i == intervals ? to : from + (to - from) * i / intervals;
+        evaluate(xs, ys, size);
+        for (int i = 0; i < intervals; i++)
+            open[i] = needsSplit(ys[i], ys[i + 1]);
+
+        for (int depth = 0; depth < MAX_DEPTH; depth++) {
+            int opened = 0;
+            for (int i = 0; i < size - 1; i++) {
+                if (open[i])
+                    opened++;
+            }
+            if (opened == 0 || size + opened > MAX_POINTS)
+                break;
+
+            double[] middles = new double[opened], middleValues = new double[opened];
+            for (int i = 0, j = 0; i < size - 1; i++) {
+                if (open[i])
+                    middles[j++] = (xs[i] + xs[i + 1]) / 2;
+            }
+            evaluate(middles, middleValues, opened);
+
+            //把中点插入原来的两点之间，并决定两个半段是否还要细分
+            int newSize = size + opened;
+            double[] newXs = new double[newSize], newYs = new double[newSize];
+            boolean[] newOpen = new boolean[newSize];
+            for (int i = 0, j = 0, k = 0; i < size; i++) {
+                newXs[k] = xs[i];
+                newYs[k] = ys[i];
+                k++;
+                if (i == size - 1 || !open[i])
+                    continue;
+
+                double left = ys[i], right = ys[i + 1], middle = middleValues[j];
+                newXs[k] = middles[j];
+                newYs[k] = middle;
+                j++;
+                if (isBent(left, middle, right, tolerance)) {
+                    newOpen[k - 1] = needsSplit(left, middle);
+                    newOpen[k] = needsSplit(middle, right);
+                }
+                k++;
+            }
+            xs = newXs;
+            ys = newYs;
+            open = newOpen;
+            size = newSize;
+        }
+
+        return breakJumps(xs, ys, open, size, maxJump);
+    }
+
+    private void evaluate(double[] xs, double[] ys, int count) {
+        double[] results = count == ys.length ? ys : new double[count];
+        expression.evaluate(isRad, new double[][]{xs}, results);
+        if (results != ys)
+            System.arraycopy(results, 0, ys, 0, count);
+    }
+
+    //两端都无定义时不再细分，否则需要找到定义域的边界
+    private static boolean needsSplit(double left, double right) {
+        return !(Double.isNaN(left) && Double.isNaN(right));
+    }
+
+    private static boolean isBent(double left, double middle, double right, double tolerance) {
+        if (Double.isNaN(left) || Double.isNaN(middle) || Double.isNaN(right))
+            return true;
+        return Math.abs(middle - (left + right) / 2) > tolerance;
+    }
+
+    private static double[] breakJumps(double[] xs, double[] ys, boolean[] open, int size, double maxJump) {
+        double[] points = new double[size * 4];
+        int length = 0;
+        for (int i = 0; i < size; i++) {
+            points[length++] = xs[i];
+            points[length++] = ys[i];
+            if (i < size - 1 && open[i] && Math.abs(ys[i + 1] - ys[i]) > maxJump) {
+                points[length++] = (xs[i] + xs[i + 1]) / 2;
+                points[length++] = Double.NaN;
+            }
+        }
+        return Arrays.copyOf(points, length);
+    }
+}
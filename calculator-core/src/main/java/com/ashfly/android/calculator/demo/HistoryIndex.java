@@ -0,0 +1,393 @@
+package com.ashfly.android.calculator.demo;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * {@link HistoryLog} 的内存索引，查询结果都是按时间排序的记录下标
+ * <ul>
+ * <li>记号的倒排索引：每个记号的文本（函数名、数字、常量、括号等）和每种运算符各对应一个记录下标的列表，
+ * 多个记号的查询从最短的列表开始求交集。数字的正负号按运算符索引，"-3" 和 "5×-3" 都用到了 - 和 3</li>
+ * <li>结果的有序索引：按结果排序的记录，范围查询只需两次二分查找，出错的记录不在其中</li>
+ * <li>前缀的有序索引：按算式前 10 个字符排序的记录，每个字符编码为 6 位，10 个字符以内的前缀只需两次二分查找；
+ * 更长的前缀先用其中的记号缩小范围，再逐条读取算式确认</li>
+ * </ul>
+ * 记录按写入顺序逐条加入，两个有序索引中新加入的记录在 {@link #sort()} 或下一次查询时排序后合并进去。
+ * 所有方法都是线程安全的。
+ */
+public final class HistoryIndex {
+
+    private static final int[] NO_RESULTS = new int[0];
+    private static final String OPERATORS = "+-×÷^";
+
+    //前缀索引的字符编码，0 用于补齐，OTHER_CODE 表示其他字符，MAX_CODE 用于查询的上界
+    private static final String KEY_ALPHABET = "0123456789.+-×÷^()!%eπ√abcdefghijklmnopqrstuvwxyz";
+    private static final int KEY_CHARS = 10, CODE_BITS = 6, OTHER_CODE = 62, MAX_CODE = 63;
+
+    private final HistoryLog log; //确认较长的前缀时读取算式
+    private final Map<String, Postings> tokens = new HashMap<>();
+    private final Postings[] operators = new Postings[OPERATORS.length()];
+    private final SortedKeys values = new SortedKeys(), prefixes = new SortedKeys();
+    private int size;
+
+    HistoryIndex(HistoryLog log) {
+        this.log = log;
+        for (int i = 0; i < operators.length; i++)
+            operators[i] = new Postings();
+    }
+
+    /**
+     * 加入下一条记录，必须按记录的顺序调用
+     */
+    synchronized void add(HistoryLog.Entry entry) {
+        int id = size++;
+        EquationBuilder builder = entry.toBuilder();
+        TokenBuffer buffer = builder.getTokens();
+        for (int i = 0, count = buffer.size(); i < count; i++) {
+            int operator = OPERATORS.indexOf(buffer.operator(i));
+            if (operator >= 0)
+                operators[operator].add(id);
+            int sign = OPERATORS.indexOf(buffer.sign(i));
+            if (sign >= 0)
+                operators[sign].add(id);
+            String literal = literal(buffer, i);
+            if (!literal.isEmpty())
+                postings(literal).add(id);
+        }
+
+        if (entry.getReason() == HistoryLog.NO_ERROR && !Double.isNaN(entry.getValue()))
+            values.add(sortableBits(entry.getValue()), id);
+        prefixes.add(prefixKey(builder.build(), 0), id);
+    }
+
+    /**
+     * 把新加入的记录合并到有序索引中，在后台线程中调用，避免第一次查询时排序
+     */
+    synchronized void sort() {
+        values.sort();
+        prefixes.sort();
+    }
+
+    //不带正负号的文本，只有正负号的数字为空
+    private static String literal(TokenBuffer buffer, int index) {
+        String text = buffer.text(index);
+        return buffer.sign(index) == EquationBuilder.EMPTY_CHAR ? text : text.substring(1);
+    }
+
+    private Postings postings(String text) {
+        Postings postings = tokens.get(text);
+        if (postings == null) {
+            postings = new Postings();
+            tokens.put(text, postings);
+        }
+        return postings;
+    }
+
+    /**
+     * @return 已经加入索引的记录数
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * 查找用到了 query 中所有记号的记录，记号的顺序和位置不限，例如 "tan-1(" 查找用到了反正切的记录。
+     * 数字按不带正负号的字面量匹配，"3" 匹配 "-3" 但不匹配 "3.14"；开头的运算符和正负号按运算符查找，"÷" 查找用到了除法的记录
+     *
+     * @param query 按 {@link EquationBuilder.Parser#parseEquation(String)} 的格式书写，变量只能是 x
+     */
+    public synchronized int[] findTokens(String query) {
+        int leading = query.isEmpty() ? -1 : OPERATORS.indexOf(query.charAt(0));
+        EquationBuilder builder = EquationBuilder.Parser.parseEquation(leading >= 0 ? query.substring(1) : query, 'x');
+        if (builder == null)
+            return NO_RESULTS;
+        int[] result = intersect(builder.getTokens(), builder.getTokens().size(), leading >= 0 ? operators[leading] : null);
+        return result == null ? NO_RESULTS : result;
+    }
+
+    //前 count 个记号和 extra 的列表的交集，没有任何列表时返回 null
+    private int[] intersect(TokenBuffer buffer, int count, Postings extra) {
+        Postings[] lists = new Postings[count * 3 + 1];
+        int length = 0;
+        if (extra != null)
+            lists[length++] = extra;
+        for (int i = 0; i < count; i++) {
+            int operator = OPERATORS.indexOf(buffer.operator(i));
+            if (operator >= 0)
+                lists[length++] = operators[operator];
+            int sign = OPERATORS.indexOf(buffer.sign(i));
+            if (sign >= 0)
+                lists[length++] = operators[sign];
+            String literal = literal(buffer, i);
+            if (!literal.isEmpty()) {
+                Postings postings = tokens.get(literal);
+                if (postings == null)
+                    return NO_RESULTS;
+                lists[length++] = postings;
+            }
+        }
+        if (length == 0)
+            return null;
+
+        //从最短的列表开始，结果只会越来越少
+        Postings shortest = lists[0];
+        for (int i = 1; i < length; i++) {
+            if (lists[i].size < shortest.size)
+                shortest = lists[i];
+        }
+        int[] result = Arrays.copyOf(shortest.ids, shortest.size);
+        int resultSize = result.length;
+        for (int i = 0; i < length && resultSize > 0; i++) {
+            if (lists[i] != shortest)
+                resultSize = lists[i].retain(result, resultSize);
+        }
+        return Arrays.copyOf(result, resultSize);
+    }
+
+    /**
+     * 查找结果在 [min, max] 中的记录
+     */
+    public synchronized int[] findValues(double min, double max) {
+        if (!(min <= max))
+            return NO_RESULTS;
+        return sortIds(values.range(sortableBits(min), sortableBits(max)));
+    }
+
+    /**
+     * 查找结果与 value 相差不超过 tolerance 的记录
+     */
+    public int[] findNear(double value, double tolerance) {
+        return findValues(value - tolerance, value + tolerance);
+    }
+
+    /**
+     * 查找以 prefix 开头的算式，prefix 与 {@link EquationBuilder#build()} 的格式相同
+     */
+    public synchronized int[] findPrefix(String prefix) {
+        int[] candidates = sortIds(prefixes.range(prefixKey(prefix, 0), prefixKey(prefix, MAX_CODE)));
+        if (isExactKey(prefix) || candidates.length == 0)
+            return candidates;
+
+        //最后一个记号可能还不完整，用它之前的记号缩小范围
+        EquationBuilder builder = EquationBuilder.Parser.parseEquation(prefix, 'x');
+        if (builder != null && builder.getTokens().size() > 1) {
+            int[] narrowed = intersect(builder.getTokens(), builder.getTokens().size() - 1, null);
+            if (narrowed != null)
+                candidates = retain(candidates, narrowed);
+        }
+
+        int length = 0;
+        for (int id : candidates) {
+            if (log.get(id).getEquation().startsWith(prefix))
+                candidates[length++] = id;
+        }
+        return Arrays.copyOf(candidates, length);
+    }
+
+    //按下标排序，结果较多时用位图代替排序
+    private int[] sortIds(int[] ids) {
+        if (ids.length == 0)
+            return ids;
+        if (ids.length < size >> 6) {
+            Arrays.sort(ids);
+            return ids;
+        }
+
+        long[] bits = new long[(size + 63) >> 6];
+        for (int id : ids)
+            bits[id >> 6] |= 1L << id;
+        int length = 0;
+        for (int word = 0; word < bits.length; word++) {
+            for (long remaining = bits[word]; remaining != 0; remaining &= remaining - 1)
+                ids[length++] = word << 6 | Long.numberOfTrailingZeros(remaining);
+        }
+        return ids;
+    }
+
+    //两个有序数组的交集
+    private static int[] retain(int[] a, int[] b) {
+        int[] result = new int[Math.min(a.length, b.length)];
+        int length = 0;
+        for (int i = 0, j = 0; i < a.length && j < b.length; ) {
+            if (a[i] < b[j])
+                i++;
+            else if (a[i] > b[j])
+                j++;
+            else {
+                result[length++] = a[i];
+                i++;
+                j++;
+            }
+        }
+        return Arrays.copyOf(result, length);
+    }
+
+    //按有符号整数比较时与 double 的大小顺序相同，-0.0 排在 0.0 之前
+    private static long sortableBits(double value) {
+        long bits = Double.doubleToLongBits(value);
+        return bits < 0 ? bits ^ Long.MAX_VALUE : bits;
+    }
+
+    //前 10 个字符的编码，不足时用 padding 补齐。编码不保持字符的大小顺序，但前缀相同的算式总在同一个范围内
+    private static long prefixKey(String text, int padding) {
+        long key = 0;
+        for (int i = 0; i < KEY_CHARS; i++)
+            key = key << CODE_BITS | (i < text.length() ? code(text.charAt(i)) : padding);
+        return key;
+    }
+
+    private static int code(char c) {
+        int code = KEY_ALPHABET.indexOf(c);
+        return code < 0 ? OTHER_CODE : code + 1;
+    }
+
+    //前缀的每个字符都有自己的编码时，前缀索引的结果不需要再确认
+    private static boolean isExactKey(String prefix) {
+        if (prefix.length() > KEY_CHARS)
+            return false;
+        for (int i = 0; i < prefix.length(); i++) {
+            if (code(prefix.charAt(i)) == OTHER_CODE)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * 按加入顺序排列的记录下标
+     */
+    private static final class Postings {
+        int[] ids = new int[4];
+        int size;
+
+        //同一条记录多次出现时只记一次
+        void add(int id) {
+            if (size > 0 && ids[size - 1] == id)
+                return;
+            if (size == ids.length)
+                ids = Arrays.copyOf(ids, size * 2);
+            ids[size++] = id;
+        }
+
+        /**
+         * 只保留 result 中也在这个列表中的下标，两者长度相近时顺序合并，result 较短时逐个二分查找
+         *
+         * @return 保留的个数
+         */
+        int retain(int[] result, int length) {
+            int kept = 0, from = 0;
+            if (size < length * 16L) {
+                for (int i = 0; i < length; i++) {
+                    while (from < size && ids[from] < result[i])
+                        from++;
+                    if (from < size && ids[from] == result[i])
+                        result[kept++] = result[i];
+                }
+                return kept;
+            }
+
+            for (int i = 0; i < length; i++) {
+                int found = Arrays.binarySearch(ids, from, size, result[i]);
+                if (found >= 0) {
+                    result[kept++] = result[i];
+                    from = found + 1;
+                } else {
+                    from = -found - 1;
+                }
+            }
+            return kept;
+        }
+    }
+
+    /**
+     * 按键排序的记录下标，键相同时按下标排序
+     * <p>
+     * 新加入的记录先放在末尾，查询时排序后与已经排好的部分合并
+     */
+    private static final class SortedKeys {
+        long[] keys = new long[16];
+        int[] ids = new int[16];
+        int size, sorted;
+
+        void add(long key, int id) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            keys[size] = key;
+            ids[size] = id;
+            size++;
+        }
+
+        /**
+         * @return 键在 [from, to] 中的记录，按键排序
+         */
+        int[] range(long from, long to) {
+            sort();
+            int start = lowerBound(from), end = lowerBound(to);
+            while (end < size && keys[end] == to)
+                end++;
+            return start < end ? Arrays.copyOfRange(ids, start, end) : NO_RESULTS;
+        }
+
+        private int lowerBound(long key) {
+            int low = 0, high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (keys[middle] < key)
+                    low = middle + 1;
+                else
+                    high = middle;
+            }
+            return low;
+        }
+
+        void sort() {
+            if (sorted == size)
+                return;
+
+            //新加入的部分按下标递增，稳定排序后键相同的仍按下标排列
+            int count = size - sorted;
+            long[] newKeys = Arrays.copyOfRange(keys, sorted, size);
+            int[] newIds = Arrays.copyOfRange(ids, sorted, size);
+            mergeSort(newKeys, newIds, new long[count], new int[count], 0, count);
+
+            //从后往前合并，已经排好的部分不需要先复制出来
+            int i = sorted - 1, j = count - 1;
+            for (int k = size - 1; j >= 0; k--) {
+                if (i >= 0 && keys[i] > newKeys[j]) {
+                    keys[k] = keys[i];
+                    ids[k] = ids[i];
+                    i--;
+                } else {
+                    keys[k] = newKeys[j];
+                    ids[k] = newIds[j];
+                    j--;
+                }
+            }
+            sorted = size;
+        }
+
+        private static void mergeSort(long[] keys, int[] ids, long[] keyBuffer, int[] idBuffer, int from, int to) {
+            if (to - from < 2)
+                return;
+            int middle = (from + to) >>> 1;
+            mergeSort(keys, ids, keyBuffer, idBuffer, from, middle);
+            mergeSort(keys, ids, keyBuffer, idBuffer, middle, to);
+            if (keys[middle - 1] <= keys[middle])
+                return;
+
+            System.arraycopy(keys, from, keyBuffer, from, to - from);
+            System.arraycopy(ids, from, idBuffer, from, to - from);
+            for (int k = from, i = from, j = middle; k < to; k++) {
+                if (j >= to || (i < middle && keyBuffer[i] <= keyBuffer[j])) {
+                    keys[k] = keyBuffer[i];
+                    ids[k] = idBuffer[i++];
+                } else {
+                    keys[k] = keyBuffer[j];
+                    ids[k] = idBuffer[j++];
+                }
+            }
+        }
+    }
+}
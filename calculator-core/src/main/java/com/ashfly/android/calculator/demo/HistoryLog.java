@@ -0,0 +1,413 @@
+package com.ashfly.android.calculator.demo;
+
+import com.ashfly.android.calculator.demo.EquationBuilder.CalculateException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * 计算历史，保存在只追加的二进制日志中
+ * <p>
+ * 目录下有两个文件：history.log 依次保存每条记录，history.idx 保存第 i 条记录在日志中的偏移量（8 字节一条）。
+ * 读取时用 {@link FileChannel#map} 映射这两个文件，按下标随机访问，只有访问到的记录才会解码到堆中，
+ * 所以翻看几十万条历史也不需要把它们全部读入内存。
+ * <p>
+ * 写入在单独的后台线程中进行，{@link #append} 只把记录放入队列，不会阻塞调用者。
+ * 后台线程每次取出队列中积攒的所有记录，合并为一次写入和一次 force（组提交）。
+ * 打开时检查最后几条记录的长度和校验和，写到一半的记录会被截掉。
+ * 写入的记录同时加入 {@link #getIndex()}，打开时按顺序读一遍已有的记录重建索引。
+ * 除 {@link #flush()} 外所有方法都是线程安全且不阻塞的。映射使用 int 偏移量，日志不能超过 2GB。
+ */
+public final class HistoryLog implements Closeable {
+
+    public static final int NO_ERROR = -1;
+
+    private static final String TAG = "HistoryLog";
+    private static final Logger LOGGER = Logger.getLogger(TAG);
+
+    private static final int MAGIC = 0x43484C47; //"CHLG"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8; //MAGIC、VERSION
+    private static final int RECORD_HEADER_SIZE = 8; //长度、CRC32
+    private static final int FIXED_BODY_SIZE = 18; //时间、结果、出错原因、标志
+    private static final int FLAG_RAD = 1;
+    private static final int OFFSET_SIZE = 8;
+
+    private final File directory;
+    private final HistoryIndex index = new HistoryIndex(this);
+    private final Object lock = new Object();
+
+    //以下由 lock 保护
+    private List<byte[]> pending = new ArrayList<>();
+    private long appended, written; //已经提交和已经写入的记录数，用于 flush
+    private boolean opened, closed, stopped; //stopped 表示后台线程已经结束
+
+    //以下只在后台线程中访问
+    private FileChannel log, offsets;
+    private long logSize;
+    private final CRC32 crc = new CRC32();
+
+    //读取
+    private volatile int count = 0;
+    private volatile FileChannel readLog, readOffsets;
+    private MappedByteBuffer mappedLog, mappedOffsets; //由 this 保护
+
+    /**
+     * 不在调用线程中进行任何 IO，文件在后台线程中打开
+     *
+     * @param directory 保存历史的目录，不存在时会被创建
+     */
+    public HistoryLog(File directory) {
+        this.directory = directory;
+        Thread writer = new Thread(this::run, TAG);
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * 记录一次成功的计算
+     */
+    public void append(EquationBuilder builder, boolean isRad, double value) {
+        append(builder.toByteArray(), isRad, value, NO_ERROR);
+    }
+
+    /**
+     * 记录一次出错的计算
+     */
+    public void append(EquationBuilder builder, boolean isRad, CalculateException error) {
+        append(builder.toByteArray(), isRad, Double.NaN, error.reason);
+    }
+
+    private void append(byte[] state, boolean isRad, double value, int reason) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + FIXED_BODY_SIZE + state.length);
+        record.putInt(FIXED_BODY_SIZE + state.length);
+        record.putInt(0); //CRC32 在后台线程中计算
+        record.putLong(System.currentTimeMillis());
+        record.putDouble(value);
+        record.put((byte) reason);
+        record.put((byte) (isRad ? FLAG_RAD : 0));
+        record.put(state);
+
+        synchronized (lock) {
+            if (closed)
+                return;
+            //后台线程只在队列为空时等待，不需要每次都唤醒
+            if (pending.isEmpty())
+                lock.notifyAll();
+            pending.add(record.array());
+            appended++;
+        }
+    }
+
+    /**
+     * @return 已经写入、可以读取的记录数
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return 记录的索引，后台线程加入记录之后才能查到
+     */
+    public HistoryIndex getIndex() {
+        return index;
+    }
+
+    /**
+     * @param position 0 是最早的记录
+     */
+    public Entry get(int position) {
+        if (position < 0 || position >= count)
+            throw new IndexOutOfBoundsException("Position: " + position + ", size: " + count);
+
+        ByteBuffer record;
+        synchronized (this) {
+            try {
+                long offset = mappedOffsets(position).getLong(position * OFFSET_SIZE);
+                int length = mappedLog(offset + RECORD_HEADER_SIZE).getInt((int) offset);
+                record = mappedLog(offset + RECORD_HEADER_SIZE + length).duplicate();
+                record.position((int) offset + RECORD_HEADER_SIZE);
+                record.limit((int) offset + RECORD_HEADER_SIZE + length);
+            } catch (IOException e) {
+                throw new IllegalStateException("Cannot read history", e);
+            }
+        }
+
+        return decode(record);
+    }
+
+    //record 从时间开始，到记录末尾结束
+    private static Entry decode(ByteBuffer record) {
+        long time = record.getLong();
+        double value = record.getDouble();
+        int reason = record.get();
+        boolean isRad = (record.get() & FLAG_RAD) != 0;
+        byte[] state = new byte[record.remaining()];
+        record.get(state);
+        return new Entry(time, isRad, value, reason, state);
+    }
+
+    //映射的范围不够时重新映射整个文件，文件只会变长，所以旧的映射仍然有效
+    private ByteBuffer mappedOffsets(int position) throws IOException {
+        long end = (long) (position + 1) * OFFSET_SIZE;
+        if (mappedOffsets == null || mappedOffsets.capacity() < end)
+            mappedOffsets = readOffsets.map(FileChannel.MapMode.READ_ONLY, 0, (long) count * OFFSET_SIZE);
+        return mappedOffsets;
+    }
+
+    private ByteBuffer mappedLog(long end) throws IOException {
+        if (mappedLog == null || mappedLog.capacity() < end)
+            mappedLog = readLog.map(FileChannel.MapMode.READ_ONLY, 0, readLog.size());
+        return mappedLog;
+    }
+
+    /**
+     * 等待文件打开，并且之前提交的记录全部写入
+     */
+    public void flush() throws InterruptedException {
+        synchronized (lock) {
+            long target = appended;
+            while (!stopped && (!opened || written < target))
+                lock.wait();
+        }
+    }
+
+    /**
+     * 写完已经提交的记录后关闭文件，之后的 append 被忽略，也不能再读取
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+    }
+
+    private void run() {
+        try {
+            open();
+            synchronized (lock) {
+                opened = true;
+                lock.notifyAll();
+            }
+            while (true) {
+                List<byte[]> batch;
+                synchronized (lock) {
+                    while (pending.isEmpty() && !closed)
+                        lock.wait();
+                    if (pending.isEmpty())
+                        break;
+                    batch = pending;
+                    pending = new ArrayList<>();
+                }
+
+                write(batch);
+                synchronized (lock) {
+                    written += batch.size();
+                    lock.notifyAll();
+                }
+            }
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "History disabled", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            synchronized (lock) {
+                closed = stopped = true;
+                pending.clear();
+                lock.notifyAll();
+            }
+            closeQuietly(log);
+            closeQuietly(offsets);
+        }
+    }
+
+    private void open() throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create " + directory);
+        log = new RandomAccessFile(new File(directory, "history.log"), "rw").getChannel();
+        offsets = new RandomAccessFile(new File(directory, "history.idx"), "rw").getChannel();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (log.size() < HEADER_SIZE || readFully(log, header, 0) < HEADER_SIZE ||
+                header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            if (log.size() > 0)
+                LOGGER.warning("Unknown history format, starting over");
+            header.clear();
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            log.truncate(0);
+            offsets.truncate(0);
+            log.write(header, 0);
+            log.force(false);
+        }
+
+        int recovered = recover();
+        logSize = recovered == 0 ? HEADER_SIZE : end(recovered - 1);
+        log.truncate(logSize);
+        offsets.truncate((long) recovered * OFFSET_SIZE);
+
+        readLog = log;
+        readOffsets = offsets;
+        count = recovered;
+        for (int i = 0; i < recovered; i++)
+            index.add(get(i));
+        index.sort();
+    }
+
+    //从后往前找到第一条完整的记录，它之前的记录都已经 force 过
+    private int recover() throws IOException {
+        int recorded = (int) (offsets.size() / OFFSET_SIZE);
+        while (recorded > 0 && !isValid(recorded - 1))
+            recorded--;
+        return recorded;
+    }
+
+    private boolean isValid(int position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(OFFSET_SIZE);
+        if (readFully(offsets, buffer, (long) position * OFFSET_SIZE) < OFFSET_SIZE)
+            return false;
+        long offset = buffer.getLong(0);
+        if (offset < HEADER_SIZE || offset + RECORD_HEADER_SIZE > log.size())
+            return false;
+
+        ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        readFully(log, recordHeader, offset);
+        int length = recordHeader.getInt(0);
+        if (length < FIXED_BODY_SIZE || offset + RECORD_HEADER_SIZE + length > log.size())
+            return false;
+
+        byte[] body = new byte[length];
+        readFully(log, ByteBuffer.wrap(body), offset + RECORD_HEADER_SIZE);
+        crc.reset();
+        crc.update(body, 0, length);
+        return (int) crc.getValue() == recordHeader.getInt(4);
+    }
+
+    private long end(int position) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(OFFSET_SIZE);
+        readFully(offsets, buffer, (long) position * OFFSET_SIZE);
+        long offset = buffer.getLong(0);
+        buffer.clear().limit(4);
+        readFully(log, buffer, offset);
+        return offset + RECORD_HEADER_SIZE + buffer.getInt(0);
+    }
+
+    //一组记录合并为一次写入：先写日志，再写偏移量，最后各 force 一次
+    private void write(List<byte[]> batch) throws IOException {
+        int total = 0;
+        for (byte[] record : batch)
+            total += record.length;
+
+        ByteBuffer records = ByteBuffer.allocate(total), newOffsets = ByteBuffer.allocate(batch.size() * OFFSET_SIZE);
+        long offset = logSize;
+        for (byte[] record : batch) {
+            crc.reset();
+            crc.update(record, RECORD_HEADER_SIZE, record.length - RECORD_HEADER_SIZE);
+            ByteBuffer.wrap(record).putInt(4, (int) crc.getValue());
+            records.put(record);
+            newOffsets.putLong(offset);
+            offset += record.length;
+        }
+        records.flip();
+        newOffsets.flip();
+
+        while (records.hasRemaining())
+            log.write(records, logSize + records.position());
+        long offsetsSize = (long) count * OFFSET_SIZE;
+        while (newOffsets.hasRemaining())
+            offsets.write(newOffsets, offsetsSize + newOffsets.position());
+        log.force(false);
+        offsets.force(false);
+
+        logSize = offset;
+        count += batch.size();
+        for (byte[] record : batch)
+            index.add(decode(ByteBuffer.wrap(record, RECORD_HEADER_SIZE, record.length - RECORD_HEADER_SIZE)));
+        index.sort();
+    }
+
+    private static int readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int read = 0;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position + read);
+            if (n < 0)
+                break;
+            read += n;
+        }
+        return read;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable == null)
+            return;
+        try {
+            closeable.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * 一条历史记录
+     */
+    public static final class Entry {
+        private final long time;
+        private final boolean isRad;
+        private final double value;
+        private final int reason;
+        private final byte[] state;
+
+        Entry(long time, boolean isRad, double value, int reason, byte[] state) {
+            this.time = time;
+            this.isRad = isRad;
+            this.value = value;
+            this.reason = reason;
+            this.state = state;
+        }
+
+        /**
+         * @return 计算的时间，毫秒
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public boolean isRad() {
+            return isRad;
+        }
+
+        /**
+         * @return 计算结果，出错时为 NaN
+         */
+        public double getValue() {
+            return value;
+        }
+
+        /**
+         * @return 出错的原因，见 {@link CalculateException}，没有出错时为 {@link #NO_ERROR}
+         */
+        public int getReason() {
+            return reason;
+        }
+
+        /**
+         * @return 恢复出的算式，可以继续编辑
+         */
+        public EquationBuilder toBuilder() {
+            return EquationBuilder.fromByteArray(state);
+        }
+
+        public String getEquation() {
+            return toBuilder().build();
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package com.ashfly.android.calculator.demo;
+
+import static com.ashfly.android.calculator.demo.CompiledExpression.ADD;
+import static com.ashfly.android.calculator.demo.CompiledExpression.DIVIDE;
+import static com.ashfly.android.calculator.demo.CompiledExpression.FACTORIAL;
+import static com.ashfly.android.calculator.demo.CompiledExpression.MULTIPLY;
+import static com.ashfly.android.calculator.demo.CompiledExpression.PERCENT;
+import static com.ashfly.android.calculator.demo.CompiledExpression.POW;
+import static com.ashfly.android.calculator.demo.CompiledExpression.SUBTRACT;
+import static com.ashfly.android.calculator.demo.EquationBuilder.MATH_FUNCTIONS;
+
+import com.ashfly.android.calculator.demo.EquationBuilder.CalculateException;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+
+/**
+ * {@link Arithmetic} 的 BigDecimal 版本，超越函数用泰勒级数和牛顿迭代计算到 mc 的精度
+ */
+final class PreciseArithmetic {
+
+    private static final BigDecimal TWO = BigDecimal.valueOf(2);
+    private static final BigDecimal TEN = BigDecimal.TEN;
+    private static final BigDecimal ONE_TENTH = new BigDecimal("0.1");
+    private static final BigDecimal DEGREES_180 = BigDecimal.valueOf(180);
+    private static final BigDecimal DEGREES_360 = BigDecimal.valueOf(360);
+
+    //e^x 的整数部分小于这个值时结果视为0
+    private static final int MIN_EXPONENT = -1000000;
+    private static final int MAX_ITERATIONS = 100;
+
+    //按目前用到的最高精度缓存
+    private static BigDecimal pi, e, ln10;
+
+    private PreciseArithmetic() {
+    }
+
+    /**
+     * 在栈上执行一条指令，NUMBER 由调用方处理
+     *
+     * @return 执行后的栈顶位置
+     * @see CompiledExpression#execute(byte, double, double[], int, boolean)
+     */
+    static int execute(byte op, BigDecimal[] stack, int top, boolean isRad, MathContext mc) {
+        switch (op) {
+            case PERCENT:
+                stack[top] = stack[top].movePointLeft(2);
+                break;
+
+            case FACTORIAL:
+                stack[top] = factorial(stack[top], mc);
+                break;
+
+            case ADD:
+                top--;
+                stack[top] = stack[top].add(stack[top + 1], mc);
+                break;
+
+            case SUBTRACT:
+                top--;
+                stack[top] = stack[top].subtract(stack[top + 1], mc);
+                break;
+
+            case MULTIPLY:
+                top--;
+                stack[top] = stack[top].multiply(stack[top + 1], mc);
+                break;
+
+            case DIVIDE:
+                top--;
+                if (stack[top + 1].signum() == 0)
+                    throw new CalculateException(String.format("Cannot calculate \"%s%s%s!\"", stack[top], '÷', stack[top + 1]), CalculateException.DIVIDE_BY_ZERO);
+                stack[top] = stack[top].divide(stack[top + 1], mc);
+                break;
+
+            case POW:
+                top--;
+                stack[top] = pow(stack[top], stack[top + 1], mc);
+                break;
+
+            default:
+                stack[top] = function(op, stack[top], isRad, mc);
+                break;
+        }
+        return top;
+    }
+
+    private static CalculateException outOfDomain(int function, BigDecimal x) {
+        return new CalculateException(String.format("Cannot calculate \"%s%s!\"", MATH_FUNCTIONS.get(function), x), CalculateException.OUT_OF_DOMAIN);
+    }
+
+    static BigDecimal function(int function, BigDecimal x, boolean isRad, MathContext mc) {
+        switch (function) {
+            case Arithmetic.SIN_1:
+            case Arithmetic.COS_1:
+            case Arithmetic.TAN_1:
+                if (function != Arithmetic.TAN_1 && x.abs().compareTo(BigDecimal.ONE) > 0)
+                    throw outOfDomain(function, x);
+                x = function == Arithmetic.SIN_1 ? asin(x, mc) : function == Arithmetic.COS_1 ? acos(x, mc) : atan(x, mc);
+                return isRad ? x : x.multiply(DEGREES_180, mc).divide(pi(mc), mc);
+
+            case Arithmetic.SQRT:
+                if (x.signum() < 0)
+                    throw outOfDomain(function, x);
+                return sqrt(x, mc);
+
+            case Arithmetic.LN:
+            case Arithmetic.LG:
+                if (x.signum() <= 0)
+                    throw outOfDomain(function, x);
+                return function == Arithmetic.LN ? ln(x, mc) : ln(x, mc).divide(ln10(mc), mc);
+
+            case Arithmetic.EXP:
+                return exp(x, mc);
+
+            case Arithmetic.SIN:
+                return sin(toRadians(x, isRad, mc), mc);
+
+            case Arithmetic.COS:
+                return cos(toRadians(x, isRad, mc), mc);
+
+            case Arithmetic.TAN:
+                x = toRadians(x, isRad, mc);
+                BigDecimal cos = cos(x, mc);
+                if (cos.signum() == 0)
+                    throw outOfDomain(function, x);
+                return sin(x, mc).divide(cos, mc);
+
+            default:
+                throw new IllegalArgumentException("Unknown function " + function);
+        }
+    }
+
+    //角度先对360取余，余数是精确的，再转为弧度
+    private static BigDecimal toRadians(BigDecimal x, boolean isRad, MathContext mc) {
+        if (isRad)
+            return x;
+        return x.remainder(DEGREES_360).multiply(pi(mc), mc).divide(DEGREES_180, mc);
+    }
+
+    static BigDecimal factorial(BigDecimal x, MathContext mc) {
+        if (!isInteger(x)) {
+            //非整数的阶乘仍使用 double 的 Γ 函数
+            return new BigDecimal(Arithmetic.factorial(x.doubleValue()), mc);
+        }
+        if (x.signum() < 0)
+            throw new CalculateException(String.format("Cannot calculate \"%s!\"", x), CalculateException.OUT_OF_DOMAIN);
+        if (x.compareTo(BigDecimal.valueOf(Arithmetic.MAX_FACTORIAL)) > 0)
+            throw new CalculateException("Too gigantic!", CalculateException.TOO_GIGANTIC);
+
+        BigInteger result = BigInteger.ONE;
+        for (int i = x.intValue(); i > 1; i--)
+            result = result.multiply(BigInteger.valueOf(i));
+        return new BigDecimal(result, mc);
+    }
+
+    static BigDecimal pow(BigDecimal base, BigDecimal exponent, MathContext mc) {
+        if (base.signum() == 0 && exponent.signum() == 0)
+            throw new CalculateException("Occur NaN!", CalculateException.NOT_A_NUMBER);
+
+        if (base.signum() == 0) {
+            if (exponent.signum() < 0)
+                throw new CalculateException("Too gigantic!", CalculateException.TOO_GIGANTIC);
+            return BigDecimal.ZERO;
+        }
+
+        //整数指数直接连乘，BigDecimal.pow 最多支持 999999999 次方
+        if (isInteger(exponent) && exponent.abs().compareTo(BigDecimal.valueOf(999999999)) <= 0)
+            return base.pow(exponent.intValue(), mc);
+
+        if (base.signum() < 0)
+            throw new CalculateException("Occur NaN!", CalculateException.NOT_A_NUMBER);
+
+        //x^y = e^(y·ln x)，指数越大，ln x 需要的有效数字越多
+        MathContext working = new MathContext(mc.getPrecision() + digits(exponent) + 2);
+        return exp(exponent.multiply(ln(base, working), working), working).round(mc);
+    }
+
+    static BigDecimal exp(BigDecimal x, MathContext mc) {
+        if (x.signum() == 0)
+            return BigDecimal.ONE;
+
+        //e^x = e^n · e^r，n 是整数部分，|r| < 1
+        BigInteger integer = x.toBigInteger();
+        if (integer.compareTo(BigInteger.valueOf(MIN_EXPONENT)) < 0)
+            return BigDecimal.ZERO;
+        if (integer.bitLength() >= 31)
+            throw new CalculateException("Too gigantic!", CalculateException.TOO_GIGANTIC);
+
+        int n = integer.intValue();
+        MathContext working = new MathContext(mc.getPrecision() + digits(BigDecimal.valueOf(n)) + 2);
+        BigDecimal result = expTaylor(x.subtract(new BigDecimal(integer)), working);
+        if (n != 0)
+            result = result.multiply(e(working).pow(n, working), working);
+        return result.round(mc);
+    }
+
+    //|x| < 1
+    private static BigDecimal expTaylor(BigDecimal x, MathContext mc) {
+        BigDecimal sum = BigDecimal.ONE, term = BigDecimal.ONE;
+        for (int k = 1; ; k++) {
+            term = term.multiply(x, mc).divide(BigDecimal.valueOf(k), mc);
+            sum = sum.add(term, mc);
+            if (isNegligible(term, sum, mc))
+                return sum;
+        }
+    }
+
+    static BigDecimal ln(BigDecimal x, MathContext mc) {
+        //x = m·10^k，0.1 ≤ m < 10
+        int exponent = exponent(x);
+        if (exponent == -1)
+            exponent = 0;
+        BigDecimal m = x.movePointLeft(exponent);
+
+        //m 接近 1 时 ln m 接近 0，需要更多的有效数字
+        BigDecimal distance = m.subtract(BigDecimal.ONE);
+        int extra = distance.signum() == 0 ? 0 : Math.max(0, -exponent(distance));
+
+        MathContext working = new MathContext(mc.getPrecision() + extra + digits(BigDecimal.valueOf(exponent)) + 2);
+        BigDecimal result = lnNewton(m, working);
+        if (exponent != 0)
+            result = result.add(ln10(working).multiply(BigDecimal.valueOf(exponent), working), working);
+        return result.round(mc);
+    }
+
+    //y' = y + 2(x - e^y)/(x + e^y)，三阶收敛，从 double 的结果开始迭代两三次即可
+    private static BigDecimal lnNewton(BigDecimal x, MathContext mc) {
+        BigDecimal y = new BigDecimal(Math.log(x.doubleValue()));
+        for (int i = 0; i < MAX_ITERATIONS; i++) {
+            BigDecimal ey = exp(y, mc);
+            BigDecimal delta = TWO.multiply(x.subtract(ey, mc), mc).divide(x.add(ey, mc), mc);
+            y = y.add(delta, mc);
+            if (isNegligible(delta, y, mc))
+                break;
+        }
+        return y;
+    }
+
+    static BigDecimal sqrt(BigDecimal x, MathContext mc) {
+        if (x.signum() == 0)
+            return BigDecimal.ZERO;
+
+        //x = m·10^(2k)，1 ≤ m < 100
+        int exponent = exponent(x);
+        int half = exponent >= 0 ? exponent / 2 : -((1 - exponent) / 2);
+        BigDecimal m = x.movePointLeft(half * 2);
+
+        MathContext working = new MathContext(mc.getPrecision() + 2);
+        BigDecimal y = new BigDecimal(Math.sqrt(m.doubleValue()));
+        for (int i = 0; i < MAX_ITERATIONS; i++) {
+            BigDecimal next = y.add(m.divide(y, working), working).divide(TWO, working);
+            boolean converged = isNegligible(next.subtract(y), next, working);
+            y = next;
+            if (converged)
+                break;
+        }
+        return y.movePointRight(half).round(mc);
+    }
+
+    static BigDecimal sin(BigDecimal x, MathContext mc) {
+        MathContext working = new MathContext(mc.getPrecision() + 3);
+        BigDecimal r = reduce(x, working);
+        BigDecimal r2 = r.multiply(r, working).negate();
+        BigDecimal sum = r, term = r;
+        for (int k = 1; !isNegligible(term, sum, working); k++) {
+            term = term.multiply(r2, working).divide(BigDecimal.valueOf((2L * k) * (2L * k + 1)), working);
+            sum = sum.add(term, working);
+        }
+        return snap(sum, x, mc);
+    }
+
+    static BigDecimal cos(BigDecimal x, MathContext mc) {
+        MathContext working = new MathContext(mc.getPrecision() + 3);
+        BigDecimal r = reduce(x, working);
+        BigDecimal r2 = r.multiply(r, working).negate();
+        BigDecimal sum = BigDecimal.ONE, term = BigDecimal.ONE;
+        for (int k = 1; !isNegligible(term, sum, working); k++) {
+            term = term.multiply(r2, working).divide(BigDecimal.valueOf((2L * k - 1) * (2L * k)), working);
+            sum = sum.add(term, working);
+        }
+        return snap(sum, x, mc);
+    }
+
+    //把弧度化到 [-π, π]，x 越大，π 需要的有效数字越多
+    private static BigDecimal reduce(BigDecimal x, MathContext mc) {
+        int exponent = exponent(x);
+        if (exponent < 0)
+            return x;
+
+        MathContext working = new MathContext(mc.getPrecision() + exponent + 2);
+        BigDecimal twoPi = pi(working).multiply(TWO);
+        BigDecimal k = x.divide(twoPi, working).setScale(0, RoundingMode.HALF_EVEN);
+        return x.subtract(twoPi.multiply(k, working), working);
+    }
+
+    //经过化简的参数有 mc 精度以内的误差，sin 和 cos 在零点附近得到的只是这个误差，视为0
+    private static BigDecimal snap(BigDecimal value, BigDecimal x, MathContext mc) {
+        if (exponent(x) >= 0 && value.signum() != 0 && exponent(value) < -mc.getPrecision())
+            return BigDecimal.ZERO;
+        return value.round(mc);
+    }
+
+    static BigDecimal atan(BigDecimal x, MathContext mc) {
+        MathContext working = new MathContext(mc.getPrecision() + 3);
+
+        //atan(x) = ±π/2 - atan(1/x)
+        if (x.abs().compareTo(BigDecimal.ONE) > 0) {
+            BigDecimal result = pi(working).divide(TWO, working)
+                    .subtract(atan(BigDecimal.ONE.divide(x.abs(), working), working), working);
+            return (x.signum() < 0 ? result.negate() : result).round(mc);
+        }
+
+        //atan(x) = 2·atan(x / (1 + √(1 + x²)))，把 x 缩小到 0.1 以内，级数收敛得更快
+        int doublings = 0;
+        while (x.abs().compareTo(ONE_TENTH) > 0) {
+            BigDecimal root = sqrt(BigDecimal.ONE.add(x.multiply(x, working), working), working);
+            x = x.divide(BigDecimal.ONE.add(root, working), working);
+            doublings++;
+        }
+        return atanTaylor(x, working).multiply(BigDecimal.valueOf(1L << doublings)).round(mc);
+    }
+
+    //|x| 应当较小
+    private static BigDecimal atanTaylor(BigDecimal x, MathContext mc) {
+        BigDecimal x2 = x.multiply(x, mc).negate();
+        BigDecimal power = x, sum = x, term = x;
+        for (int k = 1; !isNegligible(term, sum, mc); k++) {
+            power = power.multiply(x2, mc);
+            term = power.divide(BigDecimal.valueOf(2L * k + 1), mc);
+            sum = sum.add(term, mc);
+        }
+        return sum;
+    }
+
+    static BigDecimal asin(BigDecimal x, MathContext mc) {
+        if (x.abs().compareTo(BigDecimal.ONE) == 0) {
+            BigDecimal halfPi = pi(mc).divide(TWO, mc);
+            return x.signum() < 0 ? halfPi.negate() : halfPi;
+        }
+
+        //asin(x) = atan(x / √(1 - x²))
+        MathContext working = new MathContext(mc.getPrecision() + 3);
+        BigDecimal root = sqrt(BigDecimal.ONE.subtract(x.multiply(x, working), working), working);
+        return atan(x.divide(root, working), working).round(mc);
+    }
+
+    static BigDecimal acos(BigDecimal x, MathContext mc) {
+        MathContext working = new MathContext(mc.getPrecision() + 3);
+        return pi(working).divide(TWO, working).subtract(asin(x, working), working).round(mc);
+    }
+
+    //π = 16·atan(1/5) - 4·atan(1/239)
+    static synchronized BigDecimal pi(MathContext mc) {
+        if (pi == null || pi.precision() < mc.getPrecision() + 2) {
+            MathContext working = new MathContext(mc.getPrecision() + 5);
+            BigDecimal a = atanTaylor(BigDecimal.ONE.divide(BigDecimal.valueOf(5), working), working);
+            BigDecimal b = atanTaylor(BigDecimal.ONE.divide(BigDecimal.valueOf(239), working), working);
+            pi = a.multiply(BigDecimal.valueOf(16)).subtract(b.multiply(BigDecimal.valueOf(4)), working);
+        }
+        return pi.round(mc);
+    }
+
+    static synchronized BigDecimal e(MathContext mc) {
+        if (e == null || e.precision() < mc.getPrecision() + 2) {
+            MathContext working = new MathContext(mc.getPrecision() + 5);
+            e = expTaylor(BigDecimal.ONE, working);
+        }
+        return e.round(mc);
+    }
+
+    private static synchronized BigDecimal ln10(MathContext mc) {
+        if (ln10 == null || ln10.precision() < mc.getPrecision() + 2)
+            ln10 = lnNewton(TEN, new MathContext(mc.getPrecision() + 5));
+        return ln10.round(mc);
+    }
+
+    static boolean isInteger(BigDecimal x) {
+        return x.signum() == 0 || x.scale() <= 0 || x.stripTrailingZeros().scale() <= 0;
+    }
+
+    //x = m·10^exponent，1 ≤ |m| < 10
+    private static int exponent(BigDecimal x) {
+        return x.precision() - x.scale() - 1;
+    }
+
+    //整数部分的位数
+    private static int digits(BigDecimal x) {
+        return Math.max(exponent(x) + 1, 0);
+    }
+
+    //term 相对于 sum 已经小于最后一位有效数字，或者已经小到没有意义
+    private static boolean isNegligible(BigDecimal term, BigDecimal sum, MathContext mc) {
+        if (term.signum() == 0)
+            return true;
+        int precision = mc.getPrecision();
+        if (exponent(term) < -2 * precision)
+            return true;
+        return sum.signum() != 0 && exponent(term) < exponent(sum) - precision;
+    }
+}
@@ -0,0 +1,135 @@
+package com.ashfly.android.calculator.demo;
+
+import com.ashfly.android.calculator.demo.EquationBuilder.CalculateException;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 计算结果的 LRU 缓存，键是记号序列和角度制/弧度制，值是结果或 {@link CalculateException}
+ * <p>
+ * 切换角度制、退格后重新输入相同的字符时，算式会回到之前计算过的状态，这时只需查一次表。
+ * 界面和 {@link EquationBuilder.Parser} 解析出的算式共用同一个缓存，见 {@link EquationBuilder#setResultCache(ResultCache)}。
+ * 所有方法都是线程安全的。
+ */
+public final class ResultCache {
+
+    private final int capacity;
+    private final Map<Key, Result> entries;
+    private long hits, misses, evictions;
+
+    /**
+     * @param capacity 最多缓存的结果数量
+     */
+    public ResultCache(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        this.capacity = capacity;
+        this.entries = new LinkedHashMap<Key, Result>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Result> eldest) {
+                if (size() <= ResultCache.this.capacity)
+                    return false;
+                evictions++;
+                return true;
+            }
+        };
+    }
+
+    synchronized Result get(long[] tokens, boolean isRad) {
+        Result result = entries.get(new Key(tokens, isRad));
+        if (result == null)
+            misses++;
+        else
+            hits++;
+        return result;
+    }
+
+    synchronized void put(long[] tokens, boolean isRad, Result result) {
+        entries.put(new Key(tokens, isRad), result);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ResultCache{size=" + entries.size() + "/" + capacity +
+                ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + '}';
+    }
+
+    private static final class Key {
+        final long[] tokens;
+        final boolean isRad;
+        final int hash;
+
+        Key(long[] tokens, boolean isRad) {
+            this.tokens = tokens;
+            this.isRad = isRad;
+            this.hash = Arrays.hashCode(tokens) * 31 + (isRad ? 1 : 0);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof Key))
+                return false;
+            Key other = (Key) obj;
+            return hash == other.hash && isRad == other.isRad && Arrays.equals(tokens, other.tokens);
+        }
+    }
+
+    /**
+     * 一次计算的结果，error 不为 null 时表示计算出错
+     */
+    static final class Result {
+        final double value;
+        final boolean exact; //见 EquationBuilder.calculate(boolean, MathContext)
+        final CalculateException error;
+
+        Result(double value, boolean exact) {
+            this.value = value;
+            this.exact = exact;
+            this.error = null;
+        }
+
+        Result(CalculateException error) {
+            this.value = Double.NaN;
+            this.exact = false;
+            this.error = error;
+        }
+
+        //每次抛出新的异常，避免多个调用者共用同一个异常对象
+        double getValue() {
+            if (error != null)
+                throw new CalculateException(error.getMessage(), error.reason);
+            return value;
+        }
+    }
+}
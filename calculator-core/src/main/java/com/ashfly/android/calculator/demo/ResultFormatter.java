@@ -0,0 +1,313 @@
+package com.ashfly.android.calculator.demo;
+
+import java.math.BigInteger;
+import java.text.DecimalFormatSymbols;
+
+/**
+ * 把 double 结果格式化成结果栏显示的文本，规则与原来 NumberFormat 和 Double.toString 配合得到的相同：
+ * <ul>
+ * <li>四舍五入到 {@link #MAX_FRACTION_DIGITS} 位小数后为0时显示 0</li>
+ * <li>十进制指数不大于 -10，或者不小于 10 并且大于有效数字的小数位数时，使用 Double.toString 格式的科学记数法</li>
+ * <li>其他情况显示带千位分隔符、最多 {@link #MAX_FRACTION_DIGITS} 位小数的数字，分隔符和数字字符来自 {@link DecimalFormatSymbols}</li>
+ * </ul>
+ * 有效数字由 Schubfach 算法直接求出：能还原成同一个 double 的最短十进制数，有多个时取最接近的。
+ * 之后舍入、加分隔符和选择记数法都在一个复用的 char 数组中一次完成，不生成中间的字符串。
+ * <p>
+ * 不是线程安全的，每个线程使用自己的实例。
+ */
+public final class ResultFormatter {
+
+    public static final int MAX_FRACTION_DIGITS = 14;
+
+    //double 的参数
+    private static final int Q_MIN = -1074; //最小的二进制指数
+    private static final long C_MIN = 1L << 52; //规格化数的最小尾数
+    private static final int C_TINY = 3; //小于它的非规格化尾数要多算一位
+    private static final int K_MIN = -324, K_MAX = 292; //10 的幂的表的范围
+    private static final long MASK_63 = (1L << 63) - 1;
+    //2^(n+54) 到 2^(n+55) 之间的整数最后几位数字不打印
+    private static final int[] INSIGNIFICANT_DIGITS = {0, 0, 0, 0, 1, 1, 1, 2, 2, 2};
+
+    private final char zeroDigit, groupingSeparator, decimalSeparator, minusSign;
+    private final String nan, infinity;
+
+    private final byte[] digits = new byte[20]; //最多17位有效数字
+    private final char[] buffer = new char[64];
+    private int digitCount, exponent; //结果是 0.d1d2...dn × 10^(exponent + 1)
+    private long significand; //Schubfach 的结果：significand × 10^decimalExponent
+    private int decimalExponent;
+
+    public ResultFormatter(DecimalFormatSymbols symbols) {
+        zeroDigit = symbols.getZeroDigit();
+        groupingSeparator = symbols.getGroupingSeparator();
+        decimalSeparator = symbols.getDecimalSeparator();
+        minusSign = symbols.getMinusSign();
+        nan = symbols.getNaN();
+        infinity = symbols.getInfinity();
+    }
+
+    public String format(double value) {
+        if (Double.isNaN(value))
+            return nan;
+        boolean negative = value < 0;
+        if (Double.isInfinite(value))
+            return negative ? minusSign + infinity : infinity;
+        if (value == 0)
+            return "0";
+
+        toDecimal(Math.abs(value));
+        setDigits();
+
+        //最高位也被舍去，并且不进位
+        int kept = exponent + MAX_FRACTION_DIGITS + 1;
+        if (kept < 0 || (kept == 0 && digits[0] < 5))
+            return "0";
+
+        if (exponent <= -10 || (exponent >= 10 && exponent > Math.max(digitCount - 1, 1)))
+            return formatScientific(negative);
+        return formatPlain(negative, kept);
+    }
+
+    //与 Double.toString 相同：d.dddE-n，只有一位有效数字时是 d.0
+    private String formatScientific(boolean negative) {
+        int length = 0;
+        if (negative)
+            buffer[length++] = '-';
+        buffer[length++] = (char) ('0' + digits[0]);
+        buffer[length++] = '.';
+        if (digitCount == 1)
+            buffer[length++] = '0';
+        for (int i = 1; i < digitCount; i++)
+            buffer[length++] = (char) ('0' + digits[i]);
+        buffer[length++] = 'E';
+
+        int e = exponent;
+        if (e < 0) {
+            buffer[length++] = '-';
+            e = -e;
+        }
+        if (e >= 100)
+            buffer[length++] = (char) ('0' + e / 100);
+        if (e >= 10)
+            buffer[length++] = (char) ('0' + e / 10 % 10);
+        buffer[length++] = (char) ('0' + e % 10);
+        return new String(buffer, 0, length);
+    }
+
+    //HALF_UP 舍入到 kept 位有效数字，即最多 MAX_FRACTION_DIGITS 位小数
+    private String formatPlain(boolean negative, int kept) {
+        if (kept < digitCount) {
+            boolean roundUp = digits[kept] >= 5;
+            digitCount = kept;
+            if (roundUp) {
+                int i = kept - 1;
+                while (i >= 0 && digits[i] == 9)
+                    i--;
+                if (i < 0) {
+                    //全部进位，变成 1 后面跟着0
+                    digits[0] = 1;
+                    digitCount = 1;
+                    exponent++;
+                } else {
+                    digits[i]++;
+                    digitCount = i + 1;
+                }
+            }
+            while (digitCount > 1 && digits[digitCount - 1] == 0)
+                digitCount--;
+        }
+
+        int length = 0;
+        if (negative)
+            buffer[length++] = minusSign;
+
+        //整数部分，不足的位数补0
+        if (exponent < 0) {
+            buffer[length++] = zeroDigit;
+        } else {
+            for (int i = 0; i <= exponent; i++) {
+                if (i > 0 && (exponent - i + 1) % 3 == 0)
+                    buffer[length++] = groupingSeparator;
+                buffer[length++] = (char) (zeroDigit + (i < digitCount ? digits[i] : 0));
+            }
+        }
+
+        //小数部分，小数点后到第一位有效数字之间补0
+        if (digitCount > exponent + 1) {
+            buffer[length++] = decimalSeparator;
+            for (int i = exponent + 1; i < 0; i++)
+                buffer[length++] = zeroDigit;
+            for (int i = Math.max(exponent + 1, 0); i < digitCount; i++)
+                buffer[length++] = (char) (zeroDigit + digits[i]);
+        }
+        return new String(buffer, 0, length);
+    }
+
+    //把 significand 拆成没有末尾0的各位数字
+    private void setDigits() {
+        long f = significand;
+        int e = decimalExponent;
+        while (f % 10 == 0) {
+            f /= 10;
+            e++;
+        }
+        int count = 0;
+        for (long rest = f; rest != 0; rest /= 10)
+            count++;
+        for (int i = count - 1; i >= 0; i--) {
+            digits[i] = (byte) (f % 10);
+            f /= 10;
+        }
+        digitCount = count;
+        exponent = e + count - 1;
+    }
+
+    //v 是有限的正数
+    private void toDecimal(double v) {
+        long bits = Double.doubleToRawLongBits(v);
+        long t = bits & (C_MIN - 1);
+        int bq = (int) (bits >>> 52) & 0x7ff;
+        if (bq != 0) {
+            //v = c × 2^q
+            int mq = -Q_MIN + 1 - bq;
+            long c = C_MIN | t;
+            //long 范围内的整数
+            if (mq > -11 && mq < 53) {
+                long f = mq > 0 ? c >> mq : c << -mq;
+                if (mq <= 0 || f << mq == c) {
+                    toLongDigits(f, -mq);
+                    return;
+                }
+            }
+            toDecimal(-mq, c, 0);
+        } else if (t < C_TINY) {
+            toDecimal(Q_MIN, 10 * t, -1);
+        } else {
+            toDecimal(Q_MIN, t, 0);
+        }
+    }
+
+    /*
+     * 与 Double.toString 相同，2^53 以上的整数不取最短的数字，而是只去掉最后几位不精确的数字再四舍五入。
+     * 这些位数按二进制指数查表，见 FloatingDecimal.insignificantDigitsForPow2
+     */
+    private void toLongDigits(long value, int q) {
+        int binaryExponent = q + 52;
+        int insignificant = binaryExponent > 55 ? INSIGNIFICANT_DIGITS[binaryExponent - 54] : 0;
+        long power = 1;
+        for (int i = 0; i < insignificant; i++)
+            power *= 10;
+        long residue = value % power;
+        significand = value / power + (residue >= power >> 1 && insignificant > 0 ? 1 : 0);
+        decimalExponent = insignificant;
+    }
+
+    /*
+     * Schubfach：在 v = c × 2^q 的舍入区间中找最短的十进制数。
+     * 区间和 v 都乘以 4 并换算到 10^k 的单位，用预先算好的 126 位的 10^-k 近似值相乘，得到带两位小数的近似值，
+     * 先试 10 的倍数，再试相邻的两个整数，都在区间内时取最接近的
+     */
+    private void toDecimal(int q, long c, int dk) {
+        int out = (int) c & 1; //尾数是奇数时区间不包括端点
+        long cb = c << 2;
+        long cbr = cb + 2;
+        long cbl;
+        int k;
+        if (c != C_MIN || q == Q_MIN) {
+            cbl = cb - 2;
+            k = flog10pow2(q);
+        } else {
+            //2 的幂下面的间隔只有上面的一半
+            cbl = cb - 1;
+            k = flog10threeQuartersPow2(q);
+        }
+        int h = q + flog2pow10(-k) + 2;
+
+        long[] g = Powers.G;
+        long g1 = g[2 * (k - K_MIN)], g0 = g[2 * (k - K_MIN) + 1];
+        long vb = rop(g1, g0, cb << h);
+        long vbl = rop(g1, g0, cbl << h);
+        long vbr = rop(g1, g0, cbr << h);
+
+        long s = vb >> 2;
+        if (s >= 100) {
+            long sp10 = 10 * multiplyHigh(s, 115_292_150_460_684_698L << 4); //s / 10 × 10
+            long tp10 = sp10 + 10;
+            boolean upin = vbl + out <= sp10 << 2;
+            boolean wpin = (tp10 << 2) + out <= vbr;
+            if (upin != wpin) {
+                significand = upin ? sp10 : tp10;
+                decimalExponent = k;
+                return;
+            }
+        }
+        long t = s + 1;
+        boolean uin = vbl + out <= s << 2;
+        boolean win = (t << 2) + out <= vbr;
+        if (uin != win) {
+            significand = uin ? s : t;
+            decimalExponent = k + dk;
+            return;
+        }
+        long cmp = vb - (s + t << 1);
+        significand = cmp < 0 || cmp == 0 && (s & 1) == 0 ? s : t;
+        decimalExponent = k + dk;
+    }
+
+    //g × cp / 2^127 向上取到奇数，g = g1 × 2^63 + g0
+    private static long rop(long g1, long g0, long cp) {
+        long x1 = multiplyHigh(g0, cp);
+        long y0 = g1 * cp;
+        long y1 = multiplyHigh(g1, cp);
+        long z = (y0 >>> 1) + x1;
+        long vbp = y1 + (z >>> 63);
+        return vbp | (z & MASK_63) + MASK_63 >>> 63;
+    }
+
+    //两个非负数乘积的高64位，Math.multiplyHigh 在 Android 上不可用
+    private static long multiplyHigh(long x, long y) {
+        long x1 = x >>> 32, x0 = x & 0xffffffffL;
+        long y1 = y >>> 32, y0 = y & 0xffffffffL;
+        long low = x0 * y0;
+        long middle1 = x1 * y0 + (low >>> 32);
+        long middle2 = x0 * y1 + (middle1 & 0xffffffffL);
+        return x1 * y1 + (middle1 >>> 32) + (middle2 >>> 32);
+    }
+
+    //floor(log10(2^e))
+    private static int flog10pow2(int e) {
+        return (int) (e * 661_971_961_083L >> 41);
+    }
+
+    //floor(log10(3/4 × 2^e))
+    private static int flog10threeQuartersPow2(int e) {
+        return (int) (e * 661_971_961_083L + -274_743_187_321L >> 41);
+    }
+
+    //floor(log2(10^e))
+    private static int flog2pow10(int e) {
+        return (int) (e * 913_124_641_741L >> 38);
+    }
+
+    //第一次格式化时才计算的 10 的幂的表，每个 k 是 g = floor(10^-k × 2^-r) + 1 的高位和低63位，2^125 <= g < 2^126
+    private static final class Powers {
+        static final long[] G = new long[2 * (K_MAX - K_MIN + 1)];
+
+        static {
+            BigInteger mask = BigInteger.ONE.shiftLeft(63).subtract(BigInteger.ONE);
+            for (int k = K_MIN; k <= K_MAX; k++) {
+                int r = flog2pow10(-k) - 125;
+                BigInteger g;
+                if (k <= 0) {
+                    BigInteger power = BigInteger.TEN.pow(-k);
+                    g = r >= 0 ? power.shiftRight(r) : power.shiftLeft(-r);
+                } else {
+                    g = BigInteger.ONE.shiftLeft(-r).divide(BigInteger.TEN.pow(k));
+                }
+                g = g.add(BigInteger.ONE);
+                G[2 * (k - K_MIN)] = g.shiftRight(63).longValue();
+                G[2 * (k - K_MIN) + 1] = g.and(mask).longValue();
+            }
+        }
+    }
+}
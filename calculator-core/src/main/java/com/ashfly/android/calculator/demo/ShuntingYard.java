@@ -0,0 +1,233 @@
+package com.ashfly.android.calculator.demo;
+
+import static com.ashfly.android.calculator.demo.CompiledExpression.ADD;
+import static com.ashfly.android.calculator.demo.CompiledExpression.DIVIDE;
+import static com.ashfly.android.calculator.demo.CompiledExpression.FACTORIAL;
+import static com.ashfly.android.calculator.demo.CompiledExpression.MULTIPLY;
+import static com.ashfly.android.calculator.demo.CompiledExpression.NUMBER;
+import static com.ashfly.android.calculator.demo.CompiledExpression.PERCENT;
+import static com.ashfly.android.calculator.demo.CompiledExpression.POW;
+import static com.ashfly.android.calculator.demo.CompiledExpression.SUBTRACT;
+import static com.ashfly.android.calculator.demo.CompiledExpression.VARIABLE;
+import static com.ashfly.android.calculator.demo.EquationBuilder.EMPTY_CHAR;
+
+import com.ashfly.android.calculator.demo.EquationBuilder.CalculateException;
+
+import java.util.Arrays;
+
+/**
+ * 调度场算法，逐个接收中缀的记号，按后缀顺序交给 {@link #emit(byte, double)}
+ * <p>
+ * 编译和直接计算共用这里的优先级规则：乘方右结合且优先于隐含的乘法，函数只作用于紧随其后的一个操作数，
+ * % 和 ! 作用于前一个操作数，未闭合的括号在末尾自动闭合。
+ */
+abstract class ShuntingYard {
+
+    //只在栈中使用，表示尚未闭合的左括号
+    private static final byte LEFT_BRACKET = 19;
+
+    private byte[] stack = new byte[16];
+    private int[] groupStarts = new int[16]; //左括号对应的第一条指令
+    private int top = -1, length, accepted;
+    private boolean hasOperand; //上一个记号是否结束了一个操作数
+    private char carriedOperator; //被跳过的空记号前面的运算符，交给下一个记号
+    private byte lastOp;
+    private double lastNumber;
+    CalculateBudget budget; //null 表示不限制
+
+    private static byte binaryOperator(char operator) {
+        switch (operator) {
+            case '+':
+                return ADD;
+            case '-':
+                return SUBTRACT;
+            case EMPTY_CHAR:
+            case '×':
+                return MULTIPLY;
+            case '÷':
+                return DIVIDE;
+            case '^':
+                return POW;
+            default:
+                throw formatError();
+        }
+    }
+
+    private static int precedence(byte op) {
+        switch (op) {
+            case ADD:
+            case SUBTRACT:
+                return 1;
+            case MULTIPLY:
+            case DIVIDE:
+                return 2;
+            case POW:
+                return 3;
+            default:
+                return 0;
+        }
+    }
+
+    static CalculateException formatError() {
+        return new CalculateException("Format error", CalculateException.FORMAT_ERROR);
+    }
+
+    /**
+     * 按后缀顺序输出一条指令
+     *
+     * @param number op 为 NUMBER 时是数值，为 VARIABLE 时是变量名
+     */
+    abstract void emit(byte op, double number);
+
+    void reset() {
+        top = -1;
+        length = 0;
+        accepted = 0;
+        hasOperand = false;
+        carriedOperator = EMPTY_CHAR;
+    }
+
+    void accept(TokenBuffer tokens, int index) {
+        //在算式中间输入的运算符先成为一个空记号，如果后面的记号没有运算符，它就是后面记号的运算符：1×|(2)
+        if (tokens.isEmpty(index) && index + 1 < tokens.size() && tokens.operator(index + 1) == EMPTY_CHAR) {
+            carriedOperator = tokens.operator(index);
+            return;
+        }
+        byte kind = tokens.kind(index);
+        accept(tokens.operator(index), kind, tokens.value(index),
+                kind == TokenBuffer.FUNCTION || kind == TokenBuffer.VARIABLE ? tokens.function(index) : 0);
+    }
+
+    /**
+     * 接收一个记号，第一个记号前面的运算符会被忽略
+     *
+     * @param kind     记号类型，见 {@link TokenBuffer}
+     * @param value    数字和常量的值
+     * @param function 函数编号，或变量名
+     */
+    void accept(char operator, byte kind, double value, int function) {
+        if (budget != null)
+            budget.charge();
+        if (carriedOperator != EMPTY_CHAR) {
+            if (operator == EMPTY_CHAR)
+                operator = carriedOperator;
+            carriedOperator = EMPTY_CHAR;
+        }
+        if (accepted++ == 0)
+            operator = EMPTY_CHAR;
+
+        if (hasOperand) {
+            //1  %     (2)
+            //  空   空
+            if (kind == TokenBuffer.PERCENT || kind == TokenBuffer.FACTORIAL || kind == TokenBuffer.RIGHT_BRACKET) {
+                if (operator != EMPTY_CHAR)
+                    throw formatError();
+                if (kind == TokenBuffer.RIGHT_BRACKET)
+                    closeBracket();
+                else
+                    output(kind == TokenBuffer.PERCENT ? PERCENT : FACTORIAL, 0);
+                return;
+            }
+
+            //没有运算符的两个操作数之间是乘法
+            pushBinaryOperator(binaryOperator(operator));
+            hasOperand = false;
+        } else if (operator != EMPTY_CHAR) {
+            throw formatError();
+        }
+
+        if (kind == TokenBuffer.FUNCTION) {
+            push((byte) function);
+            return;
+        }
+
+        if (kind == TokenBuffer.LEFT_BRACKET) {
+            push(LEFT_BRACKET);
+            groupStarts[top] = length;
+            return;
+        }
+
+        if (kind == TokenBuffer.VARIABLE) {
+            output(VARIABLE, function);
+        } else {
+            if (Double.isNaN(value))
+                throw formatError();
+            output(NUMBER, value);
+        }
+        operandFinished();
+    }
+
+    private void push(byte op) {
+        if (++top == stack.length) {
+            stack = Arrays.copyOf(stack, top * 2);
+            groupStarts = Arrays.copyOf(groupStarts, top * 2);
+        }
+        stack[top] = op;
+    }
+
+    private void closeBracket() {
+        while (top >= 0 && stack[top] != LEFT_BRACKET)
+            output(stack[top--], 0);
+        if (top < 0)
+            throw formatError();
+        checkGroup(groupStarts[top--]);
+        operandFinished();
+    }
+
+    //括号内只有正负号时，其值为无穷大，与整体计算一样视为过大
+    private void checkGroup(int start) {
+        if (length - start == 1 && lastOp == NUMBER)
+            Arithmetic.check(lastNumber);
+    }
+
+    //函数只作用于紧随其后的一个操作数
+    private void operandFinished() {
+        while (top >= 0 && stack[top] < NUMBER)
+            output(stack[top--], 0);
+        hasOperand = true;
+    }
+
+    //乘方右结合，其余左结合
+    private void pushBinaryOperator(byte op) {
+        int precedence = precedence(op);
+        while (top >= 0) {
+            int topPrecedence = precedence(stack[top]);
+            if (topPrecedence > precedence || (topPrecedence == precedence && op != POW))
+                output(stack[top--], 0);
+            else
+                break;
+        }
+        push(op);
+    }
+
+    private void output(byte op, double number) {
+        lastOp = op;
+        lastNumber = number;
+        length++;
+        emit(op, number);
+    }
+
+    /**
+     * 输出栈中剩余的运算符，未闭合的括号视为在末尾闭合
+     *
+     * @throws CalculateException 算式格式错误
+     */
+    void finish() {
+        if (length == 0 && top < 0) {
+            //空算式的值为0
+            output(NUMBER, 0);
+            return;
+        }
+        if (!hasOperand)
+            throw formatError();
+
+        while (top >= 0) {
+            byte op = stack[top];
+            if (op == LEFT_BRACKET)
+                checkGroup(groupStarts[top]);
+            else
+                output(op, 0);
+            top--;
+        }
+    }
+}
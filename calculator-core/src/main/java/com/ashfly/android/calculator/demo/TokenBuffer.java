@@ -0,0 +1,745 @@
+package com.ashfly.android.calculator.demo;
+
+import static com.ashfly.android.calculator.demo.EquationBuilder.EMPTY_CHAR;
+import static com.ashfly.android.calculator.demo.EquationBuilder.MATH_FUNCTIONS;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * 算式的记号序列，每个记号的类型、它前面的运算符、字面量和数值分别保存在平行的基本类型数组中
+ * <p>
+ * 数字记号的字面量打包在一个 long 中，可以无损还原输入的文本：
+ * 低 50 位是去掉小数点和正负号后的数字，之后依次是数字的个数、小数点的位置和正负号。
+ * 函数记号的字面量是函数在 MATH_FUNCTIONS 中的下标，变量记号的字面量是变量名。
+ * <p>
+ * 数组是一个间隙缓冲区：间隙之前的记号在数组开头，之后的记号在数组末尾，添加和删除记号都发生在间隙处。
+ * 间隙通常在末尾，此时与普通的数组相同；在中间编辑时先用 {@link #moveGap(int)} 移动间隙，代价与移动的距离成正比。
+ * 除了 add 和删除以外，所有方法的下标都是记号在序列中的位置，与间隙无关。
+ */
+final class TokenBuffer {
+
+    //记号类型
+    static final byte NUMBER = 0; //数字，也包括只有正负号或小数点的数字，以及空记号
+    static final byte E = 1;
+    static final byte PI = 2;
+    static final byte FUNCTION = 3;
+    static final byte PERCENT = 4;
+    static final byte FACTORIAL = 5;
+    static final byte LEFT_BRACKET = 6;
+    static final byte RIGHT_BRACKET = 7;
+    static final byte VARIABLE = 8;
+
+    //字符类别
+    static final byte CHAR_OTHER = 0;
+    static final byte CHAR_DIGIT = 1;
+    static final byte CHAR_DOT = 2;
+    static final byte CHAR_OPERATOR = 3; // + - × ÷ ^
+    static final byte CHAR_ENDING = 4; // ! %
+    static final byte CHAR_CONSTANT = 5; // e π
+    static final byte CHAR_SQRT = 6;
+    static final byte CHAR_BRACKET = 7;
+
+    private static final byte[] CHAR_CLASSES = new byte['π' + 1];
+
+    //字面量的打包格式
+    private static final long MANTISSA_MASK = (1L << 50) - 1;
+    private static final int COUNT_SHIFT = 50; //4位，数字的个数
+    private static final int DOT_SHIFT = 54; //5位，0表示没有小数点，否则为小数点前的数字个数+1
+    private static final int SIGN_SHIFT = 59; //2位，0表示没有正负号，1为正号，2为负号
+    //序列化时运算符的编号，见 writeTo
+    private static final char[] OPERATOR_CODES = {EMPTY_CHAR, '+', '-', '×', '÷', '^'};
+    private static final int KIND_BITS = 4;
+    //数字的个数上限，4 位的个数和 POWERS_OF_TEN 都按此设计
+    static final int MAX_DIGITS = 15;
+
+    private static final double[] POWERS_OF_TEN = {
+            1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 1e12, 1e13, 1e14, 1e15};
+
+    static {
+        for (char c = '0'; c <= '9'; c++)
+            CHAR_CLASSES[c] = CHAR_DIGIT;
+        CHAR_CLASSES['.'] = CHAR_DOT;
+        CHAR_CLASSES['+'] = CHAR_OPERATOR;
+        CHAR_CLASSES['-'] = CHAR_OPERATOR;
+        CHAR_CLASSES['×'] = CHAR_OPERATOR;
+        CHAR_CLASSES['÷'] = CHAR_OPERATOR;
+        CHAR_CLASSES['^'] = CHAR_OPERATOR;
+        CHAR_CLASSES['!'] = CHAR_ENDING;
+        CHAR_CLASSES['%'] = CHAR_ENDING;
+        CHAR_CLASSES['e'] = CHAR_CONSTANT;
+        CHAR_CLASSES['π'] = CHAR_CONSTANT;
+        CHAR_CLASSES['('] = CHAR_BRACKET;
+        CHAR_CLASSES[')'] = CHAR_BRACKET;
+    }
+
+    private byte[] kinds = new byte[16];
+    private char[] operators = new char[16]; //记号前面的运算符，第一个记号没有运算符
+    private long[] literals = new long[16];
+    private double[] values = new double[16];
+    private int front, back; //间隙之前和之后的记号数量
+
+    //变量名只能是一个小写字母，e 已经表示自然常数
+    static boolean isVariableName(char c) {
+        return c >= 'a' && c <= 'z' && c != 'e';
+    }
+
+    static int charClass(char c) {
+        if (c < CHAR_CLASSES.length)
+            return CHAR_CLASSES[c];
+        return c == '√' ? CHAR_SQRT : CHAR_OTHER;
+    }
+
+    private static long mantissa(long literal) {
+        return literal & MANTISSA_MASK;
+    }
+
+    private static int count(long literal) {
+        return (int) (literal >>> COUNT_SHIFT) & 0xF;
+    }
+
+    private static int dot(long literal) {
+        return (int) (literal >>> DOT_SHIFT) & 0x1F;
+    }
+
+    private static int sign(long literal) {
+        return (int) (literal >>> SIGN_SHIFT) & 0x3;
+    }
+
+    private static long pack(long mantissa, int count, int dot, int sign) {
+        return mantissa | (long) count << COUNT_SHIFT | (long) dot << DOT_SHIFT | (long) sign << SIGN_SHIFT;
+    }
+
+    //与 Double.parseDouble 的结果相同：15位以内的整数和10的幂都能精确表示，一次除法的舍入是正确的
+    private static double valueOf(long literal) {
+        int sign = sign(literal);
+        int count = count(literal);
+        if (count == 0) {
+            if (sign == 0)
+                return Double.NaN;
+            return sign == 1 ? Double.POSITIVE_INFINITY : Double.NEGATIVE_INFINITY;
+        }
+
+        int dot = dot(literal);
+        double value = mantissa(literal);
+        if (dot > 0 && dot - 1 < count)
+            value = value / POWERS_OF_TEN[count - (dot - 1)];
+        return sign == 2 ? -value : value;
+    }
+
+    int size() {
+        return front + back;
+    }
+
+    /**
+     * @return 间隙之前的记号数量
+     */
+    int gap() {
+        return front;
+    }
+
+    //记号在数组中的位置
+    private int slot(int index) {
+        return index < front ? index : index + kinds.length - front - back;
+    }
+
+    byte kind(int index) {
+        return kinds[slot(index)];
+    }
+
+    char operator(int index) {
+        return operators[slot(index)];
+    }
+
+    double value(int index) {
+        return values[slot(index)];
+    }
+
+    int function(int index) {
+        return (int) literals[slot(index)];
+    }
+
+    char variable(int index) {
+        return (char) literals[slot(index)];
+    }
+
+    /**
+     * 数字和常量的精确值，其他记号返回 null
+     * <p>
+     * 只有正负号的数字视为 ±1，它们只会作为乘数或指数参与计算
+     */
+    BigDecimal decimal(int index, MathContext mc) {
+        switch (kinds[slot(index)]) {
+            case NUMBER:
+                long literal = literals[slot(index)];
+                int count = count(literal), dot = dot(literal), sign = sign(literal);
+                if (count == 0)
+                    return sign == 0 ? null : sign == 1 ? BigDecimal.ONE : BigDecimal.ONE.negate();
+
+                BigDecimal value = BigDecimal.valueOf(mantissa(literal), dot > 0 ? count - (dot - 1) : 0);
+                return sign == 2 ? value.negate() : value;
+            case E:
+                return PreciseArithmetic.e(mc);
+            case PI:
+                return PreciseArithmetic.pi(mc);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * 在间隙处添加一个空记号，之后间隙在它后面
+     */
+    void add(char operator) {
+        if (front + back == kinds.length)
+            grow();
+        operators[front] = front == 0 ? EMPTY_CHAR : operator;
+        front++;
+        setEmpty(front - 1);
+    }
+
+    private void grow() {
+        int capacity = kinds.length * 2, from = kinds.length - back, to = capacity - back;
+        kinds = grow(kinds, new byte[capacity], from, to);
+        operators = grow(operators, new char[capacity], from, to);
+        literals = grow(literals, new long[capacity], from, to);
+        values = grow(values, new double[capacity], from, to);
+    }
+
+    //间隙之前的部分留在开头，之后的部分从 from 移到 to
+    private <T> T grow(T array, T grown, int from, int to) {
+        System.arraycopy(array, 0, grown, 0, front);
+        System.arraycopy(array, from, grown, to, back);
+        return grown;
+    }
+
+    /**
+     * 把间隙移到第 position 个记号之前，position 为 size() 时移到末尾
+     */
+    void moveGap(int position) {
+        if (position < 0 || position > size())
+            throw new IndexOutOfBoundsException("Gap: " + position + ", size: " + size());
+
+        int gap = kinds.length - front - back;
+        if (position < front) {
+            int count = front - position;
+            move(position, position + gap, count);
+            back += count;
+        } else if (position > front) {
+            int count = position - front;
+            move(front + gap, front, count);
+            back -= count;
+        }
+        front = position;
+    }
+
+    private void move(int from, int to, int count) {
+        System.arraycopy(kinds, from, kinds, to, count);
+        System.arraycopy(operators, from, operators, to, count);
+        System.arraycopy(literals, from, literals, to, count);
+        System.arraycopy(values, from, values, to, count);
+    }
+
+    /**
+     * 复制 other 的所有记号和间隙的位置，原有的记号被覆盖
+     */
+    void copyFrom(TokenBuffer other) {
+        int capacity = other.kinds.length;
+        //容量相同时复用数组，反复同步同一个算式时不必重新分配
+        if (kinds.length == capacity) {
+            System.arraycopy(other.kinds, 0, kinds, 0, capacity);
+            System.arraycopy(other.operators, 0, operators, 0, capacity);
+            System.arraycopy(other.literals, 0, literals, 0, capacity);
+            System.arraycopy(other.values, 0, values, 0, capacity);
+        } else {
+            kinds = Arrays.copyOf(other.kinds, capacity);
+            operators = Arrays.copyOf(other.operators, capacity);
+            literals = Arrays.copyOf(other.literals, capacity);
+            values = Arrays.copyOf(other.values, capacity);
+        }
+        front = other.front;
+        back = other.back;
+    }
+
+    /**
+     * @return 开头有多少个记号与 other 相同，包括类型、运算符和字面量
+     */
+    int commonPrefix(TokenBuffer other) {
+        int size = Math.min(size(), other.size());
+        for (int i = 0; i < size; i++) {
+            int slot = slot(i), otherSlot = other.slot(i);
+            if (kinds[slot] != other.kinds[otherSlot] || operators[slot] != other.operators[otherSlot]
+                    || literals[slot] != other.literals[otherSlot])
+                return i;
+        }
+        return size;
+    }
+
+    /**
+     * 删除间隙之前的一个记号
+     */
+    void removeBeforeGap() {
+        front--;
+    }
+
+    /**
+     * 删除间隙之后的一个记号
+     */
+    void removeAfterGap() {
+        back--;
+    }
+
+    void clear() {
+        front = back = 0;
+    }
+
+    /**
+     * 删除前 count 个记号，后面的记号前移，之后间隙在末尾
+     */
+    void removeFirst(int count) {
+        moveGap(size());
+        if (count == 0)
+            return;
+        front -= count;
+        move(count, 0, front);
+    }
+
+    /**
+     * 设置记号前面的运算符，第一个记号只能是 EMPTY_CHAR
+     */
+    void setOperator(int index, char operator) {
+        operators[slot(index)] = operator;
+    }
+
+    void setEmpty(int index) {
+        set(index, NUMBER, 0);
+    }
+
+    void setKind(int index, byte kind) {
+        set(index, kind, 0);
+    }
+
+    void setFunction(int index, int function) {
+        set(index, FUNCTION, function);
+    }
+
+    void setVariable(int index, char name) {
+        set(index, VARIABLE, name);
+    }
+
+    private void set(int index, byte kind, long literal) {
+        kinds[slot(index)] = kind;
+        literals[slot(index)] = literal;
+        switch (kind) {
+            case NUMBER:
+                values[slot(index)] = valueOf(literal);
+                break;
+            case E:
+                values[slot(index)] = Math.E;
+                break;
+            case PI:
+                values[slot(index)] = Math.PI;
+                break;
+            default:
+                values[slot(index)] = Double.NaN;
+                break;
+        }
+    }
+
+    /**
+     * 按文本设置记号，文本必须是 {@link #appendTo(int, StringBuilder)} 能够输出的形式
+     *
+     * @throws IllegalArgumentException 文本不是合法的记号，或数字超过 {@link #MAX_DIGITS} 位
+     */
+    void setText(int index, String text) {
+        int function = MATH_FUNCTIONS.indexOf(text);
+        if (function >= 0) {
+            setFunction(index, function);
+            return;
+        }
+
+        if (text.length() == 1) {
+            switch (text.charAt(0)) {
+                case 'e':
+                    setKind(index, E);
+                    return;
+                case 'π':
+                    setKind(index, PI);
+                    return;
+                case '%':
+                    setKind(index, PERCENT);
+                    return;
+                case '!':
+                    setKind(index, FACTORIAL);
+                    return;
+                case '(':
+                    setKind(index, LEFT_BRACKET);
+                    return;
+                case ')':
+                    setKind(index, RIGHT_BRACKET);
+                    return;
+            }
+            if (isVariableName(text.charAt(0))) {
+                setVariable(index, text.charAt(0));
+                return;
+            }
+        }
+
+        setEmpty(index);
+        for (int i = 0, length = text.length(); i < length; i++) {
+            char c = text.charAt(i);
+            int charClass = charClass(c);
+            if (charClass == CHAR_DIGIT && count(literals[slot(index)]) < MAX_DIGITS)
+                appendDigit(index, c);
+            else if (charClass == CHAR_DOT && !hasDot(index))
+                appendDot(index);
+            else if (i == 0 && (c == '+' || c == '-'))
+                setSign(index, c);
+            else
+                throw new IllegalArgumentException("Invalid token: " + text);
+        }
+    }
+
+    boolean hasDigits(int index) {
+        return kinds[slot(index)] == NUMBER && count(literals[slot(index)]) > 0;
+    }
+
+    boolean hasDot(int index) {
+        return kinds[slot(index)] == NUMBER && dot(literals[slot(index)]) > 0;
+    }
+
+    /**
+     * @return 数字的正负号，没有时返回 EMPTY_CHAR
+     */
+    char sign(int index) {
+        if (kinds[slot(index)] != NUMBER)
+            return EMPTY_CHAR;
+        switch (sign(literals[slot(index)])) {
+            case 1:
+                return '+';
+            case 2:
+                return '-';
+            default:
+                return EMPTY_CHAR;
+        }
+    }
+
+    boolean isEmpty(int index) {
+        return kinds[slot(index)] == NUMBER && literals[slot(index)] == 0;
+    }
+
+    //只有正负号
+    boolean isSignOnly(int index) {
+        long literal = literals[slot(index)];
+        return kinds[slot(index)] == NUMBER && count(literal) == 0 && dot(literal) == 0 && sign(literal) != 0;
+    }
+
+    //括号、函数、只有正负号的数字和空记号后面还需要跟一个操作数
+    boolean isUnfinished(int index) {
+        byte kind = kinds[slot(index)];
+        if (kind == LEFT_BRACKET || kind == FUNCTION)
+            return true;
+        long literal = literals[slot(index)];
+        return kind == NUMBER && count(literal) == 0 && dot(literal) == 0;
+    }
+
+    int length(int index) {
+        switch (kinds[slot(index)]) {
+            case NUMBER:
+                long literal = literals[slot(index)];
+                return count(literal) + (dot(literal) > 0 ? 1 : 0) + (sign(literal) > 0 ? 1 : 0);
+            case FUNCTION:
+                return MATH_FUNCTIONS.get(function(index)).length();
+            default:
+                return 1;
+        }
+    }
+
+    void appendDigit(int index, char digit) {
+        long literal = literals[slot(index)];
+        int count = count(literal);
+        set(index, NUMBER, pack(mantissa(literal) * 10 + (digit - '0'), count + 1, dot(literal), sign(literal)));
+    }
+
+    void appendDot(int index) {
+        long literal = literals[slot(index)];
+        int count = count(literal);
+        set(index, NUMBER, pack(mantissa(literal), count, count + 1, sign(literal)));
+    }
+
+    void setSign(int index, char sign) {
+        long literal = literals[slot(index)];
+        int signBits = sign == '+' ? 1 : sign == '-' ? 2 : 0;
+        set(index, NUMBER, pack(mantissa(literal), count(literal), dot(literal), signBits));
+    }
+
+    /**
+     * 把数字记号拆为只有正负号的记号和不带正负号的数字，后者写入 target
+     */
+    void splitSign(int index, int target) {
+        long literal = literals[slot(index)];
+        set(target, NUMBER, pack(mantissa(literal), count(literal), dot(literal), 0));
+        set(index, NUMBER, pack(0, 0, 0, sign(literal)));
+    }
+
+    /**
+     * 删除记号的最后一个字符
+     *
+     * @return 被删除的字符，记号为空时返回 EMPTY_CHAR
+     */
+    char deleteLastChar(int index) {
+        byte kind = kinds[slot(index)];
+        if (kind != NUMBER) {
+            char last;
+            if (kind == FUNCTION) {
+                String function = MATH_FUNCTIONS.get(function(index));
+                last = function.charAt(function.length() - 1);
+            } else {
+                last = symbolOf(index);
+            }
+            setEmpty(index);
+            return last;
+        }
+
+        long literal = literals[slot(index)];
+        long mantissa = mantissa(literal);
+        int count = count(literal), dot = dot(literal), sign = sign(literal);
+
+        if (dot > 0 && dot - 1 == count) {
+            set(index, NUMBER, pack(mantissa, count, 0, sign));
+            return '.';
+        }
+        if (count > 0) {
+            set(index, NUMBER, pack(mantissa / 10, count - 1, dot, sign));
+            return (char) ('0' + mantissa % 10);
+        }
+        if (sign > 0) {
+            set(index, NUMBER, 0);
+            return sign == 1 ? '+' : '-';
+        }
+        return EMPTY_CHAR;
+    }
+
+    //除数字和函数外的记号只有一个字符
+    private char symbolOf(int index) {
+        switch (kinds[slot(index)]) {
+            case E:
+                return 'e';
+            case PI:
+                return 'π';
+            case PERCENT:
+                return '%';
+            case FACTORIAL:
+                return '!';
+            case LEFT_BRACKET:
+                return '(';
+            case RIGHT_BRACKET:
+                return ')';
+            case VARIABLE:
+                return variable(index);
+            default:
+                return EMPTY_CHAR;
+        }
+    }
+
+    /**
+     * 记号的第一个字符，记号为空时返回 EMPTY_CHAR
+     */
+    char firstChar(int index) {
+        byte kind = kinds[slot(index)];
+        if (kind == FUNCTION)
+            return MATH_FUNCTIONS.get(function(index)).charAt(0);
+        if (kind != NUMBER)
+            return symbolOf(index);
+
+        long literal = literals[slot(index)];
+        char sign = sign(index);
+        if (sign != EMPTY_CHAR)
+            return sign;
+        if (dot(literal) == 1)
+            return '.';
+        if (count(literal) > 0)
+            return (char) ('0' + mantissa(literal) / (long) POWERS_OF_TEN[count(literal) - 1] % 10);
+        return EMPTY_CHAR;
+    }
+
+    /**
+     * 前 size 个记号的紧凑表示，每个记号占两个 long：类型和运算符、字面量。
+     * 字面量可以无损还原文本，所以两个记号序列的表示相同当且仅当它们的文本相同
+     */
+    long[] snapshot(int size) {
+        long[] snapshot = new long[size * 2];
+        for (int i = 0; i < size; i++) {
+            int slot = slot(i);
+            snapshot[i * 2] = (long) kinds[slot] << 16 | operators[slot];
+            snapshot[i * 2 + 1] = literals[slot];
+        }
+        return snapshot;
+    }
+
+    /**
+     * 写入紧凑的二进制表示，见 {@link #readFrom(ByteBuffer)}：
+     * <ol>
+     * <li>记号数量，varint</li>
+     * <li>每个记号一个 varint，低 4 位是类型，其余位是附加数据：数字为文本的长度，函数为下标，变量为变量名</li>
+     * <li>运算符，每个占 4 位，两个一字节</li>
+     * <li>所有数字的文本按 UTF-8 连接在一起</li>
+     * </ol>
+     * 常见的记号只占一个字节加半个字节的运算符，再加上数字本身的字符
+     */
+    void writeTo(ByteArrayOutputStream out) {
+        int size = size();
+        writeVarint(out, size);
+
+        StringBuilder pool = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            int payload = 0;
+            byte kind = kind(i);
+            switch (kind) {
+                case NUMBER:
+                    int start = pool.length();
+                    payload = appendTo(i, pool).length() - start;
+                    break;
+                case FUNCTION:
+                case VARIABLE:
+                    payload = (int) literals[slot(i)];
+                    break;
+            }
+            writeVarint(out, payload << KIND_BITS | kind);
+        }
+
+        for (int i = 0; i < size; i += 2) {
+            int high = operatorCode(operator(i)), low = i + 1 < size ? operatorCode(operator(i + 1)) : 0;
+            out.write(high << 4 | low);
+        }
+
+        byte[] bytes = pool.toString().getBytes(StandardCharsets.UTF_8);
+        out.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * 从 {@link #writeTo(ByteArrayOutputStream)} 的结果恢复，原有的记号被清空
+     *
+     * @throws IllegalArgumentException 数据不完整或不合法
+     */
+    void readFrom(ByteBuffer in) {
+        clear();
+        int count = readVarint(in);
+        if (count < 0 || count > in.remaining() * 2)
+            throw new IllegalArgumentException("Too many tokens: " + count);
+
+        int[] headers = new int[count];
+        for (int i = 0; i < count; i++)
+            headers[i] = readVarint(in);
+
+        char[] operators = new char[count];
+        for (int i = 0; i < count; i += 2) {
+            int b = in.get() & 0xFF;
+            operators[i] = operatorOf(b >>> 4);
+            if (i + 1 < count)
+                operators[i + 1] = operatorOf(b & 0xF);
+        }
+
+        String pool = StandardCharsets.UTF_8.decode(in).toString();
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            add(operators[i]);
+            int kind = headers[i] & (1 << KIND_BITS) - 1, payload = headers[i] >>> KIND_BITS;
+            switch (kind) {
+                case NUMBER:
+                    if (payload > pool.length() - position)
+                        throw new IllegalArgumentException("Literal pool too short");
+                    setText(i, pool.substring(position, position + payload));
+                    if (kind(i) != NUMBER)
+                        throw new IllegalArgumentException("Invalid number: " + text(i));
+                    position += payload;
+                    break;
+                case FUNCTION:
+                    if (payload >= MATH_FUNCTIONS.size())
+                        throw new IllegalArgumentException("Invalid function: " + payload);
+                    setFunction(i, payload);
+                    break;
+                case VARIABLE:
+                    if (payload > Character.MAX_VALUE || !isVariableName((char) payload))
+                        throw new IllegalArgumentException("Invalid variable: " + payload);
+                    setVariable(i, (char) payload);
+                    break;
+                default:
+                    if (kind > VARIABLE || payload != 0)
+                        throw new IllegalArgumentException("Invalid token: " + headers[i]);
+                    setKind(i, (byte) kind);
+                    break;
+            }
+        }
+        if (position != pool.length())
+            throw new IllegalArgumentException("Unused literals");
+    }
+
+    private static int operatorCode(char operator) {
+        for (int i = 0; i < OPERATOR_CODES.length; i++) {
+            if (OPERATOR_CODES[i] == operator)
+                return i;
+        }
+        throw new IllegalStateException("Unknown operator: " + operator);
+    }
+
+    private static char operatorOf(int code) {
+        if (code >= OPERATOR_CODES.length)
+            throw new IllegalArgumentException("Invalid operator: " + code);
+        return OPERATOR_CODES[code];
+    }
+
+    //无符号 varint，每字节 7 位，低位在前
+    static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write(value & 0x7F | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    static int readVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0)
+                return value;
+        }
+        throw new IllegalArgumentException("Varint too long");
+    }
+
+    String text(int index) {
+        if (kinds[slot(index)] == FUNCTION)
+            return MATH_FUNCTIONS.get(function(index));
+        return appendTo(index, new StringBuilder(length(index))).toString();
+    }
+
+    StringBuilder appendTo(int index, StringBuilder builder) {
+        byte kind = kinds[slot(index)];
+        if (kind == FUNCTION)
+            return builder.append(MATH_FUNCTIONS.get(function(index)));
+        if (kind != NUMBER)
+            return builder.append(symbolOf(index));
+
+        long literal = literals[slot(index)];
+        char sign = sign(index);
+        if (sign != EMPTY_CHAR)
+            builder.append(sign);
+
+        int count = count(literal), dot = dot(literal);
+        long mantissa = mantissa(literal);
+        for (int i = count - 1; i >= 0; i--) {
+            if (dot - 1 == count - 1 - i)
+                builder.append('.');
+            builder.append((char) ('0' + mantissa / (long) POWERS_OF_TEN[i] % 10));
+        }
+        if (dot > 0 && dot - 1 == count)
+            builder.append('.');
+        return builder;
+    }
+}
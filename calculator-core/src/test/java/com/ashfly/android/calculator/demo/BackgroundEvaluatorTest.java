@@ -0,0 +1,84 @@
+package com.ashfly.android.calculator.demo;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+public class BackgroundEvaluatorTest {
+
+    @Test
+    public void latestWins() throws InterruptedException {
+        BlockingQueue<BackgroundEvaluator.Evaluation> results = new LinkedBlockingQueue<>();
+        BackgroundEvaluator evaluator = new BackgroundEvaluator(results::add);
+
+        //逐个按键提交，中间的请求可能被跳过，但最后一个一定会算出来
+        EquationBuilder builder = new EquationBuilder();
+        long last = 0;
+        for (char c : "12.5+3×4-6÷8".toCharArray()) {
+            builder.appendChar(c);
+            last = evaluator.submit(builder, false, null);
+        }
+        builder.clear(); //提交的是副本，之后修改不影响计算
+
+        BackgroundEvaluator.Evaluation evaluation;
+        do {
+            evaluation = results.poll(10, TimeUnit.SECONDS);
+        } while (evaluation.getGeneration() != last);
+        assertEquals(23.75, evaluation.getValue(), 0);
+        assertTrue(evaluator.isLatest(last));
+
+        evaluator.discard();
+        assertFalse(evaluator.isLatest(last));
+        evaluator.shutdown();
+    }
+
+    //后台线程保留之前计算的中间结果：每次只能处理 100 个记号，长算式分几次算完，之后的按键只计算新增的部分
+    @Test
+    public void reusesPrefix() throws InterruptedException {
+        ResultCache cache = EquationBuilder.getResultCache();
+        EquationBuilder.setResultCache(null);
+        BlockingQueue<BackgroundEvaluator.Evaluation> results = new LinkedBlockingQueue<>();
+        BackgroundEvaluator evaluator = new BackgroundEvaluator(results::add, 100, CalculateBudget.UNLIMITED, TimeUnit.NANOSECONDS);
+        try {
+            StringBuilder equation = new StringBuilder("1");
+            for (int i = 0; i < 1000; i++)
+                equation.append("+2×3");
+            EquationBuilder builder = EquationBuilder.Parser.parseEquation(equation.toString());
+
+            BackgroundEvaluator.Evaluation evaluation;
+            int attempts = 0;
+            do {
+                evaluation = submitAndWait(evaluator, results, builder);
+            } while (evaluation.getError() != null && ++attempts < 1000);
+            assertNull(evaluation.getError());
+            assertEquals(6001, evaluation.getValue(), 0);
+
+            builder.appendChar('+');
+            builder.appendChar('4');
+            evaluation = submitAndWait(evaluator, results, builder);
+            assertNull(evaluation.getError());
+            assertEquals(6005, evaluation.getValue(), 0);
+        } finally {
+            evaluator.shutdown();
+            EquationBuilder.setResultCache(cache);
+        }
+    }
+
+    private static BackgroundEvaluator.Evaluation submitAndWait(BackgroundEvaluator evaluator,
+                                                               BlockingQueue<BackgroundEvaluator.Evaluation> results,
+                                                               EquationBuilder builder) throws InterruptedException {
+        long generation = evaluator.submit(builder, false, null);
+        BackgroundEvaluator.Evaluation evaluation;
+        do {
+            evaluation = results.poll(10, TimeUnit.SECONDS);
+        } while (evaluation.getGeneration() != generation);
+        return evaluation;
+    }
+}
@@ -0,0 +1,282 @@
+package com.ashfly.android.calculator.demo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.ashfly.android.calculator.demo.EquationBuilder.CalculateException;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 不需要 Android 设备的测试：gradlew :calculator-core:test
+ */
+public class EquationBuilderTest {
+
+    private static final double DELTA = 1e-9;
+
+    private static double calculate(String equation) {
+        return EquationBuilder.Parser.parseEquation(equation).calculate(false);
+    }
+
+    @Test
+    public void calculate() {
+        assertEquals(24.5, calculate("12.5+3×4"), DELTA);
+        assertEquals(0.5, calculate("sin(30)"), DELTA);
+        assertEquals(2, calculate("√(2)^2"), DELTA);
+        assertEquals(120, calculate("5!"), DELTA);
+        assertEquals(1.5, calculate("3÷2"), DELTA);
+    }
+
+    @Test
+    public void calculateErrors() {
+        assertNull(EquationBuilder.Parser.parseEquation("3+++5"));
+
+        String[] equations = {"1÷0", "(-1)!"};
+        int[] reasons = {CalculateException.DIVIDE_BY_ZERO, CalculateException.OUT_OF_DOMAIN};
+        for (int i = 0; i < equations.length; i++) {
+            try {
+                calculate(equations[i]);
+                fail(equations[i]);
+            } catch (CalculateException e) {
+                assertEquals(equations[i], reasons[i], e.reason);
+            }
+        }
+    }
+
+    //逐个按键输入和解析整个算式应当得到相同的结果
+    @Test
+    public void appendCharMatchesParser() {
+        EquationBuilder builder = new EquationBuilder();
+        for (char c : "12.5+3×4-6÷8".toCharArray())
+            builder.appendChar(c);
+        assertEquals("12.5+3×4-6÷8", builder.build());
+        assertEquals(calculate(builder.build()), builder.calculate(false), 0);
+
+        while (builder.backspace(EquationBuilder.EMPTY_CHAR) != EquationBuilder.EMPTY_CHAR) ;
+        assertEquals("", builder.build());
+    }
+
+    @Test
+    public void saveAndRestore() {
+        String[] equations = {"", "12.5+3×-4", "sin-1(0.5)+√2×(3-", "2x^2+e÷π", "5!+50%-.", "(((1+2)×3"};
+        for (String equation : equations) {
+            EquationBuilder builder = EquationBuilder.Parser.parseEquation(equation, 'x');
+            EquationBuilder restored = EquationBuilder.fromByteArray(builder.toByteArray());
+            assertEquals(equation, builder.build(), restored.build());
+            assertArrayEquals(equation, builder.toByteArray(), restored.toByteArray());
+
+            //恢复后可以继续输入
+            builder.appendBracket();
+            restored.appendBracket();
+            assertEquals(equation, builder.build(), restored.build());
+        }
+
+        //其他版本或者截断的数据
+        byte[] state = EquationBuilder.Parser.parseEquation("12+34").toByteArray();
+        for (int length = 0; length < state.length; length++) {
+            try {
+                EquationBuilder.fromByteArray(Arrays.copyOf(state, length));
+                fail("length " + length);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+
+        //单个记号的附加数据不合法：超过 15 位的数字、超出 char 范围的变量名
+        byte[] prefix = Arrays.copyOf(EquationBuilder.Parser.parseEquation("1").toByteArray(), 3);
+        int[] headers = {16 << 4 | TokenBuffer.NUMBER, ('a' + 0x10000) << 4 | TokenBuffer.VARIABLE, 'e' << 4 | TokenBuffer.VARIABLE};
+        for (int header : headers) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write(prefix, 0, prefix.length);
+            TokenBuffer.writeVarint(out, 1);
+            TokenBuffer.writeVarint(out, header);
+            out.write(0);
+            if ((header & 0xF) == TokenBuffer.NUMBER) {
+                byte[] digits = "1234567890123456".getBytes(StandardCharsets.UTF_8);
+                out.write(digits, 0, digits.length);
+            }
+            try {
+                EquationBuilder.fromByteArray(out.toByteArray());
+                fail("header " + header);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+    }
+
+    //在光标处编辑后，算式的结果与重新解析整个文本的结果相同
+    @Test
+    public void cursorEditing() {
+        EquationBuilder builder = EquationBuilder.Parser.parseEquation("12+34×5");
+        builder.setCursor(1);
+        assertTrue(builder.appendChar('-'));
+        assertTrue(builder.appendChar('7'));
+        assertEquals("12-7+34×5", builder.build());
+        assertEquals(2, builder.getCursor());
+        assertEquals(calculate(builder.build()), builder.calculate(false), 0);
+
+        assertEquals('7', builder.backspace('7'));
+        assertEquals('-', builder.backspace('-'));
+        assertEquals("12+34×5", builder.build());
+        assertEquals(182, builder.calculate(false), 0);
+
+        //数字前面输入的数字用乘号隔开，正负号与后面的数字合并
+        builder.setCursor(0);
+        builder.appendChar('2');
+        assertEquals("2×12+34×5", builder.build());
+        builder.setCursor(0);
+        builder.appendChar('-');
+        assertEquals("-2×12+34×5", builder.build());
+        assertEquals(146, builder.calculate(false), 0);
+
+        //光标处还有未闭合的左括号时添加右括号
+        builder = EquationBuilder.Parser.parseEquation("(1+2×3");
+        builder.setCursor(3);
+        assertEquals(')', builder.appendBracket());
+        assertEquals("(1+2)×3", builder.build());
+        assertEquals(9, builder.calculate(false), 0);
+        builder.setCursor(0);
+        assertEquals('(', builder.appendBracket());
+        assertEquals("((1+2)×3", builder.build());
+
+        //保存和恢复光标，版本 1 的数据光标在末尾
+        EquationBuilder restored = EquationBuilder.fromByteArray(builder.toByteArray());
+        assertEquals(1, restored.getCursor());
+        restored.setCursor(restored.getTokenCount());
+        assertEquals(')', restored.appendBracket());
+        assertEquals("((1+2)×3)", restored.build());
+
+        byte[] state = EquationBuilder.Parser.parseEquation("(1+2").toByteArray();
+        state[0] = 1;
+        state[2] = 1; //未闭合的左括号数量
+        EquationBuilder legacy = EquationBuilder.fromByteArray(state);
+        assertEquals(legacy.getTokenCount(), legacy.getCursor());
+        assertEquals(')', legacy.appendBracket());
+    }
+
+    //函数和它的左括号是一个整体，在它们前后输入不会把两者分开
+    @Test
+    public void cursorAroundFunctions() {
+        EquationBuilder builder = EquationBuilder.Parser.parseEquation("sin(30)");
+        assertFalse(builder.isCursorStop(1));
+        builder.setCursor(1);
+        assertEquals(2, builder.getCursor());
+        assertTrue(builder.appendChar('2'));
+        assertEquals("sin(2×30)", builder.build());
+        assertEquals(calculate(builder.build()), builder.calculate(false), DELTA);
+
+        builder.setCursor(0);
+        assertTrue(builder.appendChar('2'));
+        assertEquals("2sin(2×30)", builder.build());
+        assertEquals(calculate(builder.build()), builder.calculate(false), DELTA);
+
+        builder = EquationBuilder.Parser.parseEquation("tan(5");
+        builder.setCursor(1);
+        assertTrue(builder.appendLeadingFunction("ln"));
+        assertEquals("tan(ln(5", builder.build());
+        builder.setCursor(0);
+        assertTrue(builder.appendLeadingFunction("√"));
+        assertEquals("√tan(ln(5", builder.build());
+        assertEquals(calculate(builder.build()), builder.calculate(false), DELTA);
+    }
+
+    //光标处不会出现两个相邻的运算符，或者缺少操作数的右括号、! 和 %
+    @Test
+    public void operatorsAtCursor() {
+        EquationBuilder builder = EquationBuilder.Parser.parseEquation("5×3^2");
+        builder.setCursor(1);
+        assertFalse(builder.appendChar('^'));
+        assertEquals(EquationBuilder.EMPTY_CHAR, builder.appendBracket());
+        assertFalse(builder.appendLeadingFunction("sin"));
+        assertEquals("5×3^2", builder.build());
+        assertEquals(1, builder.getCursor());
+
+        //删除两个运算符之间的数字时去掉后一个运算符
+        builder.setCursor(2);
+        assertEquals('3', builder.backspace('3'));
+        assertEquals("5×2", builder.build());
+        assertEquals(10, builder.calculate(false), 0);
+
+        builder = EquationBuilder.Parser.parseEquation("89^(2)");
+        builder.setCursor(1);
+        assertFalse(builder.appendChar('^'));
+        assertFalse(builder.appendChar('-'));
+        builder.setCursor(2);
+        assertTrue(builder.appendChar('-'));
+        assertFalse(builder.appendChar('×'));
+        assertEquals("89^(-2)", builder.build());
+        assertEquals(calculate(builder.build()), builder.calculate(false), DELTA);
+
+        //右括号和 ! 前面同样需要操作数
+        builder = EquationBuilder.Parser.parseEquation("(2+3)!");
+        builder.setCursor(4);
+        assertFalse(builder.appendChar('-'));
+        builder.setCursor(3);
+        assertFalse(builder.appendChar('÷'));
+        assertEquals("(2+3)!", builder.build());
+    }
+
+    @Test
+    public void budget() {
+        EquationBuilder builder = EquationBuilder.Parser.parseEquation("1+2×3+4×5+6");
+        try {
+            builder.calculate(false, new CalculateBudget(3, CalculateBudget.UNLIMITED, TimeUnit.MILLISECONDS));
+            fail();
+        } catch (CalculateException e) {
+            assertEquals(CalculateException.BUDGET_EXCEEDED, e.reason);
+        }
+
+        //超出预算的结果不被缓存，预算足够时可以继续算完
+        assertEquals(33, builder.calculate(false, new CalculateBudget(100, 1000, TimeUnit.MILLISECONDS)), 0);
+
+        CalculateBudget cancelled = new CalculateBudget(CalculateBudget.UNLIMITED, CalculateBudget.UNLIMITED, TimeUnit.MILLISECONDS);
+        cancelled.cancel();
+        try {
+            EquationBuilder.Parser.parseEquation("7×8").calculate(false, cancelled);
+            fail();
+        } catch (CalculateException e) {
+            assertEquals(CalculateException.BUDGET_EXCEEDED, e.reason);
+        }
+    }
+
+    @Test
+    public void metrics() {
+        CalculatorMetrics metrics = new CalculatorMetrics();
+        EquationBuilder.setMetrics(metrics);
+        try {
+            assertNull(EquationBuilder.Parser.parseEquation("3+++5"));
+            calculate("40+2");
+            try {
+                calculate("5÷0");
+                fail();
+            } catch (CalculateException expected) {
+            }
+        } finally {
+            EquationBuilder.setMetrics(null);
+        }
+
+        assertEquals(3, metrics.getSamples(CalculatorMetrics.PARSE));
+        assertEquals(1, metrics.getCount(CalculatorMetrics.INVALID_EQUATIONS));
+        assertEquals(2, metrics.getSamples(CalculatorMetrics.EVALUATE));
+        assertEquals(1, metrics.getErrorCount(CalculateException.DIVIDE_BY_ZERO));
+        assertTrue(metrics.getPercentile(CalculatorMetrics.EVALUATE, 1) >= metrics.getPercentile(CalculatorMetrics.EVALUATE, 0.5));
+        assertTrue(metrics.dump().contains("DIVIDE_BY_ZERO=1"));
+    }
+
+    @Test
+    public void calculateReader() throws IOException {
+        StringBuilder equation = new StringBuilder();
+        for (int i = 0; i < 10000; i++)
+            equation.append(i == 0 ? "" : "+").append("(1+").append(i % 7).append(")×2");
+        assertEquals(calculate(equation.toString()), EquationBuilder.Parser.calculate(new StringReader(equation.toString()), false), 0);
+    }
+}
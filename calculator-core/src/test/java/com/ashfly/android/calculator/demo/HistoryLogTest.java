@@ -0,0 +1,93 @@
+package com.ashfly.android.calculator.demo;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.ashfly.android.calculator.demo.EquationBuilder.CalculateException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+public class HistoryLogTest {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void appendAndReopen() throws Exception {
+        File directory = folder.newFolder();
+        HistoryLog history = new HistoryLog(directory);
+        for (int i = 0; i < 1000; i++) {
+            EquationBuilder builder = EquationBuilder.Parser.parseEquation(i + "÷" + (i % 10));
+            try {
+                history.append(builder, false, builder.calculate(false));
+            } catch (CalculateException e) {
+                history.append(builder, false, e);
+            }
+        }
+        history.flush();
+        assertEquals(1000, history.size());
+        assertEquals("123÷3", history.get(123).getEquation());
+        assertEquals(41, history.get(123).getValue(), 0);
+        assertEquals(CalculateException.DIVIDE_BY_ZERO, history.get(120).getReason());
+        history.close();
+
+        //写到一半的记录在重新打开时被截掉
+        try (RandomAccessFile log = new RandomAccessFile(new File(directory, "history.log"), "rw")) {
+            log.setLength(log.length() - 1);
+        }
+        history = new HistoryLog(directory);
+        history.flush();
+        assertEquals(999, history.size());
+        assertEquals(HistoryLog.NO_ERROR, history.get(998).getReason());
+        assertEquals("998÷8", history.get(998).getEquation());
+
+        history.append(EquationBuilder.Parser.parseEquation("1+1"), true, 2);
+        history.flush();
+        assertEquals(1000, history.size());
+        assertEquals("1+1", history.get(999).getEquation());
+        assertEquals(true, history.get(999).isRad());
+        history.close();
+    }
+    @Test
+    public void index() throws Exception {
+        File directory = folder.newFolder();
+        HistoryLog history = new HistoryLog(directory);
+        String[] equations = {"tan-1(1)+2", "3.14159", "22÷7", "sin(30)×2", "tan-1(0.5)", "1÷0", "314159÷100000", "sin(30)+1", "-3", "5×-3"};
+        for (String equation : equations) {
+            EquationBuilder builder = EquationBuilder.Parser.parseEquation(equation);
+            try {
+                history.append(builder, false, builder.calculate(false));
+            } catch (CalculateException e) {
+                history.append(builder, false, e);
+            }
+        }
+        history.flush();
+
+        HistoryIndex index = history.getIndex();
+        assertArrayEquals(new int[]{0, 4}, index.findTokens("tan-1("));
+        assertArrayEquals(new int[]{3}, index.findTokens("sin(30)×"));
+        assertArrayEquals(new int[]{2, 5, 6}, index.findTokens("÷"));
+        //正负号按运算符索引，数字不带正负号
+        assertArrayEquals(new int[]{8, 9}, index.findTokens("3"));
+        assertArrayEquals(new int[]{8, 9}, index.findTokens("-3"));
+        assertArrayEquals(new int[]{9}, index.findTokens("×-3"));
+        assertArrayEquals(new int[]{1, 2, 6}, index.findNear(3.14159, 0.01));
+        assertArrayEquals(new int[]{3, 7}, index.findPrefix("sin(30)"));
+        assertArrayEquals(new int[]{0, 4}, index.findPrefix("tan"));
+        assertArrayEquals(new int[]{6}, index.findPrefix("3141"));
+        assertArrayEquals(new int[0], index.findPrefix("sin(31"));
+        history.close();
+
+        //重新打开时从日志重建
+        history = new HistoryLog(directory);
+        history.flush();
+        assertArrayEquals(new int[]{0, 4}, history.getIndex().findTokens("tan-1("));
+        assertArrayEquals(new int[]{1, 2, 6}, history.getIndex().findValues(3.1, 3.2));
+        history.close();
+    }
+}
@@ -0,0 +1,83 @@
+package com.ashfly.android.calculator.demo;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+import java.util.Random;
+
+public class ResultFormatterTest {
+
+    //期望的结果来自原来的 NumberFormat + Double.toString 的组合
+    private static final Object[][] CORPUS = {
+            {0.0, "0"}, {-0.0, "0"}, {1.0, "1"}, {-1.0, "-1"}, {0.5, "0.5"},
+            {0.1, "0.1"}, {0.1 + 0.2, "0.3"}, {1.0 / 3, "0.33333333333333"}, {-2.0 / 3, "-0.66666666666667"},
+            {1.0 / 7, "0.14285714285714"}, {100.0 / 7, "14.28571428571429"}, {1e6 / 7, "142,857.14285714287"},
+            {Math.PI, "3.14159265358979"}, {Math.E, "2.71828182845905"}, {Math.sqrt(2), "1.4142135623731"},
+            {-Math.PI * 1e12, "-3,141,592,653,589.793"}, {1234.5678, "1,234.5678"},
+
+            //进位
+            {0.99999999999999, "0.99999999999999"}, {0.999999999999995, "1"}, {0.9999999999999949, "0.99999999999999"},
+            {99999999.999999995, "100,000,000"}, {9999999.999999999, "9,999,999.999999998"},
+
+            //大数：指数不小于 10 并且大于小数位数时用科学记数法
+            {1000.0, "1,000"}, {1234567.0, "1,234,567"}, {-9876543.21, "-9,876,543.21"}, {12345678.9, "12,345,678.9"},
+            {1e7, "10,000,000"}, {1e9, "1,000,000,000"}, {1e10, "1.0E10"}, {1.5e10, "1.5E10"},
+            {12345678901.5, "12,345,678,901.5"}, {123456789012345.0, "123,456,789,012,345"},
+            {1e15, "1.0E15"}, {1e17, "1.0E17"}, {1.2345e20, "1.2345E20"},
+            {9007199254740993.0, "9,007,199,254,740,992"}, {9.223372036854776E18, "9.223372036854776E18"},
+            {Double.MAX_VALUE, "1.7976931348623157E308"}, {-Double.MAX_VALUE, "-1.7976931348623157E308"},
+
+            //与 Double.toString 相同，2^53 以上的整数打印更多的数字
+            {4.7916714680820968E16, "47,916,714,680,820,968"}, {1.30404863922853888E18, "1.30404863922853888E18"},
+
+            //小数：指数不大于 -10 时用科学记数法，舍入到14位小数后为0时显示0
+            {1e-3, "0.001"}, {1.2345e-5, "0.000012345"}, {0.000123456789012345678, "0.00012345678901"},
+            {1e-9, "0.000000001"}, {1.5e-9, "0.0000000015"}, {1e-10, "1.0E-10"}, {-1.5e-10, "-1.5E-10"},
+            {1e-14, "1.0E-14"}, {5e-15, "5.0E-15"}, {4.9e-15, "0"}, {-1e-15, "0"},
+            {1e-300, "0"}, {Double.MIN_VALUE, "0"}, {Double.MIN_NORMAL, "0"},
+
+            {Double.NaN, "NaN"}, {Double.POSITIVE_INFINITY, "∞"}, {Double.NEGATIVE_INFINITY, "-∞"},
+    };
+
+    @Test
+    public void corpus() {
+        ResultFormatter formatter = new ResultFormatter(DecimalFormatSymbols.getInstance(Locale.US));
+        for (Object[] entry : CORPUS)
+            assertEquals(String.valueOf(entry[0]), entry[1], formatter.format((Double) entry[0]));
+    }
+
+    //刚好在第15位小数是5时按显示的数字进位，与 Android 上的 DecimalFormat 相同
+    @Test
+    public void halfUpOnShortestDigits() {
+        ResultFormatter formatter = new ResultFormatter(DecimalFormatSymbols.getInstance(Locale.US));
+        assertEquals("1.15575916230367", formatter.format(1.155759162303665));
+        assertEquals("40.0952380952381", formatter.format(40.095238095238095));
+    }
+
+    @Test
+    public void localizedSymbols() {
+        ResultFormatter formatter = new ResultFormatter(DecimalFormatSymbols.getInstance(Locale.GERMANY));
+        assertEquals("-1.234.567,891", formatter.format(-1234567.891));
+        assertEquals("0,000000001", formatter.format(1e-9));
+        //科学记数法与 Double.toString 相同，不随语言变化
+        assertEquals("1.5E-10", formatter.format(1.5e-10));
+    }
+
+    //科学记数法的有效数字是最短的，能还原成同一个 double
+    @Test
+    public void scientificRoundTrip() {
+        ResultFormatter formatter = new ResultFormatter(DecimalFormatSymbols.getInstance(Locale.US));
+        Random random = new Random(42);
+        for (int i = 0; i < 100000; i++) {
+            double value = Double.longBitsToDouble(random.nextLong());
+            if (Double.isNaN(value) || Double.isInfinite(value) || Math.abs(value) < 5e-15 || Math.abs(value) >= 0x1p63)
+                continue;
+            String text = formatter.format(value);
+            if (text.indexOf('E') >= 0)
+                assertEquals(text, value, Double.parseDouble(text), 0);
+        }
+    }
+}